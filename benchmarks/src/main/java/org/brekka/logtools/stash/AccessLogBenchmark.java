@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.varia.NullAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per request cost of {@link AccessLogFilter#log} and {@link AccessLogValve#toJsonString}, with a few MDC fields
+ * configured. The filter's logger goes to a {@link NullAppender} so that only building and serializing the event is
+ * measured, not the appender behind it.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+@SuppressWarnings("deprecation")
+public class AccessLogBenchmark {
+
+    private static final String MDC_PROPERTIES = "user=userId,session=sessionId,trace=traceId";
+
+    private LoopbackServer server;
+
+    private AccessLogFilter filter;
+
+    private AccessLogValve valve;
+
+    private Request request;
+
+    private Response response;
+
+    @Setup
+    public void setUp() throws IOException, ServletException {
+        Logger filterLogger = Logger.getLogger(AccessLogFilter.class);
+        filterLogger.setAdditivity(false);
+        filterLogger.setLevel(Level.DEBUG);
+        filterLogger.addAppender(new NullAppender());
+
+        Map<String, String> params = new HashMap<>();
+        params.put("mdcProperties", MDC_PROPERTIES);
+        filter = new AccessLogFilter();
+        filter.init(filterConfig(params));
+
+        server = new LoopbackServer();
+        valve = new AccessLogValve();
+        valve.setHost(server.getHost());
+        valve.setPort(server.getPort());
+        valve.setEventBufferSize(1 << 16);
+        valve.setMdcProperties(MDC_PROPERTIES);
+
+        request = AccessLogFixtures.request();
+        response = AccessLogFixtures.response();
+        // Connects the valve's dispatcher, so that it is not part of the first measured call
+        valve.log(request, response, 12L);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        filter.destroy();
+        server.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadContext {
+        @Setup
+        public void setUp() {
+            MDC.put("userId", "jbloggs");
+            MDC.put("sessionId", "2F1A6C0E9B8D4A7F");
+            MDC.put("traceId", "4bf92f3577b34da6a3ce929d0e0e4736");
+        }
+
+        @TearDown
+        public void tearDown() {
+            MDC.remove("userId");
+            MDC.remove("sessionId");
+            MDC.remove("traceId");
+        }
+    }
+
+    @Benchmark
+    public void filterLog(final ThreadContext context) {
+        filter.log(request, response);
+    }
+
+    @Benchmark
+    public String valveToJsonString(final ThreadContext context) {
+        return valve.toJsonString(request, response, 12L);
+    }
+
+    private static FilterConfig filterConfig(final Map<String, String> params) {
+        return new FilterConfig() {
+            @Override
+            public String getFilterName() {
+                return "accessLog";
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return null;
+            }
+
+            @Override
+            public String getInitParameter(final String name) {
+                return params.get(name);
+            }
+
+            @Override
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.enumeration(params.keySet());
+            }
+        };
+    }
+}
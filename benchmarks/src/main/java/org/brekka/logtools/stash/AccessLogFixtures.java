@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * Fixed request and response for the access log benchmarks. Tomcat's own connector classes are used as they
+ * implement both the servlet and catalina APIs, with the getters the loggers call overridden to return constants;
+ * that keeps mocking frameworks and their invocation overhead out of the measurement.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class AccessLogFixtures {
+
+    static final String URI = "/orders/12345/items";
+
+    private AccessLogFixtures() {
+    }
+
+    static Request request() {
+        return new Request() {
+            private final Map<String, Object> attributes = new HashMap<>();
+
+            @Override
+            public String getRemoteHost() {
+                return "192.168.10.21";
+            }
+
+            @Override
+            public String getRemoteAddr() {
+                return "192.168.10.21";
+            }
+
+            @Override
+            public String getRemoteUser() {
+                return "jbloggs";
+            }
+
+            @Override
+            public String getQueryString() {
+                return "page=2&size=50";
+            }
+
+            @Override
+            public String getRequestURI() {
+                return URI;
+            }
+
+            @Override
+            public StringBuffer getRequestURL() {
+                return new StringBuffer("http://shop.example.com").append(URI);
+            }
+
+            @Override
+            public int getContentLength() {
+                return -1;
+            }
+
+            @Override
+            public String getProtocol() {
+                return "HTTP/1.1";
+            }
+
+            @Override
+            public String getMethod() {
+                return "GET";
+            }
+
+            @Override
+            public String getContentType() {
+                return null;
+            }
+
+            @Override
+            public String getHeader(final String name) {
+                return null;
+            }
+
+            @Override
+            public Object getAttribute(final String name) {
+                // The real implementation falls through to the (absent) coyote request
+                return attributes.get(name);
+            }
+
+            @Override
+            public void setAttribute(final String name, final Object value) {
+                attributes.put(name, value);
+            }
+        };
+    }
+
+    static Response response() {
+        return new Response() {
+            @Override
+            public int getStatus() {
+                return 200;
+            }
+
+            @Override
+            public int getContentLength() {
+                return 5120;
+            }
+
+            @Override
+            public String getContentType() {
+                return "application/json;charset=UTF-8";
+            }
+
+            @Override
+            public String getHeader(final String name) {
+                return "Content-Length".equalsIgnoreCase(name) ? "5120" : null;
+            }
+        };
+    }
+}
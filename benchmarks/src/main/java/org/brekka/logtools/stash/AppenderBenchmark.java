@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link Appender#append(LoggingEvent)} on the calling thread, for a plain event, one carrying a dozen MDC
+ * fields and one with a nested exception. The appender sends to a {@link LoopbackServer} so the dispatcher thread has
+ * somewhere real to write, but only the enqueue is on the measured path. {@link #encode} isolates the serialization.
+ *
+ * Run with <code>-prof gc</code> to see the allocation rate per event.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AppenderBenchmark {
+
+    private static final int MDC_FIELDS = 12;
+
+    @Param({ "plain", "mdc", "throwable" })
+    public String event;
+
+    private LoopbackServer server;
+
+    private Appender appender;
+
+    private LoggingEvent loggingEvent;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LoopbackServer();
+        appender = new Appender();
+        appender.setHost(server.getHost());
+        appender.setPort(server.getPort());
+        appender.setApplication("benchmark");
+        // Large enough that the measurement is of the producer side, rather than of events being dropped
+        appender.setEventBufferSize(1 << 16);
+        if ("mdc".equals(event)) {
+            StringBuilder mappings = new StringBuilder();
+            for (int i = 0; i < MDC_FIELDS; i++) {
+                if (i > 0) {
+                    mappings.append(',');
+                }
+                mappings.append("field").append(i).append("=mdc").append(i);
+            }
+            appender.setMdcProperties(mappings.toString());
+        }
+        appender.activateOptions();
+
+        Throwable throwable = null;
+        if ("throwable".equals(event)) {
+            throwable = new IllegalStateException("Unable to process order",
+                    new IOException("Connection reset by peer"));
+        }
+        Logger logger = Logger.getLogger("org.brekka.logtools.benchmark.OrderService");
+        loggingEvent = new LoggingEvent(Logger.class.getName(), logger, System.currentTimeMillis(), Level.INFO,
+                "Order 12345 accepted for customer 67890", throwable);
+        // The appender sets itself up on the first event, without which encode() has no encoder to use
+        appender.append(loggingEvent);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        appender.close();
+        server.close();
+    }
+
+    /**
+     * The MDC is per thread, so each benchmark thread fills in its own.
+     */
+    @State(Scope.Thread)
+    public static class ThreadContext {
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < MDC_FIELDS; i++) {
+                MDC.put("mdc" + i, "value-" + i);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            for (int i = 0; i < MDC_FIELDS; i++) {
+                MDC.remove("mdc" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public void append(final ThreadContext context) {
+        appender.append(loggingEvent);
+    }
+
+    @Benchmark
+    public String encode(final ThreadContext context) {
+        return appender.toJsonString(loggingEvent);
+    }
+}
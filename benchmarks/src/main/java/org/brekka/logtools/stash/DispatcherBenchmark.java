@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end throughput of a {@link Dispatcher} with 1 to 64 producer threads, against an in-process {@link SinkClient}
+ * and against a {@link LoopbackServer} via the {@link TCPClient} and {@link NioClient}.
+ *
+ * Producers back off while the queue is full rather than have their events dropped, so the score is the rate the
+ * dispatcher thread actually delivers at. The events written to the client and any dropped regardless (the check is
+ * not atomic with the offer) are reported alongside the score as the 'written' and 'dropped' counters.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class DispatcherBenchmark {
+
+    /**
+     * A typical appender event, around 300 bytes.
+     */
+    private static final String EVENT = "{\"@fields\":{\"logger_name\":\"org.brekka.logtools.benchmark.OrderService\","
+            + "\"thread\":\"http-nio-8080-exec-12\",\"priority\":\"INFO\",\"application\":\"benchmark\"},"
+            + "\"@timestamp\":\"2013-06-01T12:00:00.000+0000\",\"@source_host\":\"app01.example.com\","
+            + "\"@source_path\":\"org.brekka.logtools.benchmark.OrderService\","
+            + "\"@message\":\"Order 12345 accepted for customer 67890\"}";
+
+    @Param({ "sink", "tcp", "nio" })
+    public String target;
+
+    @Param({ "8192" })
+    public int eventBufferSize;
+
+    @Param({ "256" })
+    public int batchSize;
+
+    private LoopbackServer server;
+
+    private Dispatcher dispatcher;
+
+    private DispatcherMetrics metrics;
+
+    private int capacity;
+
+    /**
+     * Events written as of the last producer thread to finish an iteration, so that the others do not count them too.
+     */
+    private final AtomicLong writtenCounted = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        Client client;
+        if ("sink".equals(target)) {
+            client = new SinkClient();
+        } else {
+            server = new LoopbackServer();
+            if ("nio".equals(target)) {
+                client = new NioClient(server.getHost(), server.getPort());
+            } else {
+                client = new TCPClient(server.getHost(), server.getPort());
+            }
+        }
+        dispatcher = new Dispatcher(client, eventBufferSize, Thread.NORM_PRIORITY);
+        dispatcher.setBatchSize(batchSize);
+        metrics = dispatcher.getMetrics();
+        capacity = metrics.getQueueCapacity();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        dispatcher.close();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void producers01(final Delivery delivery) {
+        dispatch(delivery);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void producers04(final Delivery delivery) {
+        dispatch(delivery);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void producers16(final Delivery delivery) {
+        dispatch(delivery);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void producers64(final Delivery delivery) {
+        dispatch(delivery);
+    }
+
+    private void dispatch(final Delivery delivery) {
+        while (metrics.getQueueDepth() >= capacity) {
+            Thread.yield();
+        }
+        if (!dispatcher.dispatchMessage(EVENT)) {
+            delivery.dropped++;
+        }
+    }
+
+    /**
+     * Counts of the events written and dropped, which JMH resets before each iteration and sums over the producer
+     * threads after it.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Delivery {
+
+        /**
+         * Events the dispatcher wrote to the client since the last thread to finish counted them.
+         */
+        public long written;
+
+        /**
+         * Events this thread had dropped.
+         */
+        public long dropped;
+
+        @TearDown(Level.Iteration)
+        public void end(final DispatcherBenchmark benchmark) {
+            long now = benchmark.metrics.getWritten();
+            written = now - benchmark.writtenCounted.getAndSet(now);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP server on the loopback interface that reads and discards everything sent to it, one thread per connection.
+ * Counts the bytes received so benchmarks can check that events actually arrived.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class LoopbackServer implements AutoCloseable {
+
+    private final ServerSocket serverSocket;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public LoopbackServer() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LoopbackServerAccept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    discard(socket);
+                }
+            }, "LoopbackServerRead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void discard(final Socket socket) {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = socket.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                received.addAndGet(read);
+            }
+        } catch (IOException e) {
+            // Connection dropped, nothing to do
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link Client} that just counts what it is given, so the dispatcher can be measured without any I/O.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class SinkClient implements Client {
+
+    private final AtomicLong events = new AtomicLong();
+
+    @Override
+    public void writeEvent(final String line) {
+        events.incrementAndGet();
+    }
+
+    @Override
+    public void writeEvents(final List<String> lines) {
+        events.addAndGet(lines.size());
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    @Override
+    public void beginBatch() {
+        // Nothing kept between batches
+    }
+
+    @Override
+    public void shutdown() {
+        // Nothing to release
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public String toString() {
+        return "sink";
+    }
+}
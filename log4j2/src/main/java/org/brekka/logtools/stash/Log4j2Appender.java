@@ -0,0 +1,500 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.StringLayout;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.spi.StandardLevel;
+
+/**
+ * Log4j 2 appender sending events to log stash through the same {@link Dispatcher} and clients as the log4j 1.2
+ * {@link org.brekka.logtools.stash.Appender}, supporting the same connection settings. Uses a {@link Log4j2Layout}
+ * unless another string layout is configured.
+ *
+ * <pre>
+ * &lt;Logstash name="logstash" host="logstash.example.com" port="4560" batchSize="64"&gt;
+ *     &lt;LogstashLayout application="orders"/&gt;
+ * &lt;/Logstash&gt;
+ * </pre>
+ *
+ * With a {@link Log4j2Layout} and 'garbageFree' left on, each event is encoded into a pooled byte buffer that the
+ * dispatcher writes to the connection and hands back, so that no objects are created per event (with the tcp and nio
+ * protocols; beats and udp turn the buffers back into strings). Other layouts produce a string per event.
+ * <p>
+ * Like {@link Log4j2Layout}, lives in the package of the main library to use its package-private dispatcher, clients
+ * and buffers, see README.md.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Plugin(name = "Logstash", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class Log4j2Appender extends AbstractAppender {
+
+    private final ClientSettings clientSettings;
+
+    private final int eventBufferSize;
+
+    private final int priority;
+
+    private final int batchSize;
+
+    private final int lingerMillis;
+
+    private final String waitStrategy;
+
+    private final ThreadMode threadMode;
+
+    private final int lanes;
+
+    /**
+     * 'logger', a context map key or null to keep events in order by thread only.
+     */
+    private final String laneKey;
+
+    private final String overflowPolicy;
+
+    private final long blockTimeoutMillis;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final int maxRetries;
+
+    private final boolean shareDispatcher;
+
+    private final boolean garbageFree;
+
+    /**
+     * Buffers the layout encodes events into, null unless garbage-free with a {@link Log4j2Layout}.
+     */
+    private BufferPool buffers;
+
+    private volatile Dispatcher.Producer producer;
+
+    private Log4j2Appender(final String name, final Filter filter, final StringLayout layout,
+            final boolean ignoreExceptions, final Builder<?> builder) {
+        super(name, filter, layout, ignoreExceptions, Property.EMPTY_ARRAY);
+        ClientSettings settings = new ClientSettings();
+        settings.setProtocol(builder.protocol);
+        settings.setHost(builder.host);
+        settings.setPort(builder.port);
+        settings.setEndpoints(builder.endpoints);
+        settings.setLoadBalancing(builder.loadBalancing);
+        settings.setResolveIntervalMillis(builder.resolveIntervalMillis);
+        settings.setConnectionTimeoutMillis(builder.connectionTimeoutMillis);
+        settings.setSocketTimeoutMillis(builder.socketTimeoutMillis);
+        settings.setMaxPacketBytes(builder.maxPacketBytes);
+        settings.setThreadMode(builder.threadMode);
+        this.clientSettings = settings;
+        this.eventBufferSize = builder.eventBufferSize;
+        this.priority = builder.priority;
+        this.batchSize = builder.batchSize;
+        this.lingerMillis = builder.lingerMillis;
+        this.waitStrategy = builder.waitStrategy;
+        this.threadMode = ThreadMode.forName(builder.threadMode);
+        this.lanes = builder.lanes;
+        this.laneKey = builder.laneKey == null || builder.laneKey.isEmpty() ? null : builder.laneKey;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.blockTimeoutMillis = builder.blockTimeoutMillis;
+        this.circuitBreaker = new CircuitBreaker(builder.retryInitialMillis, builder.retryMaxMillis,
+                builder.circuitBreakerThreshold);
+        this.maxRetries = builder.maxRetries;
+        this.shareDispatcher = builder.shareDispatcher;
+        this.garbageFree = builder.garbageFree;
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    @Override
+    public void start() {
+        if (garbageFree && getLayout() instanceof Log4j2Layout) {
+            buffers = BufferPool.forDispatcher(eventBufferSize, lanes, batchSize);
+        }
+        if (shareDispatcher) {
+            producer = DispatcherRegistry.acquire(clientSettings, getName(), new DispatcherRegistry.Factory() {
+                @Override
+                public Dispatcher create() {
+                    return createDispatcher();
+                }
+            });
+        } else {
+            producer = createDispatcher().producer(getName());
+        }
+        super.start();
+    }
+
+    private Dispatcher createDispatcher() {
+        Dispatcher dispatcher = new Dispatcher(ClientFactory.create(clientSettings, lanes), eventBufferSize, priority,
+                threadMode);
+        dispatcher.setBatchSize(batchSize);
+        dispatcher.setLingerMillis(lingerMillis);
+        dispatcher.setWaitStrategy(WaitStrategy.forName(waitStrategy));
+        dispatcher.setOverflowPolicy(OverflowPolicy.forName(overflowPolicy));
+        dispatcher.setBlockTimeoutMillis(blockTimeoutMillis);
+        dispatcher.setCircuitBreaker(circuitBreaker);
+        dispatcher.setMaxRetries(maxRetries);
+        return dispatcher;
+    }
+
+    @Override
+    public boolean stop(final long timeout, final TimeUnit timeUnit) {
+        setStopping();
+        Dispatcher.Producer current = producer;
+        if (current != null) {
+            current.close();
+        }
+        setStopped();
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.logging.log4j.core.Appender#append(org.apache.logging.log4j.core.LogEvent)
+     */
+    @Override
+    public void append(final LogEvent event) {
+        Severity severity = severity(event.getLevel());
+        String key = laneKey(event);
+        OverflowPolicy.Admission admission = producer.admit(severity, key);
+        if (admission == OverflowPolicy.Admission.DROP) {
+            return;
+        }
+        if (buffers != null) {
+            PooledBuffer buffer = buffers.take();
+            try {
+                ((Log4j2Layout) getLayout()).encode(event, admission != OverflowPolicy.Admission.STRIP_STACK_TRACE,
+                        buffer);
+            } catch (RuntimeException e) {
+                buffer.release();
+                throw e;
+            }
+            producer.dispatchEvent(buffer, severity, key);
+            return;
+        }
+        String eventJson;
+        if (admission == OverflowPolicy.Admission.STRIP_STACK_TRACE && getLayout() instanceof Log4j2Layout) {
+            eventJson = ((Log4j2Layout) getLayout()).toSerializable(event, false);
+        } else {
+            eventJson = ((StringLayout) getLayout()).toSerializable(event);
+        }
+        producer.dispatchMessage(eventJson, severity, key);
+    }
+
+    private String laneKey(final LogEvent event) {
+        if (laneKey == null) {
+            return null;
+        }
+        if ("logger".equals(laneKey)) {
+            return event.getLoggerName();
+        }
+        Object value = event.getContextData().getValue(laneKey);
+        return value != null ? value.toString() : null;
+    }
+
+    private static Severity severity(final Level level) {
+        // Log4j 2 levels are more severe the lower they are
+        int value = level.intLevel();
+        if (value <= StandardLevel.ERROR.intLevel()) {
+            return Severity.ERROR;
+        }
+        if (value <= StandardLevel.WARN.intLevel()) {
+            return Severity.WARN;
+        }
+        if (value <= StandardLevel.INFO.intLevel()) {
+            return Severity.INFO;
+        }
+        return Severity.DEBUG;
+    }
+
+    /**
+     * @return the dispatcher, once started.
+     */
+    Dispatcher getDispatcher() {
+        Dispatcher.Producer current = producer;
+        return current != null ? current.getDispatcher() : null;
+    }
+
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<Log4j2Appender> {
+
+        /**
+         * The logging server host name
+         */
+        @PluginBuilderAttribute
+        private String host;
+
+        /**
+         * The logging server listening port.
+         */
+        @PluginBuilderAttribute
+        private int port;
+
+        /**
+         * How to talk to the server, 'tcp' (the default), 'nio', 'beats' or 'udp'.
+         */
+        @PluginBuilderAttribute
+        private String protocol;
+
+        /**
+         * Comma separated list of host[:port] to spread events over, instead of the single host.
+         */
+        @PluginBuilderAttribute
+        private String endpoints;
+
+        @PluginBuilderAttribute
+        private String loadBalancing;
+
+        @PluginBuilderAttribute
+        private long resolveIntervalMillis = 60000;
+
+        @PluginBuilderAttribute
+        private int connectionTimeoutMillis;
+
+        @PluginBuilderAttribute
+        private int socketTimeoutMillis;
+
+        @PluginBuilderAttribute
+        private int maxPacketBytes = UdpClient.DEFAULT_MAX_PACKET_BYTES;
+
+        @PluginBuilderAttribute
+        private int priority = 4;
+
+        @PluginBuilderAttribute
+        private int eventBufferSize = 1000;
+
+        @PluginBuilderAttribute
+        private int batchSize = 1;
+
+        @PluginBuilderAttribute
+        private int lingerMillis;
+
+        @PluginBuilderAttribute
+        private String waitStrategy;
+
+        @PluginBuilderAttribute
+        private String threadMode;
+
+        @PluginBuilderAttribute
+        private int lanes = 1;
+
+        @PluginBuilderAttribute
+        private String laneKey;
+
+        /**
+         * 'drop-newest' (the default), 'drop-oldest', 'block' or 'level-aware'.
+         */
+        @PluginBuilderAttribute
+        private String overflowPolicy;
+
+        @PluginBuilderAttribute
+        private long blockTimeoutMillis = 100;
+
+        /**
+         * Backoff between attempts to write to a failing server, see {@link CircuitBreaker}.
+         */
+        @PluginBuilderAttribute
+        private long retryInitialMillis = 500;
+
+        @PluginBuilderAttribute
+        private long retryMaxMillis = 30000;
+
+        /**
+         * Failed attempts after which a batch of events is dropped, zero to retry forever.
+         */
+        @PluginBuilderAttribute
+        private int maxRetries;
+
+        /**
+         * Consecutive failures after which new events are refused until the server can be written to again, zero to
+         * keep queueing them.
+         */
+        @PluginBuilderAttribute
+        private int circuitBreakerThreshold;
+
+        /**
+         * Share one connection, dispatcher thread and buffer with the other appenders sending to the same place.
+         */
+        @PluginBuilderAttribute
+        private boolean shareDispatcher;
+
+        /**
+         * Encode events into pooled buffers rather than strings, when using a {@link Log4j2Layout}.
+         */
+        @PluginBuilderAttribute
+        private boolean garbageFree = true;
+
+        public B setHost(final String host) {
+            this.host = host;
+            return asBuilder();
+        }
+
+        public B setPort(final int port) {
+            this.port = port;
+            return asBuilder();
+        }
+
+        public B setProtocol(final String protocol) {
+            this.protocol = protocol;
+            return asBuilder();
+        }
+
+        public B setEndpoints(final String endpoints) {
+            this.endpoints = endpoints;
+            return asBuilder();
+        }
+
+        public B setLoadBalancing(final String loadBalancing) {
+            this.loadBalancing = loadBalancing;
+            return asBuilder();
+        }
+
+        public B setResolveIntervalMillis(final long resolveIntervalMillis) {
+            this.resolveIntervalMillis = resolveIntervalMillis;
+            return asBuilder();
+        }
+
+        public B setConnectionTimeoutMillis(final int connectionTimeoutMillis) {
+            this.connectionTimeoutMillis = connectionTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setSocketTimeoutMillis(final int socketTimeoutMillis) {
+            this.socketTimeoutMillis = socketTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setMaxPacketBytes(final int maxPacketBytes) {
+            this.maxPacketBytes = maxPacketBytes;
+            return asBuilder();
+        }
+
+        public B setPriority(final int priority) {
+            this.priority = priority;
+            return asBuilder();
+        }
+
+        public B setEventBufferSize(final int eventBufferSize) {
+            this.eventBufferSize = eventBufferSize;
+            return asBuilder();
+        }
+
+        public B setBatchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return asBuilder();
+        }
+
+        public B setLingerMillis(final int lingerMillis) {
+            this.lingerMillis = lingerMillis;
+            return asBuilder();
+        }
+
+        public B setWaitStrategy(final String waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return asBuilder();
+        }
+
+        /**
+         * @param threadMode 'platform' (the default) or 'virtual', for the dispatcher and connection pool threads
+         */
+        public B setThreadMode(final String threadMode) {
+            this.threadMode = threadMode;
+            return asBuilder();
+        }
+
+        /**
+         * @param lanes the number of connections and dispatcher threads, the eventBufferSize being split between them
+         */
+        public B setLanes(final int lanes) {
+            this.lanes = lanes;
+            return asBuilder();
+        }
+
+        /**
+         * @param laneKey 'logger' or a context map key, events with the same value being kept in order across
+         *            threads
+         */
+        public B setLaneKey(final String laneKey) {
+            this.laneKey = laneKey;
+            return asBuilder();
+        }
+
+        public B setOverflowPolicy(final String overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return asBuilder();
+        }
+
+        public B setBlockTimeoutMillis(final long blockTimeoutMillis) {
+            this.blockTimeoutMillis = blockTimeoutMillis;
+            return asBuilder();
+        }
+
+        public B setRetryInitialMillis(final long retryInitialMillis) {
+            this.retryInitialMillis = retryInitialMillis;
+            return asBuilder();
+        }
+
+        public B setRetryMaxMillis(final long retryMaxMillis) {
+            this.retryMaxMillis = retryMaxMillis;
+            return asBuilder();
+        }
+
+        public B setMaxRetries(final int maxRetries) {
+            this.maxRetries = maxRetries;
+            return asBuilder();
+        }
+
+        public B setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+            this.circuitBreakerThreshold = circuitBreakerThreshold;
+            return asBuilder();
+        }
+
+        public B setShareDispatcher(final boolean shareDispatcher) {
+            this.shareDispatcher = shareDispatcher;
+            return asBuilder();
+        }
+
+        public B setGarbageFree(final boolean garbageFree) {
+            this.garbageFree = garbageFree;
+            return asBuilder();
+        }
+
+        @Override
+        public Log4j2Appender build() {
+            Layout<? extends Serializable> layout = getLayout();
+            if (layout == null) {
+                layout = Log4j2Layout.createDefaultLayout();
+            } else if (!(layout instanceof StringLayout)) {
+                throw new IllegalArgumentException(String.format(
+                        "Layout of appender '%s' must produce strings, not %s", getName(), layout.getClass().getName()));
+            }
+            return new Log4j2Appender(getName(), getFilter(), (StringLayout) layout, isIgnoreExceptions(), this);
+        }
+    }
+}
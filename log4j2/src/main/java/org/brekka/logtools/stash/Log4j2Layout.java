@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.layout.AbstractStringLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.brekka.logtools.SourceHost;
+
+/**
+ * Log4j 2 layout producing the same <code>@timestamp/@source_host/@fields</code> document as the log4j 1.2
+ * {@link Appender}. Supports Log4j 2's garbage-free mode: the document is written into a per-thread buffer straight
+ * from the (possibly reused) {@link LogEvent}, messages that can format themselves into a buffer do so, and the
+ * 'mdcProperties' fields are read from the event's context data. {@link #encode(LogEvent, ByteBufferDestination)}
+ * then copies that buffer into the destination without creating any objects. Only events with a throwable allocate,
+ * as the stack trace has to be fingerprinted to find its cached rendering.
+ * <p>
+ * Shares the package of the main library on purpose, to use its package-private {@link JsonWriter},
+ * {@link FieldPlan} and {@link StackTraceCache}; the two jars have to be of the same version.
+ *
+ * <pre>
+ * &lt;LogstashLayout application="orders" mdcProperties="request_id=requestId,user=userId"/&gt;
+ * </pre>
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+@Plugin(name = "LogstashLayout", category = Node.CATEGORY, elementType = Layout.ELEMENT_TYPE, printObject = true)
+public final class Log4j2Layout extends AbstractStringLayout {
+
+    private static final String TIMESTAMP = JsonWriter.encodeName("@timestamp");
+    private static final String SOURCE_HOST = JsonWriter.encodeName("@source_host");
+    private static final String SOURCE_PATH = JsonWriter.encodeName("@source_path");
+    private static final String MESSAGE = JsonWriter.encodeName("@message");
+    private static final String FIELDS = JsonWriter.encodeName("@fields");
+    private static final String LOGGER_NAME = JsonWriter.encodeName("logger_name");
+    private static final String THREAD = JsonWriter.encodeName("thread");
+    private static final String PRIORITY = JsonWriter.encodeName("priority");
+    private static final String STACK_TRACE = JsonWriter.encodeName("stack_trace");
+    private static final String STACK_HASH = JsonWriter.encodeName("stack_hash");
+
+    private final String sourceHost;
+
+    private final FieldPlan fieldPlan;
+
+    private final StackTraceCache stackTraces;
+
+    private final long stackTraceRepeatIntervalMillis;
+
+    private final boolean eventEol;
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private Log4j2Layout(final Builder builder) {
+        super(StandardCharsets.UTF_8);
+        this.sourceHost = builder.sourceHostName != null
+                ? builder.sourceHostName : new SourceHost().getFqdn();
+        this.fieldPlan = FieldPlan.compile(builder.mdcProperties, builder.application);
+        this.stackTraces = new StackTraceCache(builder.stackTraceCacheSize);
+        this.stackTraceRepeatIntervalMillis = builder.stackTraceRepeatIntervalMillis;
+        this.eventEol = builder.eventEol;
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a layout with the default settings, used by {@link Log4j2Appender} when none is configured.
+     */
+    public static Log4j2Layout createDefaultLayout() {
+        return newBuilder().build();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.logging.log4j.core.Layout#toSerializable(org.apache.logging.log4j.core.LogEvent)
+     */
+    @Override
+    public String toSerializable(final LogEvent event) {
+        return format(event, true).toString();
+    }
+
+    /**
+     * @param stackTrace false to leave out the stack trace of the event's throwable, as when shedding load
+     */
+    String toSerializable(final LogEvent event, final boolean stackTrace) {
+        return format(event, stackTrace).toString();
+    }
+
+    /* (non-Javadoc)
+     * @see org.apache.logging.log4j.core.layout.AbstractLayout#encode(java.lang.Object, org.apache.logging.log4j.core.layout.ByteBufferDestination)
+     */
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        getStringBuilderEncoder().encode(format(event, true).getBuilder(), destination);
+    }
+
+    /**
+     * Write the event as UTF-8 into the buffer, for {@link Log4j2Appender} to hand to the dispatcher as it is.
+     *
+     * @param stackTrace false to leave out the stack trace of the event's throwable, as when shedding load
+     */
+    void encode(final LogEvent event, final boolean stackTrace, final PooledBuffer into) {
+        into.writeUtf8(format(event, stackTrace).getBuilder());
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/json; charset=UTF-8";
+    }
+
+    /**
+     * Write the event into this thread's buffer.
+     */
+    JsonWriter format(final LogEvent event, final boolean stackTrace) {
+        State state = states.get();
+        JsonWriter json = state.json.reset();
+        json.beginObject();
+        json.encodedName(TIMESTAMP).timestampValue(event.getTimeMillis());
+        json.encodedName(SOURCE_HOST).value(sourceHost);
+        json.encodedName(SOURCE_PATH).value(event.getLoggerName());
+        json.encodedName(MESSAGE).value(state.message(event.getMessage()));
+        json.encodedName(FIELDS).beginObject();
+        json.encodedName(LOGGER_NAME).value(event.getLoggerName());
+        json.encodedName(THREAD).value(event.getThreadName());
+        json.encodedName(PRIORITY).value(event.getLevel().name());
+        state.context.data = event.getContextData();
+        try {
+            fieldPlan.writeTo(json, state.context);
+        } finally {
+            state.context.data = null;
+        }
+        Throwable thrown = event.getThrown();
+        if (thrown != null && stackTrace) {
+            StackTraceCache.CachedTrace trace = stackTraces.lookup(thrown);
+            if (stackTraceRepeatIntervalMillis > 0) {
+                json.encodedName(STACK_HASH).value(trace.getHash());
+            }
+            if (stackTraceRepeatIntervalMillis <= 0
+                    || trace.claimFullTrace(System.currentTimeMillis(), stackTraceRepeatIntervalMillis)) {
+                json.encodedName(STACK_TRACE).value(trace.getTrace());
+            }
+        }
+        json.endObject();
+        json.endObject();
+        if (eventEol) {
+            json.getBuilder().append('\n');
+        }
+        return json;
+    }
+
+    /**
+     * Per thread buffers, reused for every event.
+     */
+    private static final class State {
+        private final JsonWriter json = new JsonWriter(1024);
+        private final StringBuilder message = new StringBuilder(256);
+        private final ContextData context = new ContextData();
+
+        private CharSequence message(final Message msg) {
+            if (msg == null) {
+                return null;
+            }
+            if (msg instanceof StringBuilderFormattable) {
+                message.setLength(0);
+                ((StringBuilderFormattable) msg).formatTo(message);
+                return message;
+            }
+            return msg.getFormattedMessage();
+        }
+    }
+
+    /**
+     * Presents the context data of the event being formatted to the {@link FieldPlan}.
+     */
+    private static final class ContextData implements FieldPlan.Context {
+        private ReadOnlyStringMap data;
+
+        @Override
+        public Object get(final String key) {
+            return data != null ? data.getValue(key) : null;
+        }
+    }
+
+    public static final class Builder implements org.apache.logging.log4j.core.util.Builder<Log4j2Layout> {
+
+        /**
+         * The name of the application sending the events
+         */
+        @PluginBuilderAttribute
+        private String application;
+
+        /**
+         * Comma separated list of <code>field=key</code>, the keys being looked up in the event's context data.
+         */
+        @PluginBuilderAttribute
+        private String mdcProperties;
+
+        /**
+         * Where the message should appear to come from, determined automatically if not set.
+         */
+        @PluginBuilderAttribute
+        private String sourceHostName;
+
+        @PluginBuilderAttribute
+        private int stackTraceCacheSize = 256;
+
+        /**
+         * When positive, a given stack trace is sent in full at most once per interval, other occurrences only carry
+         * its stack_hash.
+         */
+        @PluginBuilderAttribute
+        private long stackTraceRepeatIntervalMillis;
+
+        /**
+         * Terminate each event with a newline, for use with appenders other than {@link Log4j2Appender} (whose
+         * clients already separate events).
+         */
+        @PluginBuilderAttribute
+        private boolean eventEol;
+
+        public Builder setApplication(final String application) {
+            this.application = application;
+            return this;
+        }
+
+        public Builder setMdcProperties(final String mdcProperties) {
+            this.mdcProperties = mdcProperties;
+            return this;
+        }
+
+        public Builder setSourceHostName(final String sourceHostName) {
+            this.sourceHostName = sourceHostName;
+            return this;
+        }
+
+        public Builder setStackTraceCacheSize(final int stackTraceCacheSize) {
+            this.stackTraceCacheSize = stackTraceCacheSize;
+            return this;
+        }
+
+        public Builder setStackTraceRepeatIntervalMillis(final long stackTraceRepeatIntervalMillis) {
+            this.stackTraceRepeatIntervalMillis = stackTraceRepeatIntervalMillis;
+            return this;
+        }
+
+        public Builder setEventEol(final boolean eventEol) {
+            this.eventEol = eventEol;
+            return this;
+        }
+
+        @Override
+        public Log4j2Layout build() {
+            return new Log4j2Layout(this);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Log4j2Appender}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class Log4j2AppenderTest {
+
+    private DatagramSocket server;
+
+    private Log4j2Appender appender;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        appender = Log4j2Appender.newBuilder()
+                .setName("logstash")
+                .setProtocol("udp")
+                .setHost("127.0.0.1")
+                .setPort(server.getLocalPort())
+                .setLayout(Log4j2Layout.newBuilder().setSourceHostName("test-host").build())
+                .build();
+        appender.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        appender.stop(0, null);
+        server.close();
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setTimeMillis(1370088000000L)
+                .setLoggerName("org.example.Orders")
+                .setThreadName("main")
+                .setLevel(Level.ERROR)
+                .setMessage(new SimpleMessage("Order failed"))
+                .build();
+        appender.append(event);
+
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        server.receive(packet);
+        String payload = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+        assertEquals("{\"@timestamp\":\"2013-06-01T12:00:00.000Z\",\"@source_host\":\"test-host\","
+                + "\"@source_path\":\"org.example.Orders\",\"@message\":\"Order failed\","
+                + "\"@fields\":{\"logger_name\":\"org.example.Orders\",\"thread\":\"main\",\"priority\":\"ERROR\"}}\n",
+                payload);
+    }
+
+    /**
+     * The pooled buffers must carry the same document as the string layout, multi-byte characters included.
+     */
+    @Test
+    public void testGarbageFreeMatchesString() throws Exception {
+        Log4j2Appender strings = Log4j2Appender.newBuilder()
+                .setName("strings")
+                .setProtocol("udp")
+                .setHost("127.0.0.1")
+                .setPort(server.getLocalPort())
+                .setLayout(Log4j2Layout.newBuilder().setSourceHostName("test-host").build())
+                .setGarbageFree(false)
+                .build();
+        strings.start();
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setTimeMillis(1370088000000L)
+                .setLoggerName("org.example.Orders")
+                .setThreadName("main")
+                .setLevel(Level.WARN)
+                .setMessage(new SimpleMessage("Caf\u00e9 \u20ac \ud83d\ude00"))
+                .build();
+        try {
+            appender.append(event);
+            String garbageFree = receive();
+            strings.append(event);
+            assertEquals(receive(), garbageFree);
+        } finally {
+            strings.stop(0, null);
+        }
+    }
+
+    @Test
+    public void testDefaultLayout() throws Exception {
+        Log4j2Appender defaults = Log4j2Appender.newBuilder().setName("defaults").build();
+        assertTrue(defaults.getLayout() instanceof Log4j2Layout);
+    }
+
+    @Test
+    public void testShareDispatcher() throws Exception {
+        Log4j2Appender first = sharing("first");
+        Log4j2Appender second = sharing("second");
+        first.start();
+        second.start();
+        Dispatcher dispatcher = first.getDispatcher();
+        assertSame(dispatcher, second.getDispatcher());
+        assertNotSame(dispatcher, appender.getDispatcher());
+        first.stop(0, null);
+        assertFalse(dispatcher.isClosed());
+        second.stop(0, null);
+        assertTrue(dispatcher.isClosed());
+    }
+
+    private String receive() throws Exception {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private Log4j2Appender sharing(final String name) {
+        return Log4j2Appender.newBuilder()
+                .setName(name)
+                .setProtocol("udp")
+                .setHost("127.0.0.1")
+                .setPort(server.getLocalPort())
+                .setShareDispatcher(true)
+                .build();
+    }
+}
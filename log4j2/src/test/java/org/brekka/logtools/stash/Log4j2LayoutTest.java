@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.junit.Test;
+
+/**
+ * Tests for {@link Log4j2Layout}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class Log4j2LayoutTest {
+
+    private static final String EXPECTED = "{\"@timestamp\":\"2013-06-01T12:00:00.000Z\",\"@source_host\":\"test-host\","
+            + "\"@source_path\":\"org.example.Orders\",\"@message\":\"Order \\\"12345\\\" accepted\","
+            + "\"@fields\":{\"logger_name\":\"org.example.Orders\",\"thread\":\"main\",\"priority\":\"INFO\","
+            + "\"application\":\"orders\",\"request_id\":\"abc-123\",\"user\":null}}";
+
+    private final Log4j2Layout layout = Log4j2Layout.newBuilder()
+            .setApplication("orders")
+            .setMdcProperties("request_id=requestId,user=userId")
+            .setSourceHostName("test-host")
+            .build();
+
+    @Test
+    public void testToSerializable() throws Exception {
+        assertEquals(EXPECTED, layout.toSerializable(event(null)));
+        // Buffers are reused, make sure nothing carries over
+        assertEquals(EXPECTED, layout.toSerializable(event(null)));
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        Log4j2Layout eolLayout = Log4j2Layout.newBuilder()
+                .setApplication("orders")
+                .setMdcProperties("request_id=requestId,user=userId")
+                .setSourceHostName("test-host")
+                .setEventEol(true)
+                .build();
+        Destination destination = new Destination();
+        eolLayout.encode(event(null), destination);
+        assertEquals(EXPECTED + "\n", new String(destination.out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testThrowable() throws Exception {
+        String json = layout.toSerializable(event(new IllegalStateException("Failed")));
+        assertTrue(json, json.contains("\"stack_trace\":\"java.lang.IllegalStateException: Failed\\\\n\\\\tat "));
+        assertFalse(json, json.contains("stack_hash"));
+    }
+
+    @Test
+    public void testStackTraceByReference() throws Exception {
+        Log4j2Layout byReference = Log4j2Layout.newBuilder()
+                .setSourceHostName("test-host")
+                .setStackTraceRepeatIntervalMillis(60000)
+                .build();
+        Throwable throwable = new IllegalStateException("Failed");
+        String first = byReference.toSerializable(event(throwable));
+        String second = byReference.toSerializable(event(throwable));
+        assertTrue(first, first.contains("\"stack_hash\":"));
+        assertTrue(first, first.contains("\"stack_trace\":"));
+        assertTrue(second, second.contains("\"stack_hash\":"));
+        assertFalse(second, second.contains("\"stack_trace\":"));
+    }
+
+    private static LogEvent event(final Throwable thrown) {
+        SortedArrayStringMap contextData = new SortedArrayStringMap();
+        contextData.putValue("requestId", "abc-123");
+        return Log4jLogEvent.newBuilder()
+                .setTimeMillis(1370088000000L)
+                .setLoggerName("org.example.Orders")
+                .setThreadName("main")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("Order \"12345\" accepted"))
+                .setContextData(contextData)
+                .setThrown(thrown)
+                .build();
+    }
+
+    private static final class Destination implements ByteBufferDestination {
+        private final ByteBuffer buffer = ByteBuffer.allocate(64);
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(final ByteBuffer buf) {
+            buf.flip();
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(final ByteBuffer data) {
+            while (data.hasRemaining()) {
+                out.write(data.get());
+            }
+        }
+
+        @Override
+        public void writeBytes(final byte[] data, final int offset, final int length) {
+            out.write(data, offset, length);
+        }
+    }
+}
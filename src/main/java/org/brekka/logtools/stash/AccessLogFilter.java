@@ -17,12 +17,10 @@
 package org.brekka.logtools.stash;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -45,33 +43,99 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * Servlet filter used to capture and log request/response access details to the Log4J logger named after this class.
+ *
+ * Requests can be sampled via the init parameters 'samplingRules' and 'samplingMaxEventsPerSecond' (see
+ * {@link AccessLogSampler}), with 'samplingKeyMdc' or 'samplingKeyHeader' naming where to find the trace id that keeps
+ * decisions consistent. Sampled events carry the rate they were kept at as 'sample_rate'.
+ *
+ * Alternatively, setting 'rollupIntervalSeconds' switches to logging one summary event per method, normalized URI and
+ * status class each interval (see {@link AccessLogRollup}), with counts, bytes and latency percentiles, instead of an
+ * event per request. 'rollupMaxUris' and 'rollupMaxKeys' limit how many URIs and keys are kept apart at once, each
+ * key costing up to about 13KB; keys are dropped after an interval without requests.
  */
 public class AccessLogFilter implements Filter {
 
     private static final Logger logger = Logger.getLogger(AccessLogFilter.class);
 
+    /**
+     * How long {@link #destroy()} waits for a flush already under way before making the final one.
+     */
+    private static final long FLUSH_WAIT_SECONDS = 5;
+
+    /**
+     * Request attribute holding the rate the request was sampled at, added to the event as 'sample_rate'.
+     */
+    static final String SAMPLE_RATE_ATTRIBUTE = AccessLogFilter.class.getName() + ".sampleRate";
+
     private FilterConfig config;
 
     private SourceHost sourceHost;
 
     private String mdcProperties;
 
-    private Map<String,String> mdcProps;
+    private FieldPlan fieldPlan;
 
     private Level priority;
 
     private ObjectMapper objectMapper;
 
+    /**
+     * Null unless sampling rules or a maximum events per second have been configured.
+     */
+    private AccessLogSampler sampler;
+
+    private String samplingKeyMdc;
+
+    private String samplingKeyHeader;
+
+    /**
+     * Null unless aggregating requests into rollups.
+     */
+    private AccessLogRollup rollup;
+
+    private ScheduledExecutorService rollupScheduler;
+
+    private long rollupIntervalMillis;
+
     @Override
     public void init(final FilterConfig filterConfig) throws ServletException {
         mdcProperties = getParamOrDefault(filterConfig, "mdcProperties", null);
         priority = Level.toLevel(getParamOrDefault(filterConfig, "priority", "DEBUG"));
         sourceHost = new SourceHost();
-        initMDCProperties();
+        fieldPlan = FieldPlan.compile(mdcProperties, null);
         config = filterConfig;
         objectMapper = new ObjectMapper();
         objectMapper.setConfig(objectMapper.getSerializationConfig().withoutFeatures(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS));
         objectMapper.setSerializationInclusion(Include.NON_NULL);
+        String samplingRules = getParamOrDefault(filterConfig, "samplingRules", null);
+        int samplingMaxEventsPerSecond = Integer.parseInt(
+                getParamOrDefault(filterConfig, "samplingMaxEventsPerSecond", "0"));
+        if (samplingRules != null || samplingMaxEventsPerSecond > 0) {
+            sampler = new AccessLogSampler(samplingRules, samplingMaxEventsPerSecond);
+        }
+        samplingKeyMdc = getParamOrDefault(filterConfig, "samplingKeyMdc", null);
+        samplingKeyHeader = getParamOrDefault(filterConfig, "samplingKeyHeader", null);
+        int rollupIntervalSeconds = Integer.parseInt(getParamOrDefault(filterConfig, "rollupIntervalSeconds", "0"));
+        if (rollupIntervalSeconds > 0) {
+            rollupIntervalMillis = rollupIntervalSeconds * 1000L;
+            rollup = new AccessLogRollup(Integer.parseInt(getParamOrDefault(filterConfig, "rollupMaxUris", "1000")),
+                    Integer.parseInt(getParamOrDefault(filterConfig, "rollupMaxKeys",
+                            String.valueOf(AccessLogRollup.DEFAULT_MAX_KEYS))));
+            rollupScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(r, "LogStashRollup");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            rollupScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    flushRollups();
+                }
+            }, rollupIntervalSeconds, rollupIntervalSeconds, TimeUnit.SECONDS);
+        }
     }
 
     protected String getParamOrDefault(final FilterConfig filterConfig, final String paramName,final String defaultValue){
@@ -84,22 +148,106 @@ public class AccessLogFilter implements Filter {
 
     @Override
     public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException {
+        long start = System.nanoTime();
         try {
             chain.doFilter(request, response);
         } finally {
             try {
                 HttpServletRequest req = (HttpServletRequest) request;
                 HttpServletResponse resp = (HttpServletResponse) response;
-                log(req, resp);
+                if (rollup != null) {
+                    rollup.record(req.getMethod(), req.getRequestURI(), resp.getStatus(), responseLength(resp),
+                            (System.nanoTime() - start) / 1000);
+                } else if (sample(req, resp)) {
+                    log(req, resp);
+                }
             } catch (Exception e){
                 config.getServletContext().log("Failed to log access", e);
             }
         }
     }
 
+    /**
+     * Apply the sampling rules, if any, recording the rate on the request for {@link #processFields}.
+     *
+     * @return true if the request should be logged.
+     */
+    protected boolean sample(final HttpServletRequest req, final HttpServletResponse resp) {
+        if (sampler == null) {
+            return true;
+        }
+        String key = null;
+        if (samplingKeyMdc != null) {
+            Object value = MDC.get(samplingKeyMdc);
+            key = value != null ? value.toString() : null;
+        }
+        if (key == null && samplingKeyHeader != null) {
+            key = req.getHeader(samplingKeyHeader);
+        }
+        double rate = sampler.sample(req.getMethod(), req.getRequestURI(), resp.getStatus(), key);
+        if (rate <= 0d) {
+            return false;
+        }
+        req.setAttribute(SAMPLE_RATE_ATTRIBUTE, rate);
+        return true;
+    }
+
     @Override
     public void destroy() {
-        // Not needed
+        if (rollupScheduler != null) {
+            // Not interrupted, so a flush already under way finishes rather than being cut short
+            rollupScheduler.shutdown();
+            try {
+                // Let it finish first, or a key could be split between its events and the final ones
+                rollupScheduler.awaitTermination(FLUSH_WAIT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushRollups();
+        }
+    }
+
+    /**
+     * Log a summary event for each rollup key seen during the interval.
+     */
+    protected void flushRollups() {
+        try {
+            String now = TimestampEncoder.OFFSET.format(System.currentTimeMillis());
+            for (AccessLogRollup.Summary summary : rollup.drain()) {
+                ObjectNode json = objectMapper.createObjectNode();
+                json.put("@timestamp", now);
+                json.put("@source_host", sourceHost.getFqdn());
+                json.put("@source_path", summary.getUri());
+                json.put("@message", summary.toString());
+                ObjectNode fields = json.putObject("@fields");
+                fields.put("type", "rollup");
+                fields.put("method", summary.getMethod());
+                fields.put("uri", summary.getUri());
+                fields.put("status_class", summary.getStatusClass());
+                fields.put("interval_millis", rollupIntervalMillis);
+                fields.put("count", summary.getCount());
+                fields.put("bytes", summary.getBytes());
+                fields.put("p50_ms", summary.getP50() / 1000d);
+                fields.put("p90_ms", summary.getP90() / 1000d);
+                fields.put("p99_ms", summary.getP99() / 1000d);
+                fields.put("max_ms", summary.getMax() / 1000d);
+                logger.log(priority, objectMapper.writeValueAsString(json));
+            }
+        } catch (IOException | RuntimeException e) {
+            config.getServletContext().log("Failed to write access log rollup", e);
+        }
+    }
+
+    private static long responseLength(final HttpServletResponse resp) {
+        String contentLength = resp.getHeader("Content-Length");
+        if (contentLength == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     protected void log(final HttpServletRequest req, final HttpServletResponse resp) {
@@ -120,7 +268,7 @@ public class AccessLogFilter implements Filter {
      */
     protected ObjectNode toObjectNode(final HttpServletRequest req, final HttpServletResponse resp) {
         ObjectNode json = objectMapper.createObjectNode();
-        json.putPOJO("@timestamp", new Date());
+        json.put("@timestamp", TimestampEncoder.OFFSET.format(System.currentTimeMillis()));
         json.put("@source_host", sourceHost.getFqdn());
         json.put("@source_path", req.getRequestURI());
         json.put("@message", req.getRequestURL().toString());
@@ -129,29 +277,6 @@ public class AccessLogFilter implements Filter {
         return json;
     }
 
-    /**
-     *
-     */
-    private void initMDCProperties() {
-        if (mdcProps == null) {
-            synchronized (this) {
-                if (mdcProps == null) {
-                    if (mdcProperties !=null && mdcProperties.length()!=0){
-                        String[] propList = mdcProperties.split(",");
-                        Map<String, String> map = new LinkedHashMap<>(propList.length);
-                        for (final String keyValue : propList) {
-                            String[] split2 = keyValue.split("=");
-                            map.put(split2[0], split2[1]);
-                        }
-                        mdcProps = map;
-                    } else {
-                        mdcProps = Collections.emptyMap();
-                    }
-                }
-            }
-        }
-    }
-
     protected void processFields(final ObjectNode json, final HttpServletRequest req, final HttpServletResponse resp) {
         json.put("remote_host", req.getRemoteHost());
         json.put("remote_user", req.getRemoteUser());
@@ -164,9 +289,11 @@ public class AccessLogFilter implements Filter {
         json.put("response_length", resp.getHeader("Content-Length"));
         json.put("response_content_type", resp.getContentType());
         json.put("status_code", resp.getStatus());
-
-        for (Entry<String,String> mdcEntry : mdcProps.entrySet()){
-            json.put(mdcEntry.getKey(), Objects.toString(MDC.get(mdcEntry.getValue()), null));
+        Object sampleRate = req.getAttribute(SAMPLE_RATE_ATTRIBUTE);
+        if (sampleRate instanceof Double) {
+            json.put("sample_rate", (Double) sampleRate);
         }
+
+        fieldPlan.jackson().writeTo(json);
     }
 }
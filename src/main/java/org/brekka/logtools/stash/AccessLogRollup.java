@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregates requests for {@link AccessLogFilter} by method, normalized URI and status class, keeping a count, the
+ * bytes sent and a {@link LatencyHistogram} for each. {@link #drain()} returns a summary per key and starts a new
+ * interval.
+ *
+ * Memory is bounded by the number of keys, each of which costs about 5KB for its histogram plus up to another 8KB for
+ * its counters on a machine with 64 or more cores, so around 13MB at most with the default of
+ * {@value #DEFAULT_MAX_KEYS}. Once that many keys are held, requests for any new key are counted against a single key
+ * per status class, with the method <code>OTHER</code> and the URI {@link UriNormalizer#OTHER}. A key without any
+ * requests for a whole interval is dropped by {@link #drain()}, along with its URI if no other key uses it, making
+ * room for new ones. A request recorded just as its key is dropped may go uncounted.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class AccessLogRollup {
+
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList(
+            "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"));
+
+    private static final String OTHER_METHOD = "OTHER";
+
+    static final int DEFAULT_MAX_KEYS = 1000;
+
+    private final UriNormalizer normalizer;
+
+    private final int maxKeys;
+
+    private final ConcurrentMap<String, Rollup> rollups = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param maxUris the number of distinct normalized URIs to keep separate
+     */
+    public AccessLogRollup(final int maxUris) {
+        this(maxUris, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * @param maxUris the number of distinct normalized URIs to keep separate
+     * @param maxKeys the number of method, URI and status class combinations to keep separate, not counting the
+     *            overflow key for each status class
+     */
+    public AccessLogRollup(final int maxUris, final int maxKeys) {
+        this.normalizer = new UriNormalizer(maxUris);
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * @param method the request method
+     * @param uri the request URI, which will be normalized
+     * @param status the response status code
+     * @param bytes the response length, zero if unknown
+     * @param micros how long the request took
+     */
+    public void record(final String method, final String uri, final int status, final long bytes,
+            final long micros) {
+        String methodKey = method != null && METHODS.contains(method) ? method : OTHER_METHOD;
+        String uriKey = normalizer.normalize(uri);
+        int statusClass = Math.max(0, Math.min(status / 100, 9));
+        String key = methodKey + ' ' + uriKey + ' ' + statusClass;
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            if (size.incrementAndGet() > maxKeys) {
+                size.decrementAndGet();
+                rollup = overflow(statusClass);
+            } else {
+                Rollup created = new Rollup(methodKey, uriKey, statusClass + "xx", true);
+                rollup = rollups.putIfAbsent(key, created);
+                if (rollup != null) {
+                    size.decrementAndGet();
+                } else {
+                    rollup = created;
+                }
+            }
+        }
+        rollup.count.increment();
+        if (bytes > 0) {
+            rollup.bytes.add(bytes);
+        }
+        rollup.latency.record(micros);
+    }
+
+    /**
+     * The overflow key for the status class, which does not count towards the limit so there are at most ten.
+     */
+    private Rollup overflow(final int statusClass) {
+        String key = OTHER_METHOD + ' ' + UriNormalizer.OTHER + ' ' + statusClass;
+        Rollup rollup = rollups.get(key);
+        if (rollup == null) {
+            Rollup created = new Rollup(OTHER_METHOD, UriNormalizer.OTHER, statusClass + "xx", false);
+            rollup = rollups.putIfAbsent(key, created);
+            if (rollup == null) {
+                rollup = created;
+            }
+        }
+        return rollup;
+    }
+
+    /**
+     * @return a summary of each key seen since the last drain. Keys not seen since then are dropped.
+     */
+    public List<Summary> drain() {
+        List<Summary> summaries = new ArrayList<>();
+        Set<String> uris = new HashSet<>();
+        for (Map.Entry<String, Rollup> entry : rollups.entrySet()) {
+            Rollup rollup = entry.getValue();
+            long count = rollup.count.sumThenReset();
+            if (count == 0) {
+                if (rollups.remove(entry.getKey(), rollup) && rollup.limited) {
+                    size.decrementAndGet();
+                }
+                continue;
+            }
+            uris.add(rollup.uri);
+            LatencyHistogram.Snapshot latency = rollup.latency.snapshotThenReset();
+            summaries.add(new Summary(rollup.method, rollup.uri, rollup.statusClass, count,
+                    rollup.bytes.sumThenReset(), latency));
+        }
+        normalizer.retain(uris);
+        return summaries;
+    }
+
+    private static final class Rollup {
+        private final String method;
+        private final String uri;
+        private final String statusClass;
+        /**
+         * False for an overflow key, which does not count towards the limit.
+         */
+        private final boolean limited;
+        private final StripedCounter count = new StripedCounter();
+        private final StripedCounter bytes = new StripedCounter();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Rollup(final String method, final String uri, final String statusClass, final boolean limited) {
+            this.method = method;
+            this.uri = uri;
+            this.statusClass = statusClass;
+            this.limited = limited;
+        }
+    }
+
+    /**
+     * The totals for one key over an interval. Latencies are in microseconds.
+     */
+    static final class Summary {
+        private final String method;
+        private final String uri;
+        private final String statusClass;
+        private final long count;
+        private final long bytes;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        private Summary(final String method, final String uri, final String statusClass, final long count,
+                final long bytes, final LatencyHistogram.Snapshot latency) {
+            this.method = method;
+            this.uri = uri;
+            this.statusClass = statusClass;
+            this.count = count;
+            this.bytes = bytes;
+            this.p50 = latency.percentile(50);
+            this.p90 = latency.percentile(90);
+            this.p99 = latency.percentile(99);
+            this.max = latency.getMax();
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public String getStatusClass() {
+            return statusClass;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %s %s", method, uri, statusClass);
+        }
+    }
+}
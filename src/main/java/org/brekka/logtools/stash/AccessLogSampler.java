@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests {@link AccessLogFilter} logs. Rules are given as a comma separated list of
+ * <code>[METHOD] [/uri-prefix] [Nxx]=rate</code>, where each of the conditions is optional and the rate is the
+ * fraction of matching requests to keep, for example:
+ *
+ * <pre>
+ * 5xx=1, GET /health 2xx=0.01, /static=0.05
+ * </pre>
+ *
+ * The first matching rule applies, requests matching none are kept. On top of the rules, a maximum number of events
+ * per second can be set. The rates are then scaled down as needed to stay within it, based on the previous second.
+ * Requests matched by a rule with a rate of 1 are never scaled down, so for example errors can always be kept.
+ *
+ * When a key (such as a trace id) is available, the decision is a function of the key so that every event for the
+ * same trace is either kept or dropped together, across threads and servers.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class AccessLogSampler {
+
+    private static final long WINDOW_MILLIS = 1000;
+
+    /**
+     * Fixed point scale for accumulating the expected number of events.
+     */
+    private static final long WEIGHT_SCALE = 1000000;
+
+    private final Rule[] rules;
+
+    private final int maxEventsPerSecond;
+
+    private final AtomicLong windowStart = new AtomicLong();
+
+    private final AtomicLong windowWeight = new AtomicLong();
+
+    /**
+     * The factor applied to the adjustable rates, recalculated each window.
+     */
+    private volatile double adaptiveFactor = 1d;
+
+    /**
+     * @param rules the rules as described above, may be null
+     * @param maxEventsPerSecond the target maximum, zero for no limit
+     */
+    public AccessLogSampler(final String rules, final int maxEventsPerSecond) {
+        this.rules = parse(rules);
+        this.maxEventsPerSecond = maxEventsPerSecond;
+    }
+
+    /**
+     * @param method the request method
+     * @param uri the request URI
+     * @param status the response status code
+     * @param key identifies the trace the request belongs to, null to decide at random
+     * @return the rate at which the request was sampled if it should be logged, otherwise zero.
+     */
+    public double sample(final String method, final String uri, final int status, final String key) {
+        Rule rule = match(method, uri, status);
+        double rate = rule != null ? rule.rate : 1d;
+        if (maxEventsPerSecond > 0 && (rule == null || rule.rate < 1d)) {
+            rate *= adapt(rate);
+        }
+        if (rate <= 0d) {
+            return 0d;
+        }
+        if (rate < 1d && position(key) >= rate) {
+            return 0d;
+        }
+        return rate;
+    }
+
+    /**
+     * @return the current factor applied to the adjustable rates.
+     */
+    double getAdaptiveFactor() {
+        return adaptiveFactor;
+    }
+
+    private Rule match(final String method, final String uri, final int status) {
+        for (Rule rule : rules) {
+            if (rule.matches(method, uri, status)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Account for the expected contribution of this request to the window, rolling the window if it has ended.
+     *
+     * @return the factor to apply.
+     */
+    private double adapt(final double rate) {
+        long now = System.currentTimeMillis();
+        long start = windowStart.get();
+        if (now - start >= WINDOW_MILLIS && windowStart.compareAndSet(start, now)) {
+            double expected = windowWeight.getAndSet(0) / (double) WEIGHT_SCALE;
+            double perSecond = expected * WINDOW_MILLIS / Math.max(WINDOW_MILLIS, now - start);
+            adaptiveFactor = perSecond <= maxEventsPerSecond ? 1d : maxEventsPerSecond / perSecond;
+        }
+        windowWeight.addAndGet((long) (rate * WEIGHT_SCALE));
+        return adaptiveFactor;
+    }
+
+    /**
+     * @return a position in [0, 1) for the key, uniformly distributed and the same wherever it is calculated.
+     */
+    static double position(final String key) {
+        if (key == null) {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+        // FNV-1a followed by the murmur3 finaliser, stable across JVMs unlike relying on String.hashCode alone
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53;
+    }
+
+    private static Rule[] parse(final String value) {
+        List<Rule> rules = new ArrayList<>();
+        if (value != null) {
+            for (String ruleValue : value.split(",")) {
+                ruleValue = ruleValue.trim();
+                if (ruleValue.isEmpty()) {
+                    continue;
+                }
+                int equals = ruleValue.lastIndexOf('=');
+                if (equals < 0) {
+                    throw new IllegalArgumentException(String.format("Sampling rule '%s' has no rate", ruleValue));
+                }
+                double rate = Double.parseDouble(ruleValue.substring(equals + 1).trim());
+                String method = null;
+                String uriPrefix = null;
+                int statusClass = 0;
+                for (String condition : ruleValue.substring(0, equals).trim().split("\\s+")) {
+                    if (condition.isEmpty() || condition.equals("*")) {
+                        continue;
+                    } else if (condition.startsWith("/")) {
+                        uriPrefix = condition;
+                    } else if (condition.length() == 3 && Character.isDigit(condition.charAt(0))
+                            && condition.substring(1).equalsIgnoreCase("xx")) {
+                        statusClass = condition.charAt(0) - '0';
+                    } else {
+                        method = condition.toUpperCase(Locale.ROOT);
+                    }
+                }
+                rules.add(new Rule(method, uriPrefix, statusClass, Math.max(0d, Math.min(1d, rate))));
+            }
+        }
+        return rules.toArray(new Rule[rules.size()]);
+    }
+
+    private static final class Rule {
+        private final String method;
+        private final String uriPrefix;
+        private final int statusClass;
+        private final double rate;
+
+        private Rule(final String method, final String uriPrefix, final int statusClass, final double rate) {
+            this.method = method;
+            this.uriPrefix = uriPrefix;
+            this.statusClass = statusClass;
+            this.rate = rate;
+        }
+
+        private boolean matches(final String requestMethod, final String uri, final int status) {
+            return (method == null || method.equalsIgnoreCase(requestMethod))
+                    && (uriPrefix == null || (uri != null && uri.startsWith(uriPrefix)))
+                    && (statusClass == 0 || status / 100 == statusClass);
+        }
+    }
+}
@@ -16,16 +16,15 @@
 
 package org.brekka.logtools.stash;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.List;
 
+import org.apache.catalina.LifecycleException;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
-import org.apache.log4j.MDC;
 import org.brekka.logtools.SourceHost;
 
 /**
@@ -37,25 +36,130 @@ import org.brekka.logtools.SourceHost;
 @Deprecated
 public class AccessLogValve extends org.apache.catalina.valves.AccessLogValve {
 
+    private static final String FIELDS = JsonWriter.encodeName("@fields");
+    private static final String TIMESTAMP = JsonWriter.encodeName("@timestamp");
+    private static final String SOURCE_HOST = JsonWriter.encodeName("@source_host");
+    private static final String SOURCE_PATH = JsonWriter.encodeName("@source_path");
+    private static final String MESSAGE = JsonWriter.encodeName("@message");
+    private static final String REMOTE_HOST = JsonWriter.encodeName("remote_host");
+    private static final String REMOTE_USER = JsonWriter.encodeName("remote_user");
+    private static final String QUERY = JsonWriter.encodeName("query");
+    private static final String URI = JsonWriter.encodeName("uri");
+    private static final String REQUEST_LENGTH = JsonWriter.encodeName("request_length");
+    private static final String PROTOCOL = JsonWriter.encodeName("protocol");
+    private static final String METHOD = JsonWriter.encodeName("method");
+    private static final String REQUEST_CONTENT_TYPE = JsonWriter.encodeName("request_content_type");
+    private static final String RESPONSE_LENGTH = JsonWriter.encodeName("response_length");
+    private static final String RESPONSE_CONTENT_TYPE = JsonWriter.encodeName("response_content_type");
+    private static final String STATUS_CODE = JsonWriter.encodeName("status_code");
+
+    /**
+     * Encoding buffer per request thread, reused for every event.
+     */
+    private final ThreadLocal<JsonWriter> writers = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter(1024);
+        }
+    };
+
     private String host;
 
     private int port;
 
+    /**
+     * How to talk to the server, 'tcp' (the default), 'nio', 'beats' or 'udp'.
+     */
+    private String protocol;
+
+    /**
+     * Comma separated list of host[:port] to spread events over, instead of the single host.
+     */
+    private String endpoints;
+
+    private String loadBalancing;
+
+    private long resolveIntervalMillis = 60000;
+
     private int connectionTimeoutMillis;
 
     private int socketTimeoutMillis;
 
+    /**
+     * Upper bound on the size of each datagram when using the 'udp' protocol.
+     */
+    private int maxPacketBytes = UdpClient.DEFAULT_MAX_PACKET_BYTES;
+
     private int priority = 4;
 
     private int eventBufferSize = 1000;
+
+    private int batchSize = 1;
+
+    private int lingerMillis;
+
+    private String waitStrategy;
+
+    /**
+     * Whether the dispatcher runs on a platform thread (the default) or a virtual thread, see {@link ThreadMode}.
+     */
+    private String threadMode;
+
+    /**
+     * Connections to write over, each with its own dispatcher thread. Requests are spread over them by thread.
+     */
+    private int lanes = 1;
+
+    /**
+     * What to do with events when the buffer is full, see {@link OverflowPolicy}.
+     */
+    private String overflowPolicy;
+
+    private long blockTimeoutMillis = 100;
+
+    /**
+     * Backoff between attempts to write to a failing server, see {@link CircuitBreaker}.
+     */
+    private long retryInitialMillis = 500;
+
+    private long retryMaxMillis = 30000;
+
+    private int maxRetries;
+
+    private int circuitBreakerThreshold;
+
+    /**
+     * Directory in which to spill events to disk when they cannot be buffered in memory. Disabled if not set.
+     */
+    private String spillDirectory;
+
+    private long spillMaxBytes = 256L * 1024 * 1024;
+
+    private int spillSegmentBytes = 16 * 1024 * 1024;
     
     private String localHostName;
 
-    private volatile Dispatcher dispatcher;
+    /**
+     * Use the dispatcher shared by every appender and valve with the same client settings, see
+     * {@link DispatcherRegistry}.
+     */
+    private boolean shareDispatcher;
+
+    private volatile Dispatcher.Producer producer;
     private SourceHost localHost;
+
+    /**
+     * Set for subclasses that override {@link #processFields(Request, Response, PrintWriter)}, whose fields are then
+     * taken from that method.
+     */
+    private boolean printWriterFields;
     
     private String mdcProperties;
-    private volatile Map<String,String> mdcProps;
+
+    /**
+     * The MDC fields, compiled when the valve is started.
+     */
+    private volatile FieldPlan fieldPlan;
 
     /*
      * (non-Javadoc)
@@ -67,39 +171,38 @@ public class AccessLogValve extends org.apache.catalina.valves.AccessLogValve {
     public void log(Request request, Response response, long time) {
         // Log as normal
         super.log(request, response, time);
-        initDispatcher();
-        initMDCProperties();
+        Dispatcher.Producer producer = initDispatcher();
+        // Server errors are kept longer than the rest by the level-aware overflow policy
+        Severity severity = response.getStatus() >= 500 ? Severity.WARN : Severity.INFO;
+        if (producer.admit(severity) == OverflowPolicy.Admission.DROP) {
+            return;
+        }
         String eventJson = toJsonString(request, response, time);
-        dispatcher.dispatchMessage(eventJson);
+        producer.dispatchMessage(eventJson, severity);
     }
     
 
 
     /**
-     * 
+     * Compile the configured fields, once all of the properties have been set.
      */
-    private void initMDCProperties() {
-        if (mdcProps == null) {
-            synchronized (this) {
-                if (mdcProps == null) {
-                    if (mdcProperties !=null && mdcProperties.length()!=0){
-                        String[] propList = mdcProperties.split(",");
-                        Map<String, String> map = new LinkedHashMap<>(propList.length);
-                        for (final String keyValue : propList) {
-                            String[] split2 = keyValue.split("=");
-                            map.put(split2[0], split2[1]);
-                        }
-                        mdcProps = map;
-                    } else {
-                        mdcProps = Collections.emptyMap();
-                    }
-                }
-            }
-        }
-        
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        fieldPlan = FieldPlan.compile(mdcProperties, null);
+        super.startInternal();
     }
 
-
+    /**
+     * Let go of the dispatcher, closing it unless it is shared with others still running.
+     */
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        if (producer != null) {
+            producer.close();
+            producer = null;
+        }
+    }
 
     /**
      * @param request
@@ -108,66 +211,154 @@ public class AccessLogValve extends org.apache.catalina.valves.AccessLogValve {
      * @return
      */
     protected String toJsonString(Request request, Response response, long time) {
-        StringWriter sw = new StringWriter();
-        try (PrintWriter out = new PrintWriter(sw);) {
-            out.print('{');
-            out.print("\"@fields\": {");
-            processFields(request, response, out);
-            out.print("},");
-            out.printf("\"@timestamp\": \"%tFT%<tT.%<tLZ\",", System.currentTimeMillis());
-            out.printf("\"@source_host\": \"%s\",", localHost.getFqdn());
-            out.printf("\"@source_path\": \"%s\",", request.getRequestURI());
-            // Make sure last (no trailing comma)
-            out.printf("\"@message\": \"%s\"", request.getRequestURL());
-            out.print('}');
+        JsonWriter json = writers.get().reset();
+        json.beginObject();
+        json.encodedName(FIELDS).beginObject();
+        if (printWriterFields) {
+            StringWriter fields = new StringWriter();
+            try (PrintWriter out = new PrintWriter(fields)) {
+                processFields(request, response, out);
+            }
+            json.rawValue(fields.getBuffer());
+        } else {
+            writeFields(request, response, json);
         }
-        return sw.toString();
+        json.endObject();
+        json.encodedName(TIMESTAMP).timestampValue(System.currentTimeMillis());
+        json.encodedName(SOURCE_HOST).value(localHost.getFqdn());
+        json.encodedName(SOURCE_PATH).value(request.getRequestURI());
+        json.encodedName(MESSAGE).value(request.getRequestURL());
+        json.endObject();
+        return json.toString();
+    }
+
+    /**
+     * Write the fields straight into the reusable writer, unless a subclass has overridden
+     * {@link #processFields(Request, Response, PrintWriter)}.
+     */
+    private void writeFields(Request request, Response response, JsonWriter json) {
+        // Request
+        json.encodedName(REMOTE_HOST).value(request.getRemoteHost());
+        json.encodedName(REMOTE_USER).value(request.getRemoteUser());
+        json.encodedName(QUERY).value(request.getQueryString());
+        json.encodedName(URI).value(request.getRequestURI());
+        json.encodedName(REQUEST_LENGTH).value(request.getContentLength());
+        json.encodedName(PROTOCOL).value(request.getProtocol());
+        json.encodedName(METHOD).value(request.getMethod());
+        json.encodedName(REQUEST_CONTENT_TYPE).value(request.getContentType());
+        fieldPlan.writeTo(json);
+
+        // Response
+        json.encodedName(RESPONSE_LENGTH).value(response.getContentLength());
+        json.encodedName(RESPONSE_CONTENT_TYPE).value(response.getContentType());
+        json.encodedName(STATUS_CODE).value(response.getStatus());
     }
 
     /**
+     * Only called for subclasses that override it, at the cost of a writer per request. Otherwise the same fields are
+     * written without it.
+     *
      * @param request
      * @param response
      */
     protected void processFields(Request request, Response response, PrintWriter out) {
-        // Request
-        out.printf("\"remote_host\": \"%s\",", request.getRemoteHost());
-        out.printf("\"remote_user\": \"%s\",", request.getRemoteUser());
-        out.printf("\"query\": \"%s\",", request.getQueryString());
-        out.printf("\"uri\": \"%s\",", request.getRequestURI());
-        out.printf("\"request_length\": %d,", request.getContentLength());
-        out.printf("\"protocol\": \"%s\",", request.getProtocol());
-        out.printf("\"method\": \"%s\",", request.getMethod());
-        out.printf("\"request_content_type\": \"%s\",", request.getContentType());
-        for (Entry<String,String> mdcEntry : mdcProps.entrySet()){
-            out.printf("\"%s\": \"%s\",", mdcEntry.getKey(), MDC.get(mdcEntry.getValue()));
-        }
+        JsonWriter json = new JsonWriter(512);
+        writeFields(request, response, json);
+        out.print(json.getBuilder());
+    }
 
-        // Response
-        out.printf("\"response_length\": %d,", response.getContentLength());
-        out.printf("\"response_content_type\": \"%s\",", response.getContentType());
-        // Last (no trailing comma)
-        out.printf("\"status_code\": %d", response.getStatus());
+    /**
+     * @return the client related properties, from which the client is created.
+     */
+    private ClientSettings clientSettings() {
+        ClientSettings settings = new ClientSettings();
+        settings.setProtocol(protocol);
+        settings.setHost(host);
+        settings.setPort(port);
+        settings.setEndpoints(endpoints);
+        settings.setLoadBalancing(loadBalancing);
+        settings.setResolveIntervalMillis(resolveIntervalMillis);
+        settings.setConnectionTimeoutMillis(connectionTimeoutMillis);
+        settings.setSocketTimeoutMillis(socketTimeoutMillis);
+        settings.setMaxPacketBytes(maxPacketBytes);
+        settings.setThreadMode(threadMode);
+        return settings;
     }
 
     /**
-     * 
+     * @return the producer, created if this is the first event since the valve was started
      */
-    private void initDispatcher() {
-        if (dispatcher == null) {
+    private Dispatcher.Producer initDispatcher() {
+        Dispatcher.Producer current = producer;
+        if (current == null) {
             synchronized (this) {
-                if (dispatcher == null) {
-                    TCPClient client = new TCPClient(host, port);
-                    client.setConnectionTimeout(connectionTimeoutMillis);
-                    client.setSocketTimeout(socketTimeoutMillis);
-                    dispatcher = new Dispatcher(client, eventBufferSize, priority);
+                current = producer;
+                if (current == null) {
                     if (localHostName != null) {
                         localHost = new SourceHost(localHostName);
                     } else {
                         localHost = new SourceHost();
                     }
+                    if (fieldPlan == null) {
+                        // Not started through the container lifecycle
+                        fieldPlan = FieldPlan.compile(mdcProperties, null);
+                    }
+                    printWriterFields = overridesPrintWriterFields();
+                    // Published last, as logging threads only check the producer before using the rest
+                    if (shareDispatcher) {
+                        producer = DispatcherRegistry.acquire(clientSettings(), getClass().getSimpleName(),
+                                new DispatcherRegistry.Factory() {
+                                    @Override
+                                    public Dispatcher create() {
+                                        return createDispatcher();
+                                    }
+                                });
+                    } else {
+                        producer = createDispatcher().producer(getClass().getSimpleName());
+                    }
+                    current = producer;
                 }
             }
         }
+        return current;
+    }
+
+    private Dispatcher createDispatcher() {
+        List<Client> clients = ClientFactory.create(clientSettings(), lanes);
+        SpillJournal journal = null;
+        if (spillDirectory != null) {
+            try {
+                journal = new SpillJournal(new File(spillDirectory), spillSegmentBytes, spillMaxBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open spill journal", e);
+            }
+        }
+        Dispatcher dispatcher = new Dispatcher(clients, eventBufferSize, priority, ThreadMode.forName(threadMode));
+        dispatcher.setSpillJournal(journal);
+        dispatcher.setBatchSize(batchSize);
+        dispatcher.setLingerMillis(lingerMillis);
+        dispatcher.setWaitStrategy(WaitStrategy.forName(waitStrategy));
+        dispatcher.setOverflowPolicy(OverflowPolicy.forName(overflowPolicy));
+        dispatcher.setBlockTimeoutMillis(blockTimeoutMillis);
+        dispatcher.setCircuitBreaker(new CircuitBreaker(retryInitialMillis, retryMaxMillis, circuitBreakerThreshold));
+        dispatcher.setMaxRetries(maxRetries);
+        return dispatcher;
+    }
+
+    /**
+     * @return true if this is a subclass that overrides {@link #processFields(Request, Response, PrintWriter)}, which
+     *         the writer based encoding would bypass.
+     */
+    private boolean overridesPrintWriterFields() {
+        for (Class<?> type = getClass(); type != AccessLogValve.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod("processFields", Request.class, Response.class, PrintWriter.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // Not in this class, try its parent
+            }
+        }
+        return false;
     }
 
     /**
@@ -200,6 +391,68 @@ public class AccessLogValve extends org.apache.catalina.valves.AccessLogValve {
         this.port = port;
     }
 
+    /**
+     * @return the protocol
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @param protocol
+     *            the client protocol to use, 'tcp' (the default), 'nio', 'beats' (for the logstash beats input) or
+     *            'udp' (fire-and-forget, events may be lost)
+     */
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return the endpoints
+     */
+    public String getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @param endpoints
+     *            comma separated list of host[:port] to use instead of host. Names resolving to several addresses
+     *            will have a connection to each.
+     */
+    public void setEndpoints(String endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @return the loadBalancing
+     */
+    public String getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * @param loadBalancing
+     *            how to spread events over the endpoints, 'round-robin' (the default) or 'least-outstanding'
+     */
+    public void setLoadBalancing(String loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    /**
+     * @return the resolveIntervalMillis
+     */
+    public long getResolveIntervalMillis() {
+        return resolveIntervalMillis;
+    }
+
+    /**
+     * @param resolveIntervalMillis
+     *            how often to re-resolve the endpoint names
+     */
+    public void setResolveIntervalMillis(long resolveIntervalMillis) {
+        this.resolveIntervalMillis = resolveIntervalMillis;
+    }
+
     /**
      * @return the connectionTimeoutMillis
      */
@@ -230,6 +483,23 @@ public class AccessLogValve extends org.apache.catalina.valves.AccessLogValve {
         this.socketTimeoutMillis = socketTimeoutMillis;
     }
 
+    /**
+     * @return the maxPacketBytes
+     */
+    public int getMaxPacketBytes() {
+        return maxPacketBytes;
+    }
+
+    /**
+     * @param maxPacketBytes
+     *            the largest datagram to send when using the 'udp' protocol. Several events are packed into each
+     *            datagram up to this size, keep it below the path MTU to avoid fragmentation. An event larger than
+     *            this is dropped.
+     */
+    public void setMaxPacketBytes(int maxPacketBytes) {
+        this.maxPacketBytes = maxPacketBytes;
+    }
+
     /**
      * @return the eventBufferSize
      */
@@ -245,6 +515,242 @@ public class AccessLogValve extends org.apache.catalina.valves.AccessLogValve {
         this.eventBufferSize = eventBufferSize;
     }
 
+    /**
+     * @return the batchSize
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            the maximum number of events to write to the server per flush
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the lingerMillis
+     */
+    public int getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * @param lingerMillis
+     *            how long to wait for a batch to fill before writing it
+     */
+    public void setLingerMillis(int lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * @return the waitStrategy
+     */
+    public String getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @param waitStrategy
+     *            how the dispatcher thread waits for events, one of 'busy-spin', 'yield' or 'park' (the default)
+     */
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return the threadMode
+     */
+    public String getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * @param threadMode
+     *            'platform' (the default) or 'virtual' to run the dispatcher and connection pool tasks on virtual
+     *            threads, when the JVM has them (Java 21 onwards). Platform threads are used otherwise.
+     */
+    public void setThreadMode(String threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * @return the lanes
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @param lanes
+     *            the number of connections and dispatcher threads to spread the access log over, the
+     *            eventBufferSize being split between them. With endpoints, the dispatcher threads share the one pool
+     *            of connections.
+     */
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * @return the overflowPolicy
+     */
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy
+     *            what to do when the event buffer is full, one of 'drop-newest' (the default), 'drop-oldest',
+     *            'block' or 'level-aware'
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the blockTimeoutMillis
+     */
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    /**
+     * @param blockTimeoutMillis
+     *            how long the 'block' overflow policy waits for space before dropping the event
+     */
+    public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * @return the retryInitialMillis
+     */
+    public long getRetryInitialMillis() {
+        return retryInitialMillis;
+    }
+
+    /**
+     * @param retryInitialMillis
+     *            upper bound of the random delay before the first retry when the server cannot be written to, doubling
+     *            with each consecutive failure. No retry comes sooner than half of this.
+     */
+    public void setRetryInitialMillis(long retryInitialMillis) {
+        this.retryInitialMillis = retryInitialMillis;
+    }
+
+    /**
+     * @return the retryMaxMillis
+     */
+    public long getRetryMaxMillis() {
+        return retryMaxMillis;
+    }
+
+    /**
+     * @param retryMaxMillis
+     *            cap on the delay between retries
+     */
+    public void setRetryMaxMillis(long retryMaxMillis) {
+        this.retryMaxMillis = retryMaxMillis;
+    }
+
+    /**
+     * @return the maxRetries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries
+     *            failed attempts after which a batch of events is spilled or dropped, zero to retry until closed (the
+     *            default)
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the circuitBreakerThreshold
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * @param circuitBreakerThreshold
+     *            consecutive failures after which new events are refused until the server can be written to again,
+     *            zero to keep queueing them (the default)
+     */
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    /**
+     * @return the shareDispatcher
+     */
+    public boolean isShareDispatcher() {
+        return shareDispatcher;
+    }
+
+    /**
+     * @param shareDispatcher
+     *            true to share one connection, dispatcher thread and buffer with every other appender and valve that
+     *            sends to the same place with the same client settings and also shares. The dispatcher options
+     *            (buffer size, batching, overflow, retries and spilling) are those of whichever creates it first.
+     */
+    public void setShareDispatcher(boolean shareDispatcher) {
+        this.shareDispatcher = shareDispatcher;
+    }
+
+    /**
+     * @return the spillDirectory
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @param spillDirectory
+     *            directory used to journal events to disk while the server is unavailable. Each dispatcher needs a
+     *            directory of its own; starting fails while another journal holds it, whether in this process or
+     *            another.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return the spillMaxBytes
+     */
+    public long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+
+    /**
+     * @param spillMaxBytes
+     *            the maximum amount of disk space the spill journal may use
+     */
+    public void setSpillMaxBytes(long spillMaxBytes) {
+        this.spillMaxBytes = spillMaxBytes;
+    }
+
+    /**
+     * @return the spillSegmentBytes
+     */
+    public int getSpillSegmentBytes() {
+        return spillSegmentBytes;
+    }
+
+    /**
+     * @param spillSegmentBytes
+     *            the size of each spill journal file, which also limits the size of a single spilled event
+     */
+    public void setSpillSegmentBytes(int spillSegmentBytes) {
+        this.spillSegmentBytes = spillSegmentBytes;
+    }
+
     /**
      * @return the priority
      */
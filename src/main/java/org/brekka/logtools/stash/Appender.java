@@ -16,18 +16,20 @@
 
 package org.brekka.logtools.stash;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.Collections;
-import java.util.Date;
-import java.util.LinkedHashMap;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.AppenderSkeleton;
-import org.apache.log4j.MDC;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 import org.brekka.logtools.SourceHost;
@@ -54,14 +56,100 @@ public class Appender extends AppenderSkeleton {
      */
     private int port;
 
+    /**
+     * How to talk to the server, 'tcp' (the default), 'nio', 'beats' or 'udp'.
+     */
+    private String protocol;
+
+    /**
+     * Comma separated list of host[:port] to spread events over, instead of the single host.
+     */
+    private String endpoints;
+
+    private String loadBalancing;
+
+    private long resolveIntervalMillis = 60000;
+
     private int connectionTimeoutMillis;
 
     private int socketTimeoutMillis;
 
+    /**
+     * Upper bound on the size of each datagram when using the 'udp' protocol.
+     */
+    private int maxPacketBytes = UdpClient.DEFAULT_MAX_PACKET_BYTES;
+
     private int priority = 4;
 
     private int eventBufferSize = 1000;
 
+    private int batchSize = 1;
+
+    private int lingerMillis;
+
+    private String waitStrategy;
+
+    /**
+     * Whether the dispatcher runs on a platform thread (the default) or a virtual thread, see {@link ThreadMode}.
+     */
+    private String threadMode;
+
+    /**
+     * Connections to write over, each with its own share of the buffer and its own dispatcher thread.
+     */
+    private int lanes = 1;
+
+    /**
+     * Keeps events with the same value in order across threads when there are several lanes.
+     */
+    private String laneKey;
+
+    /**
+     * What to do with events when the buffer is full, see {@link OverflowPolicy}.
+     */
+    private String overflowPolicy;
+
+    private long blockTimeoutMillis = 100;
+
+    /**
+     * Backoff between attempts to write to a failing server, see {@link CircuitBreaker}.
+     */
+    private long retryInitialMillis = 500;
+
+    private long retryMaxMillis = 30000;
+
+    private int maxRetries;
+
+    private int circuitBreakerThreshold;
+
+    /**
+     * Directory in which to spill events to disk when they cannot be buffered in memory. Disabled if not set.
+     */
+    private String spillDirectory;
+
+    private long spillMaxBytes = 256L * 1024 * 1024;
+
+    private int spillSegmentBytes = 16 * 1024 * 1024;
+
+    /**
+     * How many distinct stack traces to keep rendered.
+     */
+    private int stackTraceCacheSize = 256;
+
+    /**
+     * When positive, a given stack trace is sent in full at most once per interval, other occurrences only carry its
+     * stack_hash.
+     */
+    private long stackTraceRepeatIntervalMillis;
+
+    /**
+     * When positive, repeats of an event within this long of it being sent are counted rather than sent, see
+     * {@link DuplicateSuppressor}.
+     */
+    private long duplicateWindowMillis;
+
+    private int duplicateMaxKeys = 1024;
+
     /**
      * The name of the application sending the events
      */
@@ -72,14 +160,61 @@ public class Appender extends AppenderSkeleton {
      */
     private String sourceHostName;
 
-    private volatile Dispatcher dispatcher;
+    /**
+     * Use the dispatcher shared by every appender and valve with the same client settings, see
+     * {@link DispatcherRegistry}.
+     */
+    private boolean shareDispatcher;
+
+    private volatile Dispatcher.Producer producer;
     private SourceHost sourceHost;
 
     private String mdcProperties;
-    private volatile Map<String,String> mdcProps;
+
+    /**
+     * The application and MDC fields, compiled by {@link #activateOptions()}.
+     */
+    private volatile FieldPlan fieldPlan;
 
     private ObjectMapper objectMapper;
 
+    private LoggingEventEncoder encoder;
+
+    private StackTraceCache stackTraces;
+
+    /**
+     * Null unless suppressing duplicates.
+     */
+    private volatile DuplicateSuppressor<LoggingEvent> duplicates;
+
+    private ScheduledExecutorService duplicateScheduler;
+
+    /**
+     * Build each event as an {@link ObjectNode} tree via {@link #toObjectNode(LoggingEvent)} rather than streaming it.
+     * Slower, but required by subclasses that customise the tree. Switched on automatically for such subclasses.
+     */
+    private boolean objectTree;
+
+    /**
+     * Queue a snapshot of each event and leave the dispatcher thread to encode it, instead of encoding it on the
+     * logging thread while log4j holds the appender lock.
+     */
+    private boolean deferredEncoding;
+
+    /**
+     * Set for subclasses that override {@link #toJsonString(LoggingEvent)}, whose output must come from that method
+     * on the logging thread rather than from the encoder.
+     */
+    private boolean customJsonString;
+
+    /**
+     * Encode each event as UTF-8 into a buffer taken from {@link #buffers}, the dispatcher writing it to the socket
+     * and handing it back, so that an event without a throwable creates no garbage on its way out.
+     */
+    private boolean garbageFree;
+
+    private BufferPool buffers;
+
     /*
      * (non-Javadoc)
      *
@@ -87,8 +222,12 @@ public class Appender extends AppenderSkeleton {
      */
     @Override
     public void close() {
-        if (dispatcher != null) {
-            dispatcher.close();
+        if (duplicateScheduler != null) {
+            duplicateScheduler.shutdownNow();
+            sendRepeats(duplicates.drainAll());
+        }
+        if (producer != null) {
+            producer.close();
         }
     }
 
@@ -121,6 +260,68 @@ public class Appender extends AppenderSkeleton {
         this.port = port;
     }
 
+    /**
+     * @return the protocol
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @param protocol
+     *            the client protocol to use, 'tcp' (the default), 'nio', 'beats' (for the logstash beats input) or
+     *            'udp' (fire-and-forget, events may be lost)
+     */
+    public void setProtocol(final String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return the endpoints
+     */
+    public String getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @param endpoints
+     *            comma separated list of host[:port] to use instead of host. Names resolving to several addresses
+     *            will have a connection to each.
+     */
+    public void setEndpoints(final String endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @return the loadBalancing
+     */
+    public String getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * @param loadBalancing
+     *            how to spread events over the endpoints, 'round-robin' (the default) or 'least-outstanding'
+     */
+    public void setLoadBalancing(final String loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    /**
+     * @return the resolveIntervalMillis
+     */
+    public long getResolveIntervalMillis() {
+        return resolveIntervalMillis;
+    }
+
+    /**
+     * @param resolveIntervalMillis
+     *            how often to re-resolve the endpoint names
+     */
+    public void setResolveIntervalMillis(final long resolveIntervalMillis) {
+        this.resolveIntervalMillis = resolveIntervalMillis;
+    }
+
     /**
      * @return the connectionTimeoutMillis
      */
@@ -151,6 +352,23 @@ public class Appender extends AppenderSkeleton {
         this.socketTimeoutMillis = socketTimeoutMillis;
     }
 
+    /**
+     * @return the maxPacketBytes
+     */
+    public int getMaxPacketBytes() {
+        return maxPacketBytes;
+    }
+
+    /**
+     * @param maxPacketBytes
+     *            the largest datagram to send when using the 'udp' protocol. Several events are packed into each
+     *            datagram up to this size, keep it below the path MTU to avoid fragmentation. An event larger than
+     *            this is dropped.
+     */
+    public void setMaxPacketBytes(final int maxPacketBytes) {
+        this.maxPacketBytes = maxPacketBytes;
+    }
+
     /**
      * @return the eventBufferSize
      */
@@ -181,6 +399,323 @@ public class Appender extends AppenderSkeleton {
         this.application = application;
     }
 
+    /**
+     * @return the batchSize
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize
+     *            the maximum number of events to write to the server per flush
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the lingerMillis
+     */
+    public int getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * @param lingerMillis
+     *            how long to wait for a batch to fill before writing it
+     */
+    public void setLingerMillis(final int lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * @return the waitStrategy
+     */
+    public String getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * @param waitStrategy
+     *            how the dispatcher thread waits for events, one of 'busy-spin', 'yield' or 'park' (the default)
+     */
+    public void setWaitStrategy(final String waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * @return the threadMode
+     */
+    public String getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * @param threadMode
+     *            'platform' (the default) or 'virtual' to run the dispatcher and connection pool tasks on virtual
+     *            threads, when the JVM has them (Java 21 onwards). Platform threads are used otherwise.
+     */
+    public void setThreadMode(final String threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /**
+     * @return the lanes
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @param lanes
+     *            the number of connections and dispatcher threads to spread events over, the eventBufferSize being
+     *            split between them. Each thread's events are kept in order, but not events from different threads
+     *            unless a laneKey is set. With endpoints, the dispatcher threads share the one pool of connections.
+     */
+    public void setLanes(final int lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * @return the laneKey
+     */
+    public String getLaneKey() {
+        return laneKey;
+    }
+
+    /**
+     * @param laneKey
+     *            'logger' to keep the events of each logger in order, or the name of an MDC property (a request id
+     *            for example) to keep the events with the same value in order. Events without the property are
+     *            kept in order by thread.
+     */
+    public void setLaneKey(final String laneKey) {
+        this.laneKey = laneKey;
+    }
+
+    /**
+     * @return the overflowPolicy
+     */
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @param overflowPolicy
+     *            what to do when the event buffer is full, one of 'drop-newest' (the default), 'drop-oldest',
+     *            'block' or 'level-aware'
+     */
+    public void setOverflowPolicy(final String overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return the blockTimeoutMillis
+     */
+    public long getBlockTimeoutMillis() {
+        return blockTimeoutMillis;
+    }
+
+    /**
+     * @param blockTimeoutMillis
+     *            how long the 'block' overflow policy waits for space before dropping the event
+     */
+    public void setBlockTimeoutMillis(final long blockTimeoutMillis) {
+        this.blockTimeoutMillis = blockTimeoutMillis;
+    }
+
+    /**
+     * @return the retryInitialMillis
+     */
+    public long getRetryInitialMillis() {
+        return retryInitialMillis;
+    }
+
+    /**
+     * @param retryInitialMillis
+     *            upper bound of the random delay before the first retry when the server cannot be written to, doubling
+     *            with each consecutive failure. No retry comes sooner than half of this.
+     */
+    public void setRetryInitialMillis(final long retryInitialMillis) {
+        this.retryInitialMillis = retryInitialMillis;
+    }
+
+    /**
+     * @return the retryMaxMillis
+     */
+    public long getRetryMaxMillis() {
+        return retryMaxMillis;
+    }
+
+    /**
+     * @param retryMaxMillis
+     *            cap on the delay between retries
+     */
+    public void setRetryMaxMillis(final long retryMaxMillis) {
+        this.retryMaxMillis = retryMaxMillis;
+    }
+
+    /**
+     * @return the maxRetries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries
+     *            failed attempts after which a batch of events is spilled or dropped, zero to retry until closed (the
+     *            default)
+     */
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the circuitBreakerThreshold
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * @param circuitBreakerThreshold
+     *            consecutive failures after which new events are refused until the server can be written to again,
+     *            zero to keep queueing them (the default)
+     */
+    public void setCircuitBreakerThreshold(final int circuitBreakerThreshold) {
+        this.circuitBreakerThreshold = circuitBreakerThreshold;
+    }
+
+    /**
+     * @return the shareDispatcher
+     */
+    public boolean isShareDispatcher() {
+        return shareDispatcher;
+    }
+
+    /**
+     * @param shareDispatcher
+     *            true to share one connection, dispatcher thread and buffer with every other appender and valve that
+     *            sends to the same place with the same client settings and also shares. The dispatcher options
+     *            (buffer size, batching, overflow, retries and spilling) are those of whichever creates it first.
+     */
+    public void setShareDispatcher(final boolean shareDispatcher) {
+        this.shareDispatcher = shareDispatcher;
+    }
+
+    /**
+     * @return the spillDirectory
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * @param spillDirectory
+     *            directory used to journal events to disk while the server is unavailable. Each dispatcher needs a
+     *            directory of its own; starting fails while another journal holds it, whether in this process or
+     *            another.
+     */
+    public void setSpillDirectory(final String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return the spillMaxBytes
+     */
+    public long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+
+    /**
+     * @param spillMaxBytes
+     *            the maximum amount of disk space the spill journal may use
+     */
+    public void setSpillMaxBytes(final long spillMaxBytes) {
+        this.spillMaxBytes = spillMaxBytes;
+    }
+
+    /**
+     * @return the spillSegmentBytes
+     */
+    public int getSpillSegmentBytes() {
+        return spillSegmentBytes;
+    }
+
+    /**
+     * @param spillSegmentBytes
+     *            the size of each spill journal file, which also limits the size of a single spilled event
+     */
+    public void setSpillSegmentBytes(final int spillSegmentBytes) {
+        this.spillSegmentBytes = spillSegmentBytes;
+    }
+
+    /**
+     * @return the stackTraceCacheSize
+     */
+    public int getStackTraceCacheSize() {
+        return stackTraceCacheSize;
+    }
+
+    /**
+     * @param stackTraceCacheSize
+     *            the number of distinct stack traces to keep rendered, zero to render every time
+     */
+    public void setStackTraceCacheSize(final int stackTraceCacheSize) {
+        this.stackTraceCacheSize = stackTraceCacheSize;
+    }
+
+    /**
+     * @return the stackTraceRepeatIntervalMillis
+     */
+    public long getStackTraceRepeatIntervalMillis() {
+        return stackTraceRepeatIntervalMillis;
+    }
+
+    /**
+     * @param stackTraceRepeatIntervalMillis
+     *            when positive, send each distinct stack trace in full at most once per interval. Other events with
+     *            the same trace carry just its 'stack_hash' to be matched up with the full one.
+     */
+    public void setStackTraceRepeatIntervalMillis(final long stackTraceRepeatIntervalMillis) {
+        this.stackTraceRepeatIntervalMillis = stackTraceRepeatIntervalMillis;
+    }
+
+    /**
+     * @return the duplicateWindowMillis
+     */
+    public long getDuplicateWindowMillis() {
+        return duplicateWindowMillis;
+    }
+
+    /**
+     * @param duplicateWindowMillis
+     *            when positive, an event is sent but repeats of it (same logger, level, message and exception) within
+     *            this window are only counted. A single follow-up event then carries 'repeat_count' along with the
+     *            'first_timestamp' and 'last_timestamp' of the repeats. Ignored by subclasses that override
+     *            {@link #toJsonString(LoggingEvent)}, which has no way to carry those fields.
+     */
+    public void setDuplicateWindowMillis(final long duplicateWindowMillis) {
+        this.duplicateWindowMillis = duplicateWindowMillis;
+    }
+
+    /**
+     * @return the duplicateMaxKeys
+     */
+    public int getDuplicateMaxKeys() {
+        return duplicateMaxKeys;
+    }
+
+    /**
+     * @param duplicateMaxKeys
+     *            the number of distinct messages to track for duplicate suppression
+     */
+    public void setDuplicateMaxKeys(final int duplicateMaxKeys) {
+        this.duplicateMaxKeys = duplicateMaxKeys;
+    }
+
     /**
      * @return the priority
      */
@@ -227,6 +762,14 @@ public class Appender extends AppenderSkeleton {
         this.sourceHostName = sourceHostName;
     }
 
+    /**
+     * Compile the configured fields, once all of the options have been set.
+     */
+    @Override
+    public void activateOptions() {
+        fieldPlan = FieldPlan.compile(mdcProperties, application);
+    }
+
     @Override
     public boolean requiresLayout() {
         return false;
@@ -235,21 +778,198 @@ public class Appender extends AppenderSkeleton {
     @Override
     protected void append(final LoggingEvent event) {
         initDispatcher();
-        initMDCProperties();
-        String eventJson = toJsonString(event);
-        dispatcher.dispatchMessage(eventJson);
+        DuplicateSuppressor<LoggingEvent> suppressor = duplicates;
+        if (suppressor != null) {
+            Level level = event.getLevel();
+            Object message = event.getMessage();
+            ThrowableInformation throwableInformation = event.getThrowableInformation();
+            if (!suppressor.offer(event.getLoggerName(), level != null ? level.toInt() : 0,
+                    message instanceof String ? (String) message : event.getRenderedMessage(),
+                    throwableInformation != null ? throwableInformation.getThrowable() : null,
+                    event.getTimeStamp(), event)) {
+                return;
+            }
+        }
+        send(event, null, FieldPlan.MDC_CONTEXT);
+    }
+
+    /**
+     * Send the follow-up event for each window of suppressed duplicates that has closed.
+     */
+    protected void flushDuplicates() {
+        DuplicateSuppressor<LoggingEvent> suppressor = duplicates;
+        if (suppressor != null) {
+            sendRepeats(suppressor.drain(System.currentTimeMillis()));
+        }
+    }
+
+    private void sendRepeats(final List<DuplicateSuppressor.Repeat<LoggingEvent>> repeats) {
+        for (DuplicateSuppressor.Repeat<LoggingEvent> repeat : repeats) {
+            LoggingEvent event = repeat.getEvent();
+            // Stamped with the last repeat, so that it follows the storm it summarises
+            LoggingEvent followUp = new LoggingEvent(event.getFQNOfLoggerClass(), event.getLogger(),
+                    repeat.getLastTimestamp(), event.getLevel(), event.getMessage(), event.getThreadName(),
+                    event.getThrowableInformation(), event.getNDC(), event.getLocationInformation(),
+                    event.getProperties());
+            // Only the MDC copy taken when the event was retained, this thread's own MDC having nothing to do with it
+            send(followUp, repeat, FieldPlan.capturedContext(event.getProperties()));
+        }
+    }
+
+    /**
+     * @param context where to look up the MDC fields, which for a follow-up must only be those captured with the event
+     */
+    private void send(final LoggingEvent event, final DuplicateSuppressor.Repeat<?> repeat,
+            final FieldPlan.Context context) {
+        Severity severity = severity(event.getLevel());
+        String key = laneKey(event);
+        OverflowPolicy.Admission admission = producer.admit(severity, key);
+        if (admission == OverflowPolicy.Admission.DROP) {
+            return;
+        }
+        boolean stripStackTrace = admission == OverflowPolicy.Admission.STRIP_STACK_TRACE
+                && event.getThrowableInformation() != null;
+        if (deferredEncoding && !garbageFree && !objectTree && !customJsonString) {
+            producer.dispatchEvent(new Deferred(snapshot(event, !stripStackTrace), captureMdc(context), repeat),
+                    severity, key);
+            return;
+        }
+        LoggingEvent toSend = event;
+        if (stripStackTrace) {
+            toSend = new LoggingEvent(event.getFQNOfLoggerClass(), event.getLogger(), event.getTimeStamp(),
+                    event.getLevel(), event.getMessage(), event.getThreadName(), null, event.getNDC(),
+                    event.getLocationInformation(), event.getProperties());
+        }
+        if (buffers != null && !objectTree) {
+            PooledBuffer buffer = buffers.take();
+            try {
+                encode(toSend, repeat, context, buffer);
+            } catch (final IOException | RuntimeException e) {
+                buffer.release();
+                throw new IllegalStateException("Unable to append event", e);
+            }
+            producer.dispatchEvent(buffer, severity, key);
+            return;
+        }
+        String eventJson = repeat == null ? toJsonString(toSend) : toJsonString(toSend, repeat, context);
+        producer.dispatchMessage(eventJson, severity, key);
+    }
+
+    /**
+     * @return the value keeping the event in order with others, or null to keep it in order with its thread.
+     */
+    private String laneKey(final LoggingEvent event) {
+        String name = laneKey;
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        if ("logger".equals(name)) {
+            return event.getLoggerName();
+        }
+        Object value = event.getMDC(name);
+        return value != null ? value.toString() : null;
+    }
+
+    private static Severity severity(final Level level) {
+        if (level == null) {
+            return Severity.INFO;
+        }
+        int value = level.toInt();
+        if (value >= Level.ERROR_INT) {
+            return Severity.ERROR;
+        }
+        if (value >= Level.WARN_INT) {
+            return Severity.WARN;
+        }
+        if (value >= Level.INFO_INT) {
+            return Severity.INFO;
+        }
+        return Severity.DEBUG;
     }
 
     protected String toJsonString(final LoggingEvent event) {
+        return toJsonString(event, null, FieldPlan.MDC_CONTEXT);
+    }
+
+    private String toJsonString(final LoggingEvent event, final DuplicateSuppressor.Repeat<?> repeat,
+            final FieldPlan.Context context) {
         try {
-            ObjectNode node = toObjectNode(event);
-            String eventJson = objectMapper.writeValueAsString(node);
-            return eventJson;
+            if (objectTree) {
+                ObjectNode node = toObjectNode(event);
+                if (repeat != null) {
+                    ObjectNode fields = (ObjectNode) node.get("@fields");
+                    fieldPlan.jackson().writeTo(fields, context);
+                    fields.put("repeat_count", repeat.getCount());
+                    fields.put("first_timestamp", TimestampEncoder.OFFSET.format(repeat.getFirstTimestamp()));
+                    fields.put("last_timestamp", TimestampEncoder.OFFSET.format(repeat.getLastTimestamp()));
+                }
+                String eventJson = objectMapper.writeValueAsString(node);
+                return eventJson;
+            }
+            return encode(event, repeat, context, null);
         } catch (final IOException e) {
             throw new IllegalStateException("Unable to append event", e);
         }
     }
 
+    /**
+     * Stream the event with the encoder, rendering its stack trace (or a reference to it) along the way.
+     *
+     * @param context where to look up the MDC fields
+     * @param into the buffer to encode into, or null for a string
+     * @return the json, or null if it went into the buffer
+     */
+    private String encode(final LoggingEvent event, final DuplicateSuppressor.Repeat<?> repeat,
+            final FieldPlan.Context context, final PooledBuffer into) throws IOException {
+        String stackTrace = null;
+        String stackHash = null;
+        ThrowableInformation throwableInformation = event.getThrowableInformation();
+        if (throwableInformation != null) {
+            StackTraceCache.CachedTrace reference = stackTraceReference(throwableInformation.getThrowable());
+            if (reference != null) {
+                stackHash = reference.getHash();
+            }
+            if (reference == null
+                    || reference.claimFullTrace(System.currentTimeMillis(), stackTraceRepeatIntervalMillis)) {
+                stackTrace = formatStackTrace(event);
+            }
+        }
+        if (into != null) {
+            encoder.encode(event, stackTrace, stackHash, fieldPlan, repeat, context, into);
+            return null;
+        }
+        return encoder.encode(event, stackTrace, stackHash, fieldPlan, repeat, context);
+    }
+
+    /**
+     * Copy what the encoder needs of the event while still on the logging thread: the thread name is taken now, as is
+     * the rendering of any message that is not a string, since the object could be changed once logged. Strings and
+     * the throwable are kept by reference, so the cost of rendering those is left to the dispatcher thread. The MDC is
+     * left out, its mapped keys being taken separately by {@link #captureMdc(FieldPlan.Context)}.
+     *
+     * @param withThrowable false to leave out the stack trace
+     */
+    private LoggingEvent snapshot(final LoggingEvent event, final boolean withThrowable) {
+        Object message = event.getMessage();
+        if (message != null && !(message instanceof String)) {
+            message = message.toString();
+        }
+        return new LoggingEvent(event.getFQNOfLoggerClass(), event.getLogger(), event.getTimeStamp(),
+                event.getLevel(), message, event.getThreadName(),
+                withThrowable ? event.getThrowableInformation() : null, null, null, null);
+    }
+
+    /**
+     * Copy the values of the mapped MDC keys into a plain map, for encoding the event on the dispatcher thread. That
+     * is read with {@link FieldPlan#capturedContext(Map)}, so a key without a value here stays without one there,
+     * rather than being filled in from the dispatcher thread's own (inherited) MDC.
+     */
+    private Map<String, Object> captureMdc(final FieldPlan.Context context) {
+        Map<String, Object> mdc = new HashMap<>();
+        fieldPlan.copyTo(mdc, context);
+        return mdc;
+    }
+
     /**
      * @param req
      * @param resp
@@ -257,7 +977,7 @@ public class Appender extends AppenderSkeleton {
      */
     protected ObjectNode toObjectNode(final LoggingEvent event) {
         ObjectNode json = objectMapper.createObjectNode();
-        json.putPOJO("@timestamp", new Date(event.getTimeStamp()));
+        json.put("@timestamp", TimestampEncoder.OFFSET.format(event.getTimeStamp()));
         json.put("@source_host", sourceHost.getFqdn());
         json.put("@source_path", event.getLoggerName());
         json.put("@message", Objects.toString(event.getMessage(), null));
@@ -270,14 +990,17 @@ public class Appender extends AppenderSkeleton {
         json.put("logger_name", event.getLoggerName());
         json.put("thread", event.getThreadName());
         json.put("priority", Objects.toString(event.getLevel(), null));
-        if (application != null) {
-            json.put("application", application);
-        }
-        if (event.getThrowableInformation() != null) {
-            json.put("stack_trace", formatStackTrace(event));
-        }
-        for (Entry<String,String> mdcEntry : mdcProps.entrySet()){
-            json.put(mdcEntry.getKey(), Objects.toString(MDC.get(mdcEntry.getValue()), null));
+        fieldPlan.jackson().writeTo(json);
+        ThrowableInformation throwableInformation = event.getThrowableInformation();
+        if (throwableInformation != null) {
+            StackTraceCache.CachedTrace reference = stackTraceReference(throwableInformation.getThrowable());
+            if (reference != null) {
+                json.put("stack_hash", reference.getHash());
+            }
+            if (reference == null
+                    || reference.claimFullTrace(System.currentTimeMillis(), stackTraceRepeatIntervalMillis)) {
+                json.put("stack_trace", formatStackTrace(event));
+            }
         }
     }
 
@@ -288,27 +1011,49 @@ public class Appender extends AppenderSkeleton {
     protected String formatStackTrace(final LoggingEvent event) {
         ThrowableInformation throwableInformation = event.getThrowableInformation();
         Throwable throwable = throwableInformation.getThrowable();
-        StringWriter sw = new StringWriter();
-        try (PrintWriter out = new PrintWriter(sw);) {
-            throwable.printStackTrace(out);
+        StackTraceCache cache = stackTraces;
+        if (cache == null) {
+            return StackTraceCache.render(throwable);
+        }
+        return cache.lookup(throwable).getTrace();
+    }
+
+    /**
+     * @return the cache entry for the throwable if stack traces are being sent by reference, otherwise null.
+     */
+    private StackTraceCache.CachedTrace stackTraceReference(final Throwable throwable) {
+        StackTraceCache cache = stackTraces;
+        if (stackTraceRepeatIntervalMillis <= 0 || cache == null) {
+            return null;
         }
-        String trace = sw.toString();
-        trace = trace.replaceAll("\n", "\\\\n");
-        trace = trace.replaceAll("\t", "\\\\t");
-        return trace;
+        return cache.lookup(throwable);
+    }
+
+    /**
+     * @return the client related properties, from which the client is created.
+     */
+    private ClientSettings clientSettings() {
+        ClientSettings settings = new ClientSettings();
+        settings.setProtocol(protocol);
+        settings.setHost(host);
+        settings.setPort(port);
+        settings.setEndpoints(endpoints);
+        settings.setLoadBalancing(loadBalancing);
+        settings.setResolveIntervalMillis(resolveIntervalMillis);
+        settings.setConnectionTimeoutMillis(connectionTimeoutMillis);
+        settings.setSocketTimeoutMillis(socketTimeoutMillis);
+        settings.setMaxPacketBytes(maxPacketBytes);
+        settings.setThreadMode(threadMode);
+        return settings;
     }
 
     /**
      *
      */
     private void initDispatcher() {
-        if (dispatcher == null) {
+        if (producer == null) {
             synchronized (this) {
-                if (dispatcher == null) {
-                    TCPClient client = new TCPClient(host, port);
-                    client.setConnectionTimeout(connectionTimeoutMillis);
-                    client.setSocketTimeout(socketTimeoutMillis);
-                    dispatcher = new Dispatcher(client, eventBufferSize, priority);
+                if (producer == null) {
                     if (sourceHostName != null) {
                         sourceHost = new SourceHost(sourceHostName);
                     } else {
@@ -317,32 +1062,157 @@ public class Appender extends AppenderSkeleton {
                     objectMapper = new ObjectMapper();
                     objectMapper.setConfig(objectMapper.getSerializationConfig().withoutFeatures(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS));
                     objectMapper.setSerializationInclusion(Include.NON_NULL);
+                    encoder = new LoggingEventEncoder(sourceHost.getFqdn());
+                    if (fieldPlan == null) {
+                        // Not configured through log4j, so activateOptions() was never called
+                        fieldPlan = FieldPlan.compile(mdcProperties, application);
+                    }
+                    stackTraces = new StackTraceCache(stackTraceCacheSize);
+                    if (overrides("toObjectNode", "processFields")) {
+                        objectTree = true;
+                    }
+                    customJsonString = overrides("toJsonString");
+                    if (garbageFree && !customJsonString) {
+                        buffers = BufferPool.forDispatcher(eventBufferSize, lanes, batchSize);
+                    }
+                    if (duplicateWindowMillis > 0 && !customJsonString) {
+                        duplicates = new DuplicateSuppressor<LoggingEvent>(duplicateWindowMillis, duplicateMaxKeys) {
+                            @Override
+                            protected LoggingEvent retain(final LoggingEvent event) {
+                                // Pin down the parts taken from the logging thread, as AsyncAppender does
+                                event.getNDC();
+                                event.getThreadName();
+                                event.getMDCCopy();
+                                return event;
+                            }
+                        };
+                    }
+                    // Published last, as appending threads only check the producer before using the rest
+                    String name = getName() != null ? getName() : getClass().getSimpleName();
+                    if (shareDispatcher) {
+                        producer = DispatcherRegistry.acquire(clientSettings(), name,
+                                new DispatcherRegistry.Factory() {
+                                    @Override
+                                    public Dispatcher create() {
+                                        return createDispatcher();
+                                    }
+                                });
+                    } else {
+                        producer = createDispatcher().producer(name);
+                    }
+                    if (duplicates != null) {
+                        startDuplicateScheduler();
+                    }
                 }
             }
         }
     }
 
+    private Dispatcher createDispatcher() {
+        List<Client> clients = ClientFactory.create(clientSettings(), lanes);
+        SpillJournal journal = null;
+        if (spillDirectory != null) {
+            try {
+                journal = new SpillJournal(new File(spillDirectory), spillSegmentBytes, spillMaxBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to open spill journal", e);
+            }
+        }
+        Dispatcher dispatcher = new Dispatcher(clients, eventBufferSize, priority, ThreadMode.forName(threadMode));
+        dispatcher.setSpillJournal(journal);
+        dispatcher.setBatchSize(batchSize);
+        dispatcher.setLingerMillis(lingerMillis);
+        dispatcher.setWaitStrategy(WaitStrategy.forName(waitStrategy));
+        dispatcher.setOverflowPolicy(OverflowPolicy.forName(overflowPolicy));
+        dispatcher.setBlockTimeoutMillis(blockTimeoutMillis);
+        dispatcher.setCircuitBreaker(new CircuitBreaker(retryInitialMillis, retryMaxMillis, circuitBreakerThreshold));
+        dispatcher.setMaxRetries(maxRetries);
+        return dispatcher;
+    }
+
+    private void startDuplicateScheduler() {
+        duplicateScheduler = Executors.newSingleThreadScheduledExecutor(
+                ThreadMode.forName(threadMode).factory("LogStashDuplicates"));
+        duplicateScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushDuplicates();
+                } catch (RuntimeException e) {
+                    // Keep the schedule going, a failure here would otherwise cancel it
+                    errorHandler.error("Failed to send suppressed duplicates", e, ErrorCode.WRITE_FAILURE);
+                }
+            }
+        }, duplicateWindowMillis, duplicateWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
     /**
-     *
+     * @return true if this is a subclass that overrides one of the named methods, such as the tree building methods
+     * which the streaming encoder would bypass.
      */
-    private void initMDCProperties() {
-        if (mdcProps == null) {
-            synchronized (this) {
-                if (mdcProps == null) {
-                    if (mdcProperties !=null && mdcProperties.length()!=0){
-                        String[] propList = mdcProperties.split(",");
-                        Map<String, String> map = new LinkedHashMap<>(propList.length);
-                        for (final String keyValue : propList) {
-                            String[] split2 = keyValue.split("=");
-                            map.put(split2[0], split2[1]);
-                        }
-                        mdcProps = map;
-                    } else {
-                        mdcProps = Collections.emptyMap();
+    private boolean overrides(final String... names) {
+        for (Class<?> type = getClass(); type != Appender.class; type = type.getSuperclass()) {
+            for (Method method : type.getDeclaredMethods()) {
+                for (String name : names) {
+                    if (method.getName().equals(name)) {
+                        return true;
                     }
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * @return the deferredEncoding
+     */
+    public boolean isDeferredEncoding() {
+        return deferredEncoding;
+    }
+
+    /**
+     * @param deferredEncoding
+     *            true to encode events on the dispatcher thread, the logging thread just taking a snapshot of each.
+     *            The output is the same. Has no effect when building events as a tree (objectTree), or for subclasses
+     *            that override {@link #toJsonString(LoggingEvent)}.
+     */
+    public void setDeferredEncoding(final boolean deferredEncoding) {
+        this.deferredEncoding = deferredEncoding;
+    }
+
+    /**
+     * @return the garbageFree
+     */
+    public boolean isGarbageFree() {
+        return garbageFree;
+    }
+
+    /**
+     * @param garbageFree
+     *            true to encode events straight into pooled byte buffers that are written to the socket as they are,
+     *            so that logging does not keep the collector busy. Takes precedence over deferredEncoding, and has no
+     *            effect when building events as a tree (objectTree) or for subclasses that override
+     *            {@link #toJsonString(LoggingEvent)}. Events with a throwable still create garbage. Only the tcp and
+     *            nio protocols write the buffers as they are; with beats and udp they are decoded into strings on
+     *            the dispatcher thread, so only the logging thread is kept free of garbage.
+     */
+    public void setGarbageFree(final boolean garbageFree) {
+        this.garbageFree = garbageFree;
+    }
+
+    /**
+     * @return the objectTree
+     */
+    public boolean isObjectTree() {
+        return objectTree;
+    }
+
+    /**
+     * @param objectTree
+     *            true to build events via {@link #toObjectNode(LoggingEvent)} instead of the streaming encoder
+     */
+    public void setObjectTree(final boolean objectTree) {
+        this.objectTree = objectTree;
     }
 
     /**
@@ -351,4 +1221,29 @@ public class Appender extends AppenderSkeleton {
     public void setMdcProperties(final String mdcProperties) {
         this.mdcProperties = mdcProperties;
     }
+
+    /**
+     * A snapshot of an event, left for the dispatcher thread to encode.
+     */
+    private final class Deferred implements DeferredEvent {
+        private final LoggingEvent event;
+        private final Map<String, Object> mdc;
+        private final DuplicateSuppressor.Repeat<?> repeat;
+
+        private Deferred(final LoggingEvent event, final Map<String, Object> mdc,
+                final DuplicateSuppressor.Repeat<?> repeat) {
+            this.event = event;
+            this.mdc = mdc;
+            this.repeat = repeat;
+        }
+
+        @Override
+        public String encode() {
+            try {
+                return Appender.this.encode(event, repeat, FieldPlan.capturedContext(mdc), null);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to encode event", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Client speaking the Lumberjack v2 protocol used by the logstash beats input. Each batch is sent as one window of
+ * JSON frames, optionally wrapped in a single zlib compressed frame, and the write only completes once the server has
+ * acknowledged the last sequence number of the window.
+ *
+ * The server may acknowledge part of a window before failing. In that case, when the {@link Dispatcher} retries the
+ * same batch, only the events that were not acknowledged are sent again. The dispatcher reuses its list from one batch
+ * to the next, so this only applies until {@link #beginBatch()} is called for the next batch.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class BeatsClient implements Client {
+
+    static final byte VERSION = '2';
+    static final byte WINDOW_SIZE = 'W';
+    static final byte JSON = 'J';
+    static final byte COMPRESSED = 'C';
+    static final byte ACK = 'A';
+
+    private final SocketAddress socketAddress;
+    private int connectionTimeout = 5000;
+    private int socketTimeout = 10000;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Held for the whole window, including the wait for its acknowledgement.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    private final GrowableBuffer frames = new GrowableBuffer(65536);
+
+    private byte[] compressed = new byte[65536];
+
+    private Socket socket;
+
+    private DataOutputStream out;
+
+    private DataInputStream in;
+
+    /**
+     * The batch that was last partially acknowledged, compared by identity as the dispatcher retries the same list.
+     * Cleared by {@link #beginBatch()}, as the dispatcher also fills that list with its next batch.
+     */
+    private List<String> partialBatch;
+
+    private int partialAcked;
+
+    public BeatsClient(String address, int port) {
+        this.socketAddress = new InetSocketAddress(address, port);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvent(java.lang.String)
+     */
+    @Override
+    public void writeEvent(String line) throws IOException {
+        writeEvents(Collections.singletonList(line));
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvents(java.util.List)
+     */
+    @Override
+    public void writeEvents(List<String> lines) throws IOException {
+        lock.lock();
+        try {
+            int from = 0;
+            if (lines == partialBatch) {
+                from = partialAcked;
+            }
+            partialBatch = null;
+            partialAcked = 0;
+            int count = lines.size() - from;
+            if (count <= 0) {
+                return;
+            }
+            if (out == null) {
+                close();
+                establish();
+            }
+            encodeFrames(lines, from);
+            out.writeByte(VERSION);
+            out.writeByte(WINDOW_SIZE);
+            out.writeInt(count);
+            if (compressionLevel == Deflater.NO_COMPRESSION) {
+                out.write(frames.bytes, 0, frames.length);
+            } else {
+                int length = compress();
+                out.writeByte(VERSION);
+                out.writeByte(COMPRESSED);
+                out.writeInt(length);
+                out.write(compressed, 0, length);
+            }
+            out.flush();
+            int acked = 0;
+            try {
+                while (acked < count) {
+                    acked = readAck(count);
+                }
+            } catch (IOException e) {
+                if (acked > 0) {
+                    partialBatch = lines;
+                    partialAcked = from + acked;
+                }
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#beginBatch()
+     */
+    @Override
+    public void beginBatch() {
+        lock.lock();
+        try {
+            partialBatch = null;
+            partialAcked = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        // The connection is all there is to release
+        close();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                socket = null;
+            }
+            out = null;
+            in = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param connectionTimeout the connectionTimeout to set
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @param socketTimeout the socketTimeout to set, which also bounds the wait for an acknowledgement
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @param compressionLevel zlib level from 0 (send frames uncompressed) to 9
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        lock.lock();
+        try {
+            this.compressionLevel = compressionLevel;
+            deflater.setLevel(compressionLevel);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the socketAddress
+     */
+    public SocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getSocketAddress().toString();
+    }
+
+    private void establish() throws IOException {
+        socket = new Socket();
+        socket.setKeepAlive(true);
+        socket.setSoTimeout(socketTimeout);
+        socket.setTcpNoDelay(true);
+        socket.connect(socketAddress, connectionTimeout);
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64));
+    }
+
+    /**
+     * Encode the events as JSON frames, sequence numbers starting at one for each window.
+     */
+    private void encodeFrames(List<String> lines, int from) {
+        frames.length = 0;
+        int sequence = 1;
+        for (int i = from; i < lines.size(); i++) {
+            byte[] payload = lines.get(i).getBytes(StandardCharsets.UTF_8);
+            frames.ensure(10 + payload.length);
+            frames.put(VERSION);
+            frames.put(JSON);
+            frames.putInt(sequence++);
+            frames.putInt(payload.length);
+            System.arraycopy(payload, 0, frames.bytes, frames.length, payload.length);
+            frames.length += payload.length;
+        }
+    }
+
+    private int compress() {
+        deflater.reset();
+        deflater.setInput(frames.bytes, 0, frames.length);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] expanded = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, expanded, 0, length);
+                compressed = expanded;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return length;
+    }
+
+    /**
+     * Read the next acknowledgement. The server may send several for one window, each covering more of it.
+     *
+     * @return the sequence number acknowledged.
+     */
+    private int readAck(int count) throws IOException {
+        int version = in.read();
+        if (version < 0) {
+            throw new EOFException("Connection to " + socketAddress + " closed before acknowledgement");
+        }
+        int type = in.readUnsignedByte();
+        if (version != VERSION || type != ACK) {
+            throw new ProtocolException(String.format("Unexpected frame '%c%c' from %s",
+                    (char) version, (char) type, socketAddress));
+        }
+        int sequence = in.readInt();
+        if (sequence < 0 || sequence > count) {
+            throw new ProtocolException(String.format("Acknowledgement %d outside window of %d from %s",
+                    sequence, count, socketAddress));
+        }
+        return sequence;
+    }
+
+    /**
+     * Reusable byte buffer for assembling frames.
+     */
+    private static final class GrowableBuffer {
+        private byte[] bytes;
+        private int length;
+
+        private GrowableBuffer(int capacity) {
+            this.bytes = new byte[capacity];
+        }
+
+        private void ensure(int additional) {
+            if (length + additional > bytes.length) {
+                byte[] expanded = new byte[Math.max(bytes.length * 2, length + additional)];
+                System.arraycopy(bytes, 0, expanded, 0, length);
+                bytes = expanded;
+            }
+        }
+
+        private void put(byte b) {
+            bytes[length++] = b;
+        }
+
+        private void putInt(int value) {
+            bytes[length++] = (byte) (value >>> 24);
+            bytes[length++] = (byte) (value >>> 16);
+            bytes[length++] = (byte) (value >>> 8);
+            bytes[length++] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link Client} that can write events straight from the {@link PooledBuffer}s they were encoded into, without
+ * them being turned into strings first.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+interface BufferClient extends Client {
+
+    /**
+     * Write the events, each followed by a newline, as {@link #writeEvents(List)} does. The buffers are left for the
+     * caller to release.
+     */
+    void writeBuffers(List<PooledBuffer> buffers) throws IOException;
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded pool of {@link PooledBuffer}s, shared by the threads that log (taking) and the dispatcher threads (giving
+ * back). It is an array based queue in the style of Dmitry Vyukov's bounded MPMC queue: each slot carries a sequence
+ * saying whether it is ready to be taken or filled, so taking and releasing are a few atomic operations with no locks
+ * and, once the pool holds enough buffers, no allocation.
+ *
+ * An empty pool hands out a new buffer, and a full one leaves the buffer released to it for the collector, as do
+ * buffers that have grown beyond the retained size so that one huge event does not pin its memory.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class BufferPool {
+
+    private final PooledBuffer[] slots;
+
+    /**
+     * Per-slot sequence. A slot can be filled by the releaser at position <code>p</code> when its sequence equals
+     * <code>p</code>, and taken by the taker at position <code>p</code> when it equals <code>p + 1</code>.
+     */
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong takePosition = new AtomicLong();
+
+    private final AtomicLong releasePosition = new AtomicLong();
+
+    private final int initialBytes;
+
+    private final int maxRetainedBytes;
+
+    /**
+     * @param requestedCapacity the number of buffers to hold on to, rounded up to a power of two
+     * @param initialBytes the size of each new buffer
+     * @param maxRetainedBytes buffers grown larger than this are not returned to the pool
+     */
+    public BufferPool(final int requestedCapacity, final int initialBytes, final int maxRetainedBytes) {
+        int capacity = 1;
+        while (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.slots = new PooledBuffer[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.initialBytes = initialBytes;
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * Create a pool for an appender feeding a {@link Dispatcher}, big enough to cover every event that can be queued or
+     * in a batch at once. Buffers start at 512 bytes and are not kept once grown beyond 64KB.
+     */
+    static BufferPool forDispatcher(final int eventBufferSize, final int lanes, final int batchSize) {
+        return new BufferPool(eventBufferSize + Math.max(1, lanes) * batchSize, 512, 64 * 1024);
+    }
+
+    /**
+     * @return an empty buffer, from the pool if it has one.
+     */
+    public PooledBuffer take() {
+        PooledBuffer buffer = poll();
+        if (buffer == null) {
+            buffer = new PooledBuffer(this, initialBytes);
+        }
+        buffer.taken();
+        return buffer;
+    }
+
+    /**
+     * Called by {@link PooledBuffer#release()}.
+     */
+    void release(final PooledBuffer buffer) {
+        if (buffer.capacity() > maxRetainedBytes) {
+            return;
+        }
+        long position = releasePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (releasePosition.compareAndSet(position, position + 1)) {
+                    slots[index] = buffer;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            } else if (diff < 0) {
+                // Full
+                return;
+            }
+            position = releasePosition.get();
+        }
+    }
+
+    private PooledBuffer poll() {
+        long position = takePosition.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (takePosition.compareAndSet(position, position + 1)) {
+                    PooledBuffer buffer = slots[index];
+                    slots[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    return buffer;
+                }
+            } else if (diff < 0) {
+                // Empty
+                return null;
+            }
+            position = takePosition.get();
+        }
+    }
+
+    /**
+     * @return the number of buffers held, which may be out of date by the time it is used.
+     */
+    public int size() {
+        long size = releasePosition.get() - takePosition.get();
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+}
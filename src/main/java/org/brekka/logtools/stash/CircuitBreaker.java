@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how long the {@link Dispatcher} waits between attempts to write to a failing server, and whether new events
+ * should be accepted meanwhile.
+ *
+ * Delays grow exponentially from the initial delay up to the maximum, each one picked uniformly at random between
+ * half the initial delay and that bound, so a fleet of applications that lost the server at the same moment do not all
+ * reconnect in lockstep when it returns. The floor keeps a failing server from being retried straight away, as it
+ * could be with the jitter going all the way down to zero.
+ *
+ * If a failure threshold is set, the breaker opens after that many consecutive failures. While it is open, producers
+ * are refused rather than queueing events that cannot be delivered. The dispatcher thread keeps retrying at the
+ * backoff intervals, each retry being a half-open probe, and the first success closes the breaker again. Only the
+ * dispatcher threads report successes and failures, a striped dispatcher sharing the one breaker between its lanes;
+ * anyone may read the state.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN;
+    }
+
+    /**
+     * Doublings beyond this would overflow, and are well past any sensible maximum anyway.
+     */
+    private static final int MAX_SHIFT = 30;
+
+    private final long initialDelayMillis;
+
+    private final long maxDelayMillis;
+
+    /**
+     * Consecutive failures after which to open, zero to never open.
+     */
+    private final int failureThreshold;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile State state = State.CLOSED;
+
+    public CircuitBreaker(final long initialDelayMillis, final long maxDelayMillis, final int failureThreshold) {
+        this.initialDelayMillis = Math.max(1, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @return false while open, when new events should be refused.
+     */
+    public boolean allowsDispatch() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Dispatcher threads only. Called before each attempt to write.
+     */
+    public void beforeAttempt() {
+        if (state == State.OPEN) {
+            state = State.HALF_OPEN;
+        }
+    }
+
+    /**
+     * Dispatcher threads only.
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        state = State.CLOSED;
+    }
+
+    /**
+     * Dispatcher threads only. Record a failed attempt.
+     *
+     * @return how long to wait before the next attempt, in milliseconds.
+     */
+    public long onFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (failureThreshold > 0 && failures >= failureThreshold) {
+            state = State.OPEN;
+        }
+        return backoff(failures, initialDelayMillis, maxDelayMillis);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @param attempt the number of consecutive failures so far, from one
+     * @return a random delay between <code>initial / 2</code> (at least one) and
+     *         <code>min(max, initial * 2^(attempt - 1))</code>.
+     */
+    static long backoff(final int attempt, final long initialDelayMillis, final long maxDelayMillis) {
+        int shift = Math.min(Math.max(attempt - 1, 0), MAX_SHIFT);
+        long bound = initialDelayMillis << shift;
+        if (bound > maxDelayMillis || bound <= 0) {
+            bound = maxDelayMillis;
+        }
+        long floor = Math.max(1, initialDelayMillis / 2);
+        if (floor >= bound) {
+            return bound;
+        }
+        return floor + ThreadLocalRandom.current().nextLong(bound - floor + 1);
+    }
+}
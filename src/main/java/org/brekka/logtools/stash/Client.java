@@ -17,6 +17,7 @@
 package org.brekka.logtools.stash;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * A basic client interface for writing events.
@@ -26,7 +27,29 @@ import java.io.IOException;
 interface Client {
 
     void writeEvent(String line) throws IOException;
-    
+
+    /**
+     * Write a batch of events, flushing only once the whole batch has been written. If an exception is thrown
+     * then none of the batch should be considered delivered.
+     */
+    void writeEvents(List<String> lines) throws IOException;
+
+    /**
+     * Start on a new batch, forgetting any progress kept from a failed write so that a retry of the previous batch
+     * could resume. Called by the {@link Dispatcher} before its first attempt at each batch, whether the one before
+     * was written or given up on.
+     */
+    void beginBatch();
+
+    /**
+     * Drop the connection, if any. The client stays usable, connecting again on the next write.
+     */
     void close();
 
-}
\ No newline at end of file
+    /**
+     * Close the client for good, releasing any background threads as well as the connection. Called by the
+     * {@link Dispatcher} once it has finished with the client.
+     */
+    void shutdown();
+
+}
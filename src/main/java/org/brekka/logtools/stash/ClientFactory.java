@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates the {@link Client} matching the 'protocol' configured on an appender or valve.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class ClientFactory {
+
+    /**
+     * Blocking socket client, the default.
+     */
+    static final String TCP = "tcp";
+
+    /**
+     * Non-blocking socket channel client.
+     */
+    static final String NIO = "nio";
+
+    /**
+     * Lumberjack v2, for the logstash beats input.
+     */
+    static final String BEATS = "beats";
+
+    /**
+     * Fire-and-forget datagrams, for the logstash udp input.
+     */
+    static final String UDP = "udp";
+
+    private ClientFactory() {
+    }
+
+    /**
+     * Create a client for the configuration of an appender/valve. If a list of endpoints has been given, the result
+     * will be a {@link PooledClient} over those, otherwise a single client for the host/port.
+     */
+    static Client create(final ClientSettings settings) {
+        if (settings.isPooled()) {
+            return new PooledClient(settings);
+        }
+        return createSingle(settings);
+    }
+
+    /**
+     * Create a client for each lane of a striped {@link Dispatcher}, every one with its own connection. A pool of
+     * endpoints is instead shared by all the lanes, so that its balancing sees every write in progress and there is
+     * just the one set of background threads.
+     *
+     * @param lanes the number of clients, at least one is always created
+     */
+    static List<Client> create(final ClientSettings settings, final int lanes) {
+        List<Client> clients = new ArrayList<>();
+        if (settings.isPooled()) {
+            PooledClient pool = new PooledClient(settings);
+            clients.add(pool);
+            while (clients.size() < lanes) {
+                clients.add(pool.share());
+            }
+            return clients;
+        }
+        do {
+            clients.add(create(settings));
+        } while (clients.size() < lanes);
+        return clients;
+    }
+
+    /**
+     * Create a client for just the host/port of the settings.
+     */
+    static Client createSingle(final ClientSettings settings) {
+        String protocol = settings.getProtocol();
+        String name = protocol == null ? TCP : protocol.trim().toLowerCase(Locale.ROOT);
+        String host = settings.getHost();
+        int port = settings.getPort();
+        switch (name) {
+            case TCP:
+            case "":
+                TCPClient tcpClient = new TCPClient(host, port);
+                tcpClient.setConnectionTimeout(settings.getConnectionTimeoutMillis());
+                tcpClient.setSocketTimeout(settings.getSocketTimeoutMillis());
+                return tcpClient;
+            case NIO:
+                NioClient nioClient = new NioClient(host, port);
+                nioClient.setConnectionTimeout(settings.getConnectionTimeoutMillis());
+                nioClient.setSocketTimeout(settings.getSocketTimeoutMillis());
+                return nioClient;
+            case BEATS:
+                BeatsClient beatsClient = new BeatsClient(host, port);
+                beatsClient.setConnectionTimeout(settings.getConnectionTimeoutMillis());
+                beatsClient.setSocketTimeout(settings.getSocketTimeoutMillis());
+                return beatsClient;
+            case UDP:
+                UdpClient udpClient = new UdpClient(host, port);
+                udpClient.setMaxPacketBytes(settings.getMaxPacketBytes());
+                return udpClient;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown protocol '%s'", protocol));
+        }
+    }
+}
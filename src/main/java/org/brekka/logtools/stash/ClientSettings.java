@@ -0,0 +1,257 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.Objects;
+
+/**
+ * The client related configuration of an appender or valve, from which {@link ClientFactory} creates the client.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class ClientSettings {
+
+    private String protocol;
+
+    private String host;
+
+    private int port;
+
+    private String endpoints;
+
+    private String loadBalancing;
+
+    private long resolveIntervalMillis = 60000;
+
+    private int connectionTimeoutMillis;
+
+    private int socketTimeoutMillis;
+
+    private int maxPacketBytes = UdpClient.DEFAULT_MAX_PACKET_BYTES;
+
+    /**
+     * For the background tasks of pooled clients, see {@link ThreadMode}.
+     */
+    private String threadMode;
+
+    /**
+     * @return a copy of these settings for a single one of the endpoints.
+     */
+    ClientSettings forAddress(final String host, final int port) {
+        ClientSettings copy = new ClientSettings();
+        copy.protocol = protocol;
+        copy.host = host;
+        copy.port = port;
+        copy.connectionTimeoutMillis = connectionTimeoutMillis;
+        copy.socketTimeoutMillis = socketTimeoutMillis;
+        copy.maxPacketBytes = maxPacketBytes;
+        copy.threadMode = threadMode;
+        return copy;
+    }
+
+    /**
+     * @return true if the events should be spread over several endpoints.
+     */
+    boolean isPooled() {
+        return endpoints != null && !endpoints.trim().isEmpty();
+    }
+
+    /**
+     * @return the protocol
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @param protocol the protocol to set
+     */
+    public void setProtocol(final String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * @return the host
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @param host the host to set
+     */
+    public void setHost(final String host) {
+        this.host = host;
+    }
+
+    /**
+     * @return the port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @param port the port to set
+     */
+    public void setPort(final int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return the endpoints
+     */
+    public String getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @param endpoints the endpoints to set
+     */
+    public void setEndpoints(final String endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /**
+     * @return the loadBalancing
+     */
+    public String getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * @param loadBalancing the loadBalancing to set
+     */
+    public void setLoadBalancing(final String loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    /**
+     * @return the resolveIntervalMillis
+     */
+    public long getResolveIntervalMillis() {
+        return resolveIntervalMillis;
+    }
+
+    /**
+     * @param resolveIntervalMillis the resolveIntervalMillis to set
+     */
+    public void setResolveIntervalMillis(final long resolveIntervalMillis) {
+        this.resolveIntervalMillis = resolveIntervalMillis;
+    }
+
+    /**
+     * @return the connectionTimeoutMillis
+     */
+    public int getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    /**
+     * @param connectionTimeoutMillis the connectionTimeoutMillis to set
+     */
+    public void setConnectionTimeoutMillis(final int connectionTimeoutMillis) {
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+    }
+
+    /**
+     * @return the socketTimeoutMillis
+     */
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    /**
+     * @param socketTimeoutMillis the socketTimeoutMillis to set
+     */
+    public void setSocketTimeoutMillis(final int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    /**
+     * @return the maxPacketBytes
+     */
+    public int getMaxPacketBytes() {
+        return maxPacketBytes;
+    }
+
+    /**
+     * @param maxPacketBytes the maxPacketBytes to set
+     */
+    public void setMaxPacketBytes(final int maxPacketBytes) {
+        this.maxPacketBytes = maxPacketBytes;
+    }
+
+    /**
+     * @return the threadMode
+     */
+    public String getThreadMode() {
+        return threadMode;
+    }
+
+    /**
+     * @param threadMode the threadMode to set
+     */
+    public void setThreadMode(final String threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+        return Objects.hash(protocol, host, port, endpoints, loadBalancing, resolveIntervalMillis,
+                connectionTimeoutMillis, socketTimeoutMillis, maxPacketBytes, threadMode);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ClientSettings)) {
+            return false;
+        }
+        ClientSettings other = (ClientSettings) obj;
+        return Objects.equals(protocol, other.protocol)
+                && Objects.equals(host, other.host)
+                && port == other.port
+                && Objects.equals(endpoints, other.endpoints)
+                && Objects.equals(loadBalancing, other.loadBalancing)
+                && resolveIntervalMillis == other.resolveIntervalMillis
+                && connectionTimeoutMillis == other.connectionTimeoutMillis
+                && socketTimeoutMillis == other.socketTimeoutMillis
+                && maxPacketBytes == other.maxPacketBytes
+                && Objects.equals(threadMode, other.threadMode);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        String protocolName = protocol != null ? protocol : ClientFactory.TCP;
+        if (isPooled()) {
+            return protocolName + "://" + endpoints;
+        }
+        return protocolName + "://" + host + ":" + port;
+    }
+}
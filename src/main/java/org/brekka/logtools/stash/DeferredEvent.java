@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+/**
+ * An event queued with the {@link Dispatcher} before being encoded, so that the cost of building the json falls on
+ * the dispatcher thread rather than the thread that logged it. Whatever the encoding needs from the logging thread
+ * (its name, the MDC) must have been captured before the event was queued.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+interface DeferredEvent {
+
+    /**
+     * Called once, by the dispatcher thread, or by the logging thread if the event has to be spilled.
+     *
+     * @return the json document for the event
+     * @throws RuntimeException if the event cannot be encoded, in which case it is dropped
+     */
+    String encode();
+}
@@ -16,18 +16,52 @@
 
 package org.brekka.logtools.stash;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Dispatches event messages to logstash using the specified client. Messages will be queued for sending in case
  * the server is temporarily unavailable. A sensible limit is set on the number of messages that can be buffered. If
- * that limit is exceeded, new messages will start being dropped.
+ * that limit is exceeded, the {@link #setOverflowPolicy(OverflowPolicy) overflow policy} decides what gives: by default
+ * new messages are dropped. Policies that evict queued events put the incoming event in a small overflow queue and
+ * leave the dispatcher thread to discard the evicted events as it next drains, sending the overflow once it has. Those
+ * events can therefore be sent ahead of some queued before them; each carries its own timestamp.
+ *
+ * The dispatcher thread drains the queue in batches of up to {@link #setBatchSize(int) batchSize} events, waiting at
+ * most {@link #setLingerMillis(int) lingerMillis} for a batch to fill. With the default batch size of one, each event
+ * is written individually, as before.
+ *
+ * Given more than one client, the dispatcher is striped into lanes, one per client, each with its own share of the
+ * buffer and its own thread, so that throughput is no longer bound by what one thread and one connection can manage.
+ * Producers pick a lane by a hash of their thread, so threads do not contend on a single queue and each thread's
+ * events stay in order. Events given a key go to the lane for that key instead, keeping events with the same key in
+ * order across threads. There is no ordering between lanes. The overflow policy applies to each lane on its own,
+ * while the circuit breaker, journal and metrics are shared; the first lane replays the journal.
+ *
+ * When the client fails, the batch is retried with capped exponential backoff and jitter, optionally opening a circuit
+ * breaker so that new events are refused while the server is unreachable (see {@link CircuitBreaker}), and optionally
+ * giving up on the batch after {@link #setMaxRetries(int) maxRetries}.
+ *
+ * The dispatcher thread can be a virtual thread, see {@link ThreadMode}.
+ *
+ * Events can also be queued as a {@link DeferredEvent}, encoded by the dispatcher thread as it fills each batch.
+ *
+ * Each dispatcher registers a {@link DispatcherMXBean} with the platform MBean server, giving its throughput, drops,
+ * retries, queue depth and latency.
+ *
+ * Appenders and valves use the dispatcher through a {@link Producer}, which keeps their own counts of what they have
+ * dispatched and had dropped. A dispatcher can have several producers, see {@link DispatcherRegistry}, and is closed
+ * along with the last of them.
  *
  * @author Andrew Taylor (andrew@brekka.org)
  */
@@ -35,45 +69,138 @@ class Dispatcher {
 
     private static final boolean DEBUG_ENABLED = "true".equals(System.getProperty("logtools.dispatcher.debug"));
 
-    private final ExecutorService executorService;
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
 
-    private final Client client;
+    /**
+     * Longest a lane sleeps between retries without checking whether it has been closed.
+     */
+    private static final long RETRY_SLICE_MILLIS = 100;
 
-    private final AtomicLong counter = new AtomicLong();
+    private final Lane[] lanes;
 
     /**
-     * Maximum time to block the JVM shutdown to clear events.
+     * The first client, to identify the dispatcher by.
+     */
+    private final String target;
+
+    /**
+     * Lanes whose threads have yet to finish, the last of which cleans up after them all.
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final DispatcherMetrics metrics;
+
+    private final ObjectName objectName;
+
+    private final Thread shutdownHook;
+
+    private volatile boolean closed;
+
+    /**
+     * When closed, the time (from {@link System#nanoTime()}) after which lanes stop retrying a failing client and give
+     * up on what is left, so that their threads can finish. Written before {@link #closed}.
+     */
+    private volatile long closeDeadline;
+
+    /**
+     * The number of producers yet to be closed.
+     */
+    private int producers;
+
+    private volatile SpillJournal journal;
+
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker(500, 30000, 0);
+
+    /**
+     * Failed attempts after which a batch is given up on (spilled if there is a journal, dropped otherwise), zero to
+     * keep trying until the dispatcher has been closed for the shutdown delay.
+     */
+    private volatile int maxRetries;
+
+    /**
+     * Maximum time to block the JVM shutdown to clear events, and to keep retrying a failing client once closed.
      */
     private int shutdownDelaySeconds = 10;
 
+    /**
+     * Maximum number of events written to the client in one go.
+     */
+    private volatile int batchSize = 1;
+
+    /**
+     * How long to wait for a batch to fill once the first event of that batch has been taken.
+     */
+    private volatile int lingerMillis = 0;
+
+    /**
+     * What the dispatcher thread does when there is nothing in the queue.
+     */
+    private volatile WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+    /**
+     * How long {@link OverflowPolicy#BLOCK} waits for space.
+     */
+    private volatile long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
     public Dispatcher(final Client client) {
         this(client, 1000, 4);
     }
 
     public Dispatcher(final Client client, final int eventBufferSize, final int priority) {
-        this.client = client;
-        ThreadFactory tf = new ThreadFactory() {
-            @Override
-            public Thread newThread(final Runnable r) {
-                Thread t = new Thread(r, "LogStashDispatcher");
-                t.setDaemon(true);
-                // Slightly below normal
-                t.setPriority(priority);
-                return t;
-            }
-        };
+        this(client, eventBufferSize, priority, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * @param threadMode whether the dispatcher thread is a platform or virtual thread, the priority only applying to
+     *            the former
+     */
+    public Dispatcher(final Client client, final int eventBufferSize, final int priority,
+            final ThreadMode threadMode) {
+        this(Collections.singletonList(client), eventBufferSize, priority, threadMode);
+    }
+
+    /**
+     * @param clients one per lane, each written to by its own thread
+     * @param eventBufferSize the number of events that can be queued, split evenly between the lanes
+     * @param priority of the platform threads
+     * @param threadMode whether the lane threads are platform or virtual threads
+     */
+    public Dispatcher(final List<? extends Client> clients, final int eventBufferSize, final int priority,
+            final ThreadMode threadMode) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("At least one client is required");
+        }
+        int laneSize = Math.max(1, eventBufferSize / clients.size());
+        this.lanes = new Lane[clients.size()];
+        List<RingBuffer<?>> queues = new ArrayList<>(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(clients.get(i), laneSize);
+            queues.add(lanes[i].queue);
+        }
+        this.target = String.valueOf(clients.get(0));
+        this.metrics = new DispatcherMetrics(target, queues);
+        this.metrics.circuitBreaker = circuitBreaker;
+        this.objectName = register(metrics);
 
-        // Just one daemon thread.
-        executorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>(eventBufferSize), tf);
+        // A daemon thread per lane, by default slightly below normal priority.
+        running.set(lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            String name = lanes.length == 1 ? "LogStashDispatcher" : "LogStashDispatcher-" + i;
+            lanes[i].start(threadMode, name, priority);
+        }
 
-        Runtime.getRuntime().addShutdownHook(new Thread() {
+        shutdownHook = new Thread() {
             @Override
             public void run() {
                 // JVM is going down, try to flush as many messages as possible.
                 close(true);
             }
-        });
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     /**
@@ -81,83 +208,861 @@ class Dispatcher {
      */
     public void close() {
         close(false);
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down, the hook is running or about to
+        }
+    }
+
+    /**
+     * @return true once the dispatcher has been closed.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Start using this dispatcher. It stays open until the producer is closed, along with any others.
+     *
+     * @param name identifies the producer in the metrics, producers of the same name share their counts
+     * @return the producer, or null if the dispatcher has already been closed.
+     */
+    synchronized Producer producer(final String name) {
+        if (closed) {
+            return null;
+        }
+        producers++;
+        return new Producer(this, metrics.producer(name));
+    }
+
+    /**
+     * @return true if that was the last producer, the dispatcher now being closed.
+     */
+    synchronized boolean release() {
+        producers--;
+        if (producers == 0) {
+            close();
+            return true;
+        }
+        return false;
     }
 
     protected void close(final boolean wait) {
-        if (!executorService.isShutdown()) {
-            try {
-                executorService.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        client.close();
-                    }
-                });
-            } catch (RejectedExecutionException e){
-                // Leave the socket open and hope the finalizer gets it
-                if (DEBUG_ENABLED) {
-                    System.err.printf("Dispatcher to '%s' close rejected, must already have been called.%n", client);
-                }
-            }
-            executorService.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownDelaySeconds);
+        if (!closed) {
+            closeDeadline = deadline;
+            closed = true;
         }
-        if (wait && !executorService.isTerminated()) {
-            // The JVM is shutting down. We want to flush as many events as possible before giving up.
-            try {
-                if (executorService.awaitTermination(shutdownDelaySeconds, TimeUnit.SECONDS)) {
-                    if (DEBUG_ENABLED) {
-                        System.err.printf("Shutdown of dispatcher to '%s' failed to process all events%n", client);
-                    }
+        if (!wait) {
+            return;
+        }
+        // The JVM is shutting down. We want to flush as many events as possible before giving up.
+        try {
+            for (Lane lane : lanes) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    lane.thread.join(remaining);
                 }
-            } catch (InterruptedException e) {
-                if (DEBUG_ENABLED) {
-                    System.err.printf("Dispatcher to '%s' failed to process all events due to interruption%n", client);
+                if (lane.thread.isAlive() && DEBUG_ENABLED) {
+                    System.err.printf("Shutdown of dispatcher to '%s' failed to process all events%n", lane.client);
                 }
             }
+        } catch (InterruptedException e) {
+            if (DEBUG_ENABLED) {
+                System.err.printf("Dispatcher to '%s' failed to process all events due to interruption%n", target);
+            }
+        }
+    }
+
+    public boolean dispatchMessage(final String message) {
+        return dispatchMessage(message, Severity.INFO);
+    }
+
+    /**
+     * @return true if the event has been queued or spilled, false if it has been dropped.
+     */
+    public boolean dispatchMessage(final String message, final Severity severity) {
+        return dispatchMessage(message, severity, null);
+    }
+
+    /**
+     * @param key events with the same key are kept in order, null to just keep them in order for this thread
+     * @return true if the event has been queued or spilled, false if it has been dropped.
+     */
+    public boolean dispatchMessage(final String message, final Severity severity, final String key) {
+        return dispatch(message, severity, key);
+    }
+
+    /**
+     * Queue an event that has yet to be encoded, leaving the dispatcher thread to encode it just before it is
+     * written. Should it need to be spilled, the event is encoded by the calling thread instead. A
+     * {@link PooledBuffer} is already encoded, and is released by the dispatcher once it has been written, spilled or
+     * dropped; clients that are a {@link BufferClient} are given the buffers themselves.
+     *
+     * @param key events with the same key are kept in order, null to just keep them in order for this thread
+     * @return true if the event has been queued or spilled, false if it has been dropped.
+     */
+    public boolean dispatchEvent(final DeferredEvent event, final Severity severity, final String key) {
+        return dispatch(event, severity, key);
+    }
+
+    /**
+     * @param message either the encoded event or a {@link DeferredEvent}
+     */
+    private boolean dispatch(final Object message, final Severity severity, final String key) {
+        if (closed) {
+            return dropped(message, metrics.droppedClosed);
+        }
+        Lane lane = lane(key);
+        OverflowPolicy policy = overflowPolicy;
+        if (policy.admit(severity, lane.queue.size(), lane.queue.capacity()) == OverflowPolicy.Admission.DROP) {
+            return dropped(message, metrics.droppedShed);
+        }
+        SpillJournal journal = this.journal;
+        if (journal != null && lane.failing) {
+            return spill(journal, message);
+        } else if (!circuitBreaker.allowsDispatch()) {
+            return dropped(message, metrics.droppedCircuitOpen);
+        } else if (offer(lane.queue, message, severity)) {
+            return true;
+        } else if (journal != null) {
+            return spill(journal, message);
+        } else if (!overflow(lane, policy, message, severity)) {
+            return dropped(message, metrics.droppedQueueFull);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an event would currently be accepted, before going to the trouble of encoding it.
+     *
+     * @param severity of the event about to be dispatched
+     * @return whether to dispatch the event, and in what form.
+     */
+    OverflowPolicy.Admission admit(final Severity severity) {
+        return admit(severity, null);
+    }
+
+    /**
+     * @param key the key the event will be dispatched with
+     * @see #admit(Severity)
+     */
+    OverflowPolicy.Admission admit(final Severity severity, final String key) {
+        if (journal == null && !circuitBreaker.allowsDispatch()) {
+            metrics.droppedCircuitOpen.increment();
+            return OverflowPolicy.Admission.DROP;
+        }
+        RingBuffer<Object> queue = lane(key).queue;
+        OverflowPolicy.Admission admission = overflowPolicy.admit(severity, queue.size(), queue.capacity());
+        if (admission == OverflowPolicy.Admission.DROP) {
+            metrics.droppedShed.increment();
+        }
+        return admission;
+    }
+
+    /**
+     * @return the number of lanes, one per client.
+     */
+    int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Pick the lane for the key, or for the current thread when there is no key.
+     */
+    private Lane lane(final String key) {
+        Lane[] lanes = this.lanes;
+        if (lanes.length == 1) {
+            return lanes[0];
+        }
+        int hash = key != null ? key.hashCode() : (int) Thread.currentThread().getId();
+        // Thread ids are sequential and short keys differ in few bits, so mix before reducing
+        hash *= 0x9E3779B9;
+        return lanes[(hash >>> 1) % lanes.length];
+    }
+
+    private boolean offer(final RingBuffer<Object> queue, final Object message, final Severity severity) {
+        if (!queue.offer(message, System.nanoTime(), severity.ordinal())) {
+            return false;
+        }
+        metrics.enqueued.increment();
+        metrics.queued(queue);
+        return true;
+    }
+
+    /**
+     * Apply the overflow policy to an event that did not fit in the lane's queue.
+     *
+     * @return true if the event has been queued after all.
+     */
+    private boolean overflow(final Lane lane, final OverflowPolicy policy, final Object message,
+            final Severity severity) {
+        switch (policy) {
+            case BLOCK:
+                return block(lane, message, severity);
+            case DROP_OLDEST:
+                return evictFor(lane, message, severity);
+            case LEVEL_AWARE:
+                return severity == Severity.ERROR && evictFor(lane, message, severity);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Queue the event in the lane's overflow queue, owing its thread an eviction from the main one.
+     */
+    private boolean evictFor(final Lane lane, final Object message, final Severity severity) {
+        // Owed before the event is visible, so the dispatcher cannot take it from the overflow queue while still
+        // seeing nothing to evict
+        lane.evictions.incrementAndGet();
+        if (!offer(lane.overflow, message, severity)) {
+            lane.evictions.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for space in the lane's queue, up to the block timeout. The dispatcher threads themselves never wait, as
+     * they are the ones that would make space.
+     */
+    private boolean block(final Lane lane, final Object message, final Severity severity) {
+        Thread current = Thread.currentThread();
+        for (Lane each : lanes) {
+            if (current == each.thread) {
+                return false;
+            }
+        }
+        long deadline = System.nanoTime() + blockTimeoutNanos;
+        while (!closed && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            if (offer(lane.queue, message, severity)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the metrics
+     */
+    DispatcherMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param shutdownDelaySeconds how long to wait for events to be written when the JVM shuts down, and how long
+     *            the lanes keep retrying a failing client once the dispatcher is closed before giving up on (spilling
+     *            or dropping) the events still held.
+     */
+    public void setShutdownDelaySeconds(final int shutdownDelaySeconds) {
+        if (shutdownDelaySeconds > 0) {
+            this.shutdownDelaySeconds = shutdownDelaySeconds;
+        }
+    }
+
+    /**
+     * @param batchSize the maximum number of events to write per flush
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize > 0) {
+            this.batchSize = batchSize;
+        }
+    }
+
+    /**
+     * @param lingerMillis how long to wait for a batch to fill before writing what has been collected
+     */
+    public void setLingerMillis(final int lingerMillis) {
+        if (lingerMillis >= 0) {
+            this.lingerMillis = lingerMillis;
+        }
+    }
+
+    /**
+     * @param waitStrategy what the dispatcher thread should do while the queue is empty
+     */
+    public void setWaitStrategy(final WaitStrategy waitStrategy) {
+        if (waitStrategy != null) {
+            this.waitStrategy = waitStrategy;
+        }
+    }
+
+    /**
+     * @param overflowPolicy what to do with events when the queue is full
+     */
+    public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+        if (overflowPolicy != null) {
+            this.overflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits for space before dropping the event
+     */
+    public void setBlockTimeoutMillis(final long blockTimeoutMillis) {
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMillis));
+    }
+
+    /**
+     * @param circuitBreaker the backoff between attempts to write to a failing server and when to refuse new events
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        if (circuitBreaker != null) {
+            this.circuitBreaker = circuitBreaker;
+            metrics.circuitBreaker = circuitBreaker;
+        }
+    }
+
+    /**
+     * @param maxRetries failed attempts after which a batch is given up on, zero to retry until closed (the default)
+     */
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @param journal where to spill events that cannot be held in memory, null to disable spilling
+     */
+    public void setSpillJournal(final SpillJournal journal) {
+        this.journal = journal;
+    }
+
+    private boolean spill(final SpillJournal journal, final Object event) {
+        String message = encode(event);
+        recycle(event);
+        if (message == null) {
+            return false;
+        }
+        try {
+            if (journal.append(message)) {
+                metrics.spilled.increment();
+                return true;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (DEBUG_ENABLED) {
+                System.err.printf("Spill to '%s' failed%n", journal);
+                e.printStackTrace();
+            }
         }
+        return dropped(message, metrics.droppedSpillFull);
     }
 
-    public void dispatchMessage(final String message) {
+    /**
+     * @return the event as a json document, encoding it now if it was deferred, or null if it could not be encoded.
+     */
+    private String encode(final Object event) {
+        if (!(event instanceof DeferredEvent)) {
+            return (String) event;
+        }
         try {
-            executorService.submit(new Runnable() {
+            return ((DeferredEvent) event).encode();
+        } catch (RuntimeException e) {
+            metrics.droppedEncoding.increment();
+            if (DEBUG_ENABLED) {
+                System.err.printf("Dispatch to '%s' failed to encode event%n", target);
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Hand the event's buffer back to its pool, if it has one, once the dispatcher is done with it.
+     */
+    private static void recycle(final Object event) {
+        if (event instanceof PooledBuffer) {
+            ((PooledBuffer) event).release();
+        }
+    }
+
+    /**
+     * @return false, for the convenience of {@link #dispatchMessage(String, Severity)}.
+     */
+    private boolean dropped(final Object message, final StripedCounter reason) {
+        reason.increment();
+        if (DEBUG_ENABLED) {
+            System.err.printf("Dispatch to '%s' failed for event %s%n", target, message);
+        }
+        recycle(message);
+        return false;
+    }
+
+    private ObjectName register(final DispatcherMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(String.format("org.brekka.logtools.stash:type=Dispatcher,id=%d,target=%s",
+                    SEQUENCE.incrementAndGet(), ObjectName.quote(metrics.getTarget())));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (JMException | RuntimeException e) {
+            // Monitoring is not essential
+            if (DEBUG_ENABLED) {
+                System.err.printf("Unable to register dispatcher MBean for '%s'%n", target);
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    private void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | RuntimeException e) {
+            // Already gone
+        }
+    }
+
+    /**
+     * One appender or valve's use of a dispatcher, counting the events it has had queued and dropped. Events dropped
+     * after being queued (evicted, or given up on after retries) are only counted by the dispatcher, as the queue does
+     * not keep track of where they came from.
+     */
+    static final class Producer {
+        private final Dispatcher dispatcher;
+        private final DispatcherMetrics.ProducerCounts counts;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Producer(final Dispatcher dispatcher, final DispatcherMetrics.ProducerCounts counts) {
+            this.dispatcher = dispatcher;
+            this.counts = counts;
+        }
+
+        /**
+         * @see Dispatcher#admit(Severity)
+         */
+        OverflowPolicy.Admission admit(final Severity severity) {
+            return admit(severity, null);
+        }
+
+        /**
+         * @see Dispatcher#admit(Severity, String)
+         */
+        OverflowPolicy.Admission admit(final Severity severity, final String key) {
+            if (closed.get()) {
+                // The dispatcher may carry on for other producers, but this one is done with it
+                dispatcher.metrics.droppedClosed.increment();
+                counts.dropped.increment();
+                return OverflowPolicy.Admission.DROP;
+            }
+            OverflowPolicy.Admission admission = dispatcher.admit(severity, key);
+            if (admission == OverflowPolicy.Admission.DROP) {
+                counts.dropped.increment();
+            }
+            return admission;
+        }
+
+        /**
+         * @see Dispatcher#dispatchMessage(String, Severity)
+         */
+        boolean dispatchMessage(final String message, final Severity severity) {
+            return dispatchMessage(message, severity, null);
+        }
+
+        /**
+         * @see Dispatcher#dispatchMessage(String, Severity, String)
+         */
+        boolean dispatchMessage(final String message, final Severity severity, final String key) {
+            if (closed.get()) {
+                dispatcher.metrics.droppedClosed.increment();
+            } else if (dispatcher.dispatchMessage(message, severity, key)) {
+                counts.enqueued.increment();
+                return true;
+            }
+            counts.dropped.increment();
+            return false;
+        }
+
+        /**
+         * @see Dispatcher#dispatchEvent(DeferredEvent, Severity, String)
+         */
+        boolean dispatchEvent(final DeferredEvent event, final Severity severity, final String key) {
+            if (closed.get()) {
+                dispatcher.metrics.droppedClosed.increment();
+                recycle(event);
+            } else if (dispatcher.dispatchEvent(event, severity, key)) {
+                counts.enqueued.increment();
+                return true;
+            }
+            counts.dropped.increment();
+            return false;
+        }
+
+        /**
+         * @return the dispatcher
+         */
+        Dispatcher getDispatcher() {
+            return dispatcher;
+        }
+
+        /**
+         * Stop using the dispatcher, closing it if this was the last producer.
+         */
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                DispatcherRegistry.release(dispatcher);
+            }
+        }
+    }
+
+    /**
+     * One writer: a queue, the client it is written to and the thread doing the writing.
+     */
+    private final class Lane {
+        private final Client client;
+
+        /**
+         * Holds encoded events and {@link DeferredEvent}s alike.
+         */
+        private final RingBuffer<Object> queue;
+
+        /**
+         * Events admitted when the queue was full, for which as many queued events are owed as {@link #evictions}.
+         */
+        private final RingBuffer<Object> overflow;
+
+        private final AtomicInteger evictions = new AtomicInteger();
+
+        /**
+         * Set while the client is unable to write, so that new events go straight to the journal (if there is one).
+         */
+        private volatile boolean failing;
+
+        private Thread thread;
+
+        private Lane(final Client client, final int size) {
+            this.client = client;
+            this.queue = new RingBuffer<>(size);
+            this.overflow = new RingBuffer<>(Math.max(16, size / 8));
+        }
+
+        private void start(final ThreadMode threadMode, final String name, final int priority) {
+            thread = threadMode.newThread(new Runnable() {
                 @Override
                 public void run() {
-                    while (true) {
-                        try {
-                            client.writeEvent(message);
-                            // Written successfully
-                            counter.incrementAndGet();
+                    drain();
+                }
+            }, name, priority);
+            thread.start();
+        }
+
+        /**
+         * Body of the lane's thread. Runs until closed and the queue has been emptied, then closes the client. The last
+         * lane to finish closes the journal.
+         */
+        private void drain() {
+            List<Object> batch = new ArrayList<>();
+            List<String> lines = new ArrayList<>();
+            long[] stamps = new long[0];
+            int[] tags = new int[0];
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    boolean worked = false;
+                    SpillJournal journal = Dispatcher.this.journal;
+                    if (journal != null && this == lanes[0]) {
+                        // Segments rolled over by the logging threads are forced here, off their path
+                        forceSealed(journal);
+                    }
+                    if (journal != null && !closed && this == lanes[0] && replay(journal, lines)) {
+                        // Spilled events are already safe, so keep trying those regardless of maxRetries
+                        Outcome outcome = write(lines, 0);
+                        if (outcome == Outcome.INTERRUPTED) {
                             return;
-                        } catch (Exception e) {
-                            client.close();
-                            // Make sure to have some kind of delay between attempts. There are situations
-                            // where connection failures will be very quick so this avoids thrashing
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException e1) {
-                                return;
+                        }
+                        if (outcome == Outcome.WRITTEN) {
+                            journal.acknowledge();
+                        }
+                        // Otherwise closed while failing, leave them in the journal for the next start
+                        lines.clear();
+                        worked = true;
+                    }
+                    int max = batchSize;
+                    if (stamps.length < max) {
+                        stamps = new long[max];
+                        tags = new int[max];
+                    }
+                    int drained = queue.drainTo(batch, max, stamps, tags);
+                    if (drained < max) {
+                        // The queue has been emptied, there is nothing left to make room in
+                        evictions.set(0);
+                    } else {
+                        evict(batch, stamps, tags);
+                    }
+                    if (evictions.get() == 0) {
+                        // Room has been made for the events that overflowed
+                        drained += overflow.drainTo(batch, max - batch.size(), stamps, tags);
+                    }
+                    if (drained > 0) {
+                        fill(batch, max, stamps);
+                        List<?> events = batch;
+                        if (!direct(batch)) {
+                            encode(batch, lines, stamps);
+                            batch.clear();
+                            events = lines;
+                        }
+                        if (events.isEmpty()) {
+                            continue;
+                        }
+                        Outcome outcome = write(events, maxRetries);
+                        if (outcome == Outcome.INTERRUPTED) {
+                            return;
+                        }
+                        if (outcome == Outcome.WRITTEN) {
+                            long now = System.nanoTime();
+                            for (int i = 0; i < events.size(); i++) {
+                                metrics.latency.record(TimeUnit.NANOSECONDS.toMicros(now - stamps[i]));
+                                recycle(events.get(i));
                             }
+                        } else {
+                            giveUp(events);
                         }
-                        if (Thread.currentThread().isInterrupted()) {
-                            // Thread is interrupted. Exit now
+                        batch.clear();
+                        lines.clear();
+                        worked = true;
+                    }
+                    if (!worked) {
+                        if (closed) {
                             return;
                         }
+                        waitStrategy.idle();
                     }
                 }
-            });
-        } catch (RejectedExecutionException e) {
-            if (DEBUG_ENABLED) {
-                System.err.printf("Dispatch to '%s' failed for event %s%n", client, message);
-                e.printStackTrace();
+            } finally {
+                client.shutdown();
+                if (running.decrementAndGet() == 0) {
+                    SpillJournal journal = Dispatcher.this.journal;
+                    if (journal != null) {
+                        journal.close();
+                    }
+                    unregister();
+                }
             }
         }
-    }
 
-    /**
-     * @param shutdownDelaySeconds the shutdownDelaySeconds to set
-     */
-    public void setShutdownDelaySeconds(final int shutdownDelaySeconds) {
-        if (shutdownDelaySeconds > 0) {
-            this.shutdownDelaySeconds = shutdownDelaySeconds;
+        private void forceSealed(final SpillJournal journal) {
+            try {
+                journal.forceSealed();
+            } catch (RuntimeException e) {
+                if (DEBUG_ENABLED) {
+                    System.err.printf("Force of '%s' failed%n", journal);
+                    e.printStackTrace();
+                }
+            }
         }
+
+        /**
+         * Read the next batch of spilled events into the (empty) batch list.
+         *
+         * @return true if there is anything to write.
+         */
+        private boolean replay(final SpillJournal journal, final List<String> batch) {
+            try {
+                return journal.read(batch, batchSize) > 0;
+            } catch (IOException | RuntimeException e) {
+                if (DEBUG_ENABLED) {
+                    System.err.printf("Replay from '%s' failed%n", journal);
+                    e.printStackTrace();
+                }
+                batch.clear();
+                return false;
+            }
+        }
+
+        /**
+         * Discard as many of the batch's events as are owed to the overflow queue, oldest first, where the overflow
+         * policy allows their severity to be evicted. Any debt that cannot be paid from this batch carries over to the
+         * next.
+         */
+        private void evict(final List<Object> batch, final long[] stamps, final int[] tags) {
+            int owed = evictions.get();
+            if (owed <= 0) {
+                return;
+            }
+            int evictBelow = overflowPolicy.evictBelow();
+            int kept = 0;
+            int evicted = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (evicted < owed && tags[i] < evictBelow) {
+                    evicted++;
+                    metrics.droppedEvicted.incrementAndGet();
+                    if (DEBUG_ENABLED) {
+                        System.err.printf("Dispatch to '%s' evicted event %s%n", client, batch.get(i));
+                    }
+                    recycle(batch.get(i));
+                    continue;
+                }
+                batch.set(kept, batch.get(i));
+                stamps[kept] = stamps[i];
+                tags[kept] = tags[i];
+                kept++;
+            }
+            batch.subList(kept, batch.size()).clear();
+            evictions.addAndGet(-evicted);
+        }
+
+        /**
+         * Top up the batch from the queue, lingering for more events if configured to do so.
+         */
+        private void fill(final List<Object> batch, final int max, final long[] stamps) {
+            int linger = lingerMillis;
+            if (linger == 0 || batch.size() >= max) {
+                return;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+            while (batch.size() < max && !closed && deadline - System.nanoTime() > 0) {
+                if (queue.drainTo(batch, max - batch.size(), stamps) == 0) {
+                    waitStrategy.idle();
+                }
+            }
+        }
+
+        /**
+         * @return true if the batch is all buffers and the client can write them as they are.
+         */
+        private boolean direct(final List<Object> batch) {
+            if (!(client instanceof BufferClient)) {
+                return false;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (!(batch.get(i) instanceof PooledBuffer)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Encode the deferred events of the batch into the lines to write, dropping any that fail. The stamps are
+         * moved down to stay in step with the lines.
+         */
+        private void encode(final List<Object> batch, final List<String> lines, final long[] stamps) {
+            for (int i = 0; i < batch.size(); i++) {
+                Object event = batch.get(i);
+                String line = Dispatcher.this.encode(event);
+                recycle(event);
+                if (line != null) {
+                    stamps[lines.size()] = stamps[i];
+                    lines.add(line);
+                }
+            }
+        }
+
+        /**
+         * Write the batch, retrying the whole batch on a fresh connection until it succeeds or the retry limit is
+         * reached. Attempts are spaced out by the circuit breaker's backoff.
+         *
+         * @param batch either all strings or, if {@link #direct(List)}, all buffers
+         * @param retryLimit failed attempts after which to give up, zero for no limit
+         */
+        @SuppressWarnings("unchecked")
+        private Outcome write(final List<?> batch, final int retryLimit) {
+            CircuitBreaker breaker = circuitBreaker;
+            int failures = 0;
+            // The list is reused, so the client cannot tell a retry from the next batch by the list alone
+            client.beginBatch();
+            while (true) {
+                if (failing && abandoned()) {
+                    return Outcome.EXHAUSTED;
+                }
+                breaker.beforeAttempt();
+                try {
+                    if (batch.get(0) instanceof PooledBuffer) {
+                        ((BufferClient) client).writeBuffers((List<PooledBuffer>) batch);
+                    } else if (batch.size() == 1) {
+                        client.writeEvent((String) batch.get(0));
+                    } else {
+                        client.writeEvents((List<String>) batch);
+                    }
+                    // Written successfully
+                    breaker.onSuccess();
+                    int oversized = client instanceof LossyClient ? ((LossyClient) client).takeOversized() : 0;
+                    if (oversized > 0) {
+                        metrics.droppedOversized.addAndGet(oversized);
+                    }
+                    metrics.written.addAndGet(batch.size() - oversized);
+                    long bytes = 0;
+                    // Indexed rather than iterated, so that a batch of buffers is written without allocating
+                    for (int i = 0; i < batch.size(); i++) {
+                        Object event = batch.get(i);
+                        if (event instanceof PooledBuffer) {
+                            // Plus the newline
+                            bytes += ((PooledBuffer) event).length() + 1;
+                        } else {
+                            bytes += DispatcherMetrics.encodedLength((String) event);
+                        }
+                    }
+                    metrics.bytesWritten.addAndGet(bytes);
+                    if (failing) {
+                        metrics.reconnects.incrementAndGet();
+                        failing = false;
+                    }
+                    return Outcome.WRITTEN;
+                } catch (Exception e) {
+                    failing = true;
+                    metrics.retries.incrementAndGet();
+                    client.close();
+                    failures++;
+                    // Wait even when giving up, so the next batch does not go straight into another failing connect
+                    try {
+                        pause(breaker.onFailure());
+                    } catch (InterruptedException e1) {
+                        return Outcome.INTERRUPTED;
+                    }
+                    if ((retryLimit > 0 && failures > retryLimit) || abandoned()) {
+                        return Outcome.EXHAUSTED;
+                    }
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    // Thread is interrupted. Exit now
+                    return Outcome.INTERRUPTED;
+                }
+            }
+        }
+
+        /**
+         * Sleep between attempts, cut short once the dispatcher is closed and past its deadline.
+         */
+        private void pause(final long millis) throws InterruptedException {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            long remaining;
+            while ((remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime())) > 0 && !abandoned()) {
+                Thread.sleep(Math.min(remaining, RETRY_SLICE_MILLIS));
+            }
+        }
+
+        /**
+         * @return true once closed for longer than the shutdown delay, after which a failing client is given up on.
+         */
+        private boolean abandoned() {
+            return closed && System.nanoTime() - closeDeadline >= 0;
+        }
+
+        /**
+         * The batch could not be written within the retry limit, spill it if possible or else drop it.
+         */
+        private void giveUp(final List<?> batch) {
+            SpillJournal journal = Dispatcher.this.journal;
+            for (Object event : batch) {
+                if (journal != null) {
+                    spill(journal, event);
+                } else {
+                    metrics.droppedRetriesExhausted.incrementAndGet();
+                    if (DEBUG_ENABLED) {
+                        System.err.printf("Dispatch to '%s' gave up on event %s%n", client, event);
+                    }
+                    recycle(event);
+                }
+            }
+        }
+    }
+
+    private enum Outcome {
+        WRITTEN,
+        EXHAUSTED,
+        INTERRUPTED;
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.Map;
+
+/**
+ * Management view of a {@link Dispatcher}, registered with the platform MBean server under
+ * <code>org.brekka.logtools.stash:type=Dispatcher</code>. Counts are totals since the dispatcher was created, latencies
+ * are from an event being queued until it has been written, in microseconds.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public interface DispatcherMXBean {
+
+    String getTarget();
+
+    long getEnqueued();
+
+    long getWritten();
+
+    long getBytesWritten();
+
+    long getSpilled();
+
+    long getDropped();
+
+    long getDroppedClosed();
+
+    long getDroppedQueueFull();
+
+    long getDroppedSpillFull();
+
+    /**
+     * Events refused by the level-aware overflow policy as the queue filled.
+     */
+    long getDroppedShed();
+
+    /**
+     * Queued events discarded to make room for newer or more severe ones.
+     */
+    long getDroppedEvicted();
+
+    /**
+     * Events refused while the circuit breaker was open.
+     */
+    long getDroppedCircuitOpen();
+
+    /**
+     * Events given up on after the maximum number of retries.
+     */
+    long getDroppedRetriesExhausted();
+
+    /**
+     * Deferred events that could not be encoded.
+     */
+    long getDroppedEncoding();
+
+    /**
+     * Events too large for the client to send whole, left out of batches that were otherwise written.
+     */
+    long getDroppedOversized();
+
+    long getRetries();
+
+    long getReconnects();
+
+    /**
+     * CLOSED, OPEN or HALF_OPEN.
+     */
+    String getCircuitState();
+
+    /**
+     * Events queued across all lanes.
+     */
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    /**
+     * The deepest any one lane's queue has been.
+     */
+    long getQueueHighWaterMark();
+
+    /**
+     * Events queued in each lane, to show whether the events are spread evenly.
+     */
+    int[] getLaneQueueDepths();
+
+    long getLatencyP50Micros();
+
+    long getLatencyP90Micros();
+
+    long getLatencyP99Micros();
+
+    long getLatencyMaxMicros();
+
+    /**
+     * Events queued (or spilled) for each producer sharing the dispatcher, by name.
+     */
+    Map<String, Long> getProducerEnqueued();
+
+    /**
+     * Events refused for each producer sharing the dispatcher, by name.
+     */
+    Map<String, Long> getProducerDropped();
+
+    /**
+     * Clear the latency histogram and queue high-water mark.
+     */
+    void resetLatency();
+}
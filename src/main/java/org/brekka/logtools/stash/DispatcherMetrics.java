@@ -0,0 +1,317 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters kept by a {@link Dispatcher}. Those updated by the logging threads are striped so that instrumentation
+ * does not add contention to {@link Dispatcher#dispatchMessage(String)}; the rest are only updated by the dispatcher
+ * thread.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class DispatcherMetrics implements DispatcherMXBean {
+
+    private final String target;
+
+    /**
+     * One per lane of the dispatcher.
+     */
+    private final List<? extends RingBuffer<?>> queues;
+
+    final StripedCounter enqueued = new StripedCounter();
+
+    final StripedCounter spilled = new StripedCounter();
+
+    final StripedCounter droppedClosed = new StripedCounter();
+
+    final StripedCounter droppedQueueFull = new StripedCounter();
+
+    final StripedCounter droppedSpillFull = new StripedCounter();
+
+    final StripedCounter droppedShed = new StripedCounter();
+
+    final AtomicLong droppedEvicted = new AtomicLong();
+
+    final StripedCounter droppedCircuitOpen = new StripedCounter();
+
+    final StripedCounter droppedEncoding = new StripedCounter();
+
+    final AtomicLong droppedRetriesExhausted = new AtomicLong();
+
+    final AtomicLong droppedOversized = new AtomicLong();
+
+    final AtomicLong written = new AtomicLong();
+
+    final AtomicLong bytesWritten = new AtomicLong();
+
+    final AtomicLong retries = new AtomicLong();
+
+    final AtomicLong reconnects = new AtomicLong();
+
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    private final AtomicLong highWaterMark = new AtomicLong();
+
+    private final ConcurrentMap<String, ProducerCounts> producers = new ConcurrentHashMap<>();
+
+    /**
+     * The dispatcher's current breaker, kept here for its state.
+     */
+    volatile CircuitBreaker circuitBreaker;
+
+    DispatcherMetrics(final String target, final List<? extends RingBuffer<?>> queues) {
+        this.target = target;
+        this.queues = queues;
+    }
+
+    /**
+     * @return the counts for the named producer, shared with any other of the same name.
+     */
+    ProducerCounts producer(final String name) {
+        ProducerCounts counts = producers.get(name);
+        if (counts == null) {
+            ProducerCounts created = new ProducerCounts();
+            counts = producers.putIfAbsent(name, created);
+            if (counts == null) {
+                counts = created;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Note the current depth of a lane's queue, after an event has been added to it. Only that lane is looked at, so
+     * with several lanes the high-water mark is that of the deepest lane.
+     */
+    void queued(final RingBuffer<?> queue) {
+        long depth = queue.size();
+        long current;
+        while (depth > (current = highWaterMark.get())) {
+            if (highWaterMark.compareAndSet(current, depth)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    @Override
+    public long getWritten() {
+        return written.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    @Override
+    public long getDropped() {
+        return droppedClosed.sum() + droppedQueueFull.sum() + droppedSpillFull.sum() + droppedShed.sum()
+                + droppedEvicted.get() + droppedCircuitOpen.sum() + droppedRetriesExhausted.get()
+                + droppedEncoding.sum() + droppedOversized.get();
+    }
+
+    @Override
+    public long getDroppedClosed() {
+        return droppedClosed.sum();
+    }
+
+    @Override
+    public long getDroppedQueueFull() {
+        return droppedQueueFull.sum();
+    }
+
+    @Override
+    public long getDroppedSpillFull() {
+        return droppedSpillFull.sum();
+    }
+
+    @Override
+    public long getDroppedShed() {
+        return droppedShed.sum();
+    }
+
+    @Override
+    public long getDroppedEvicted() {
+        return droppedEvicted.get();
+    }
+
+    @Override
+    public long getDroppedCircuitOpen() {
+        return droppedCircuitOpen.sum();
+    }
+
+    @Override
+    public long getDroppedRetriesExhausted() {
+        return droppedRetriesExhausted.get();
+    }
+
+    @Override
+    public long getDroppedEncoding() {
+        return droppedEncoding.sum();
+    }
+
+    @Override
+    public long getDroppedOversized() {
+        return droppedOversized.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    @Override
+    public String getCircuitState() {
+        CircuitBreaker breaker = circuitBreaker;
+        return breaker != null ? breaker.getState().name() : CircuitBreaker.State.CLOSED.name();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        int depth = 0;
+        for (RingBuffer<?> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        int capacity = 0;
+        for (RingBuffer<?> queue : queues) {
+            capacity += queue.capacity();
+        }
+        return capacity;
+    }
+
+    @Override
+    public int[] getLaneQueueDepths() {
+        int[] depths = new int[queues.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = queues.get(i).size();
+        }
+        return depths;
+    }
+
+    @Override
+    public long getQueueHighWaterMark() {
+        return highWaterMark.get();
+    }
+
+    @Override
+    public long getLatencyP50Micros() {
+        return latency.snapshot().percentile(50);
+    }
+
+    @Override
+    public long getLatencyP90Micros() {
+        return latency.snapshot().percentile(90);
+    }
+
+    @Override
+    public long getLatencyP99Micros() {
+        return latency.snapshot().percentile(99);
+    }
+
+    @Override
+    public long getLatencyMaxMicros() {
+        return latency.snapshot().getMax();
+    }
+
+    @Override
+    public Map<String, Long> getProducerEnqueued() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, ProducerCounts> entry : producers.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().enqueued.sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getProducerDropped() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, ProducerCounts> entry : producers.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().dropped.sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public void resetLatency() {
+        latency.snapshotThenReset();
+        highWaterMark.set(0);
+    }
+
+    /**
+     * UTF-8 length of the event plus its line terminator, without encoding it.
+     */
+    static long encodedLength(final String event) {
+        long length = 1;
+        int chars = event.length();
+        for (int i = 0; i < chars; i++) {
+            char c = event.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                // The pair encodes as four bytes
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * What one producer (or several of the same name) has dispatched.
+     */
+    static final class ProducerCounts {
+        final StripedCounter enqueued = new StripedCounter();
+
+        final StripedCounter dropped = new StripedCounter();
+    }
+}
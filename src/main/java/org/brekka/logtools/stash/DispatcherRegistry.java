@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process wide dispatchers, shared by the appenders and valves with the same {@link ClientSettings} that ask for one.
+ * Those then have one connection, one dispatcher thread and one buffer between them, rather than one each.
+ *
+ * The shared dispatcher is created by the first producer to ask for it, so takes its buffer size, batching, overflow,
+ * retry and spill options from that one. Producers sharing a dispatcher should be configured alike, with the buffer
+ * sized for all of them. Each producer is counted separately in the metrics, by name, and the dispatcher is closed when
+ * the last of them is.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class DispatcherRegistry {
+
+    /**
+     * Dispatchers are removed once their last producer is closed. One closed some other way, by the shutdown hook,
+     * stays until it is replaced.
+     */
+    private static final Map<ClientSettings, Dispatcher> DISPATCHERS = new HashMap<>();
+
+    private DispatcherRegistry() {
+    }
+
+    /**
+     * Start using the dispatcher for the settings, creating it if there is not one already open.
+     *
+     * @param settings where the events are to be sent, which must not be changed afterwards
+     * @param name identifies the producer in the dispatcher's metrics
+     * @param factory creates and configures the dispatcher if needed
+     * @return the producer, to be closed when no longer needed.
+     */
+    static Dispatcher.Producer acquire(final ClientSettings settings, final String name, final Factory factory) {
+        synchronized (DISPATCHERS) {
+            Dispatcher dispatcher = DISPATCHERS.get(settings);
+            Dispatcher.Producer producer = null;
+            if (dispatcher != null) {
+                producer = dispatcher.producer(name);
+            }
+            if (producer == null) {
+                dispatcher = factory.create();
+                DISPATCHERS.put(settings, dispatcher);
+                producer = dispatcher.producer(name);
+            }
+            return producer;
+        }
+    }
+
+    /**
+     * Stop using the dispatcher for one producer, forgetting the dispatcher if that was the last so that it does not
+     * stay reachable once closed. Holds the registry lock before the dispatcher's, in the same order as
+     * {@link #acquire(ClientSettings, String, Factory)}. Also used for dispatchers that were never registered.
+     */
+    static void release(final Dispatcher dispatcher) {
+        synchronized (DISPATCHERS) {
+            if (!dispatcher.release()) {
+                return;
+            }
+            for (Iterator<Dispatcher> iterator = DISPATCHERS.values().iterator(); iterator.hasNext();) {
+                if (iterator.next() == dispatcher) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of dispatchers currently registered.
+     */
+    static int size() {
+        synchronized (DISPATCHERS) {
+            return DISPATCHERS.size();
+        }
+    }
+
+    /**
+     * Creates the dispatcher on behalf of the registry.
+     */
+    interface Factory {
+        Dispatcher create();
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collapses log storms, where the same logger, level, message and exception are logged over and over. The first
+ * occurrence is let through, repeats within the following window are only counted, and {@link #drain(long)} hands
+ * back one {@link Repeat} per window that had any so they can be sent as a single follow-up event.
+ *
+ * Windows are kept in a fixed table indexed by the hash of the key, with no chaining. A different key landing in an
+ * occupied slot takes it over, closing the window that was there early, so memory stays bounded and many distinct
+ * messages just go through unsuppressed. Counting a repeat is a read of the slot and a couple of atomic updates on the
+ * window, no locks are taken on the logging thread. A window is sealed as it leaves its slot, after which it takes no
+ * more repeats, so none can be counted against a window that has already been drained.
+ *
+ * The follow-up is built from the first repeat of each window, which is passed through {@link #retain(Object)} on its
+ * own thread. Nothing needs to be kept for occurrences that are let through.
+ *
+ * @param <E> the event kept from the first repeat, to build the follow-up from
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class DuplicateSuppressor<E> {
+
+    private final long windowMillis;
+
+    private final AtomicReferenceArray<Window<E>> slots;
+
+    private final int mask;
+
+    /**
+     * Windows pushed out of their slot before they were drained.
+     */
+    private final ConcurrentLinkedQueue<Window<E>> closed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param windowMillis how long after an occurrence is let through that repeats of it are suppressed
+     * @param maxKeys the number of messages to track at once, rounded up to a power of two
+     */
+    public DuplicateSuppressor(final long windowMillis, final int maxKeys) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("The window must be positive: " + windowMillis);
+        }
+        int size = 1;
+        while (size < maxKeys && size < (1 << 30)) {
+            size <<= 1;
+        }
+        this.windowMillis = windowMillis;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Count the occurrence against the current window for its key, or start a new window.
+     *
+     * @param loggerName the name of the logger
+     * @param level the level, as an int
+     * @param message the message as logged, before any rendering of the event
+     * @param throwable the exception logged with the message, if any
+     * @param timestamp when the event was logged
+     * @param event kept if this is the first repeat in the window
+     * @return true if the event should be sent, false if it has been counted as a repeat.
+     */
+    public boolean offer(final String loggerName, final int level, final String message, final Throwable throwable,
+            final long timestamp, final E event) {
+        long fingerprint = throwable != null ? StackTraceCache.fingerprint(throwable) : 0L;
+        int hash = hash(loggerName, level, message, fingerprint);
+        int index = hash & mask;
+        Window<E> current = slots.get(index);
+        while (current != null && current.matches(hash, loggerName, level, message, fingerprint)
+                && timestamp - current.start < windowMillis) {
+            int repeat = current.repeat(timestamp);
+            if (repeat == Window.SEALED) {
+                // Drained or pushed out since it was read, so look again at whatever holds the slot now
+                current = slots.get(index);
+                continue;
+            }
+            if (repeat == Window.FIRST) {
+                E sample = event;
+                try {
+                    sample = retain(event);
+                } finally {
+                    current.sample = sample;
+                    current.sampled = true;
+                }
+            }
+            return false;
+        }
+        Window<E> fresh = new Window<>(hash, loggerName, level, message, fingerprint, timestamp);
+        if (slots.compareAndSet(index, current, fresh)) {
+            retire(current);
+        }
+        // Losing the race to another thread only means this occurrence is not counted against its window
+        return true;
+    }
+
+    /**
+     * Close every window that has run its course, along with any pushed out early.
+     *
+     * @param now the current time
+     * @return the closed windows that suppressed at least one repeat.
+     */
+    public List<Repeat<E>> drain(final long now) {
+        for (int i = 0; i < slots.length(); i++) {
+            Window<E> window = slots.get(i);
+            if (window != null && now - window.start >= windowMillis && slots.compareAndSet(i, window, null)) {
+                retire(window);
+            }
+        }
+        List<Repeat<E>> repeats = new ArrayList<>();
+        Window<E> window;
+        while ((window = closed.poll()) != null) {
+            while (!window.sampled) {
+                // The thread with the first repeat is just about to set it
+                Thread.yield();
+            }
+            repeats.add(new Repeat<>(window.sample, window.count.get() & ~Window.SEALED_BIT, window.first.get(),
+                    window.last.get()));
+        }
+        return repeats;
+    }
+
+    /**
+     * Close every window, whether or not it has run its course.
+     *
+     * @return the windows that suppressed at least one repeat.
+     */
+    public List<Repeat<E>> drainAll() {
+        return drain(Long.MAX_VALUE);
+    }
+
+    /**
+     * Called on the logging thread for the first repeat in a window, before it is kept for the follow-up.
+     *
+     * @return the event to keep
+     */
+    protected E retain(final E event) {
+        return event;
+    }
+
+    private void retire(final Window<E> window) {
+        if (window != null && window.seal() > 0) {
+            closed.add(window);
+        }
+    }
+
+    private static int hash(final String loggerName, final int level, final String message, final long fingerprint) {
+        int hash = Objects.hashCode(loggerName);
+        hash = hash * 31 + level;
+        hash = hash * 31 + Objects.hashCode(message);
+        hash = hash * 31 + (int) (fingerprint ^ (fingerprint >>> 32));
+        // Spread the bits, as only the low ones pick the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Window<E> {
+        private static final int SEALED = -1;
+        private static final int REPEAT = 0;
+        private static final int FIRST = 1;
+        /**
+         * Set in the count once the window has left its slot.
+         */
+        private static final long SEALED_BIT = Long.MIN_VALUE;
+
+        private final int hash;
+        private final String loggerName;
+        private final int level;
+        private final String message;
+        private final long fingerprint;
+        private final long start;
+        private E sample;
+        private volatile boolean sampled;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong first = new AtomicLong();
+        private final AtomicLong last = new AtomicLong();
+
+        private Window(final int hash, final String loggerName, final int level, final String message,
+                final long fingerprint, final long start) {
+            this.hash = hash;
+            this.loggerName = loggerName;
+            this.level = level;
+            this.message = message;
+            this.fingerprint = fingerprint;
+            this.start = start;
+        }
+
+        private boolean matches(final int otherHash, final String otherLoggerName, final int otherLevel,
+                final String otherMessage, final long otherFingerprint) {
+            return hash == otherHash
+                    && level == otherLevel
+                    && fingerprint == otherFingerprint
+                    && Objects.equals(loggerName, otherLoggerName)
+                    && Objects.equals(message, otherMessage);
+        }
+
+        /**
+         * @return {@link #FIRST} for the first repeat, {@link #SEALED} if the window no longer takes repeats,
+         *         otherwise {@link #REPEAT}.
+         */
+        private int repeat(final long timestamp) {
+            long counted;
+            do {
+                counted = count.get();
+                if ((counted & SEALED_BIT) != 0) {
+                    return SEALED;
+                }
+            } while (!count.compareAndSet(counted, counted + 1));
+            first.compareAndSet(0L, timestamp);
+            long seen;
+            while ((seen = last.get()) < timestamp && !last.compareAndSet(seen, timestamp)) {
+                // retry
+            }
+            return counted == 0 ? FIRST : REPEAT;
+        }
+
+        /**
+         * Stop the window taking any more repeats.
+         *
+         * @return the number of repeats it took, or zero if it was already sealed.
+         */
+        private long seal() {
+            long counted;
+            do {
+                counted = count.get();
+                if ((counted & SEALED_BIT) != 0) {
+                    return 0L;
+                }
+            } while (!count.compareAndSet(counted, counted | SEALED_BIT));
+            return counted;
+        }
+    }
+
+    /**
+     * The repeats suppressed during one window.
+     */
+    static final class Repeat<E> {
+        private final E event;
+        private final long count;
+        private final long firstTimestamp;
+        private final long lastTimestamp;
+
+        private Repeat(final E event, final long count, final long firstTimestamp, final long lastTimestamp) {
+            this.event = event;
+            this.count = count;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        /**
+         * @return the first repeat suppressed in the window.
+         */
+        public E getEvent() {
+            return event;
+        }
+
+        /**
+         * @return how many repeats were suppressed, not counting the one let through.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the time of the first suppressed repeat
+         */
+        public long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        /**
+         * @return the time of the last suppressed repeat
+         */
+        public long getLastTimestamp() {
+            return lastTimestamp;
+        }
+    }
+}
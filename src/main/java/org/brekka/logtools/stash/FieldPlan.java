@@ -0,0 +1,255 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import org.apache.log4j.MDC;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The configured fields of the appender, filter and valve (the application name and the 'mdcProperties' mappings),
+ * compiled once into an array of fields with their names already encoded. Writing them for an event is then just a
+ * loop over the array, whichever way the event is being built.
+ *
+ * The filter and valve only write with a {@link JsonWriter}, so everything to do with Jackson is kept to
+ * {@link JacksonFields}. Jackson is an optional dependency, and is then only needed once something building events
+ * with it asks for {@link #jackson()}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class FieldPlan {
+
+    static final FieldPlan EMPTY = new FieldPlan(new Field[0]);
+
+    /**
+     * Looks the 'mdcProperties' keys up in the log4j 1.2 MDC of the current thread.
+     */
+    static final Context MDC_CONTEXT = new Context() {
+        @Override
+        public Object get(final String key) {
+            return MDC.get(key);
+        }
+    };
+
+    private final Field[] fields;
+
+    /**
+     * Created on first use, by whichever thread gets there first.
+     */
+    private volatile JacksonFields jackson;
+
+    /**
+     * Looks the 'mdcProperties' keys up in values captured on the thread that logged the event, for building it on
+     * another. A key missing from the values has no value, rather than being looked for in the MDC of the building
+     * thread as {@link org.apache.log4j.spi.LoggingEvent#getMDC(String)} would.
+     */
+    static Context capturedContext(final Map<?, ?> values) {
+        return new Context() {
+            @Override
+            public Object get(final String key) {
+                return values.get(key);
+            }
+        };
+    }
+
+    private FieldPlan(final Field[] fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param mdcProperties comma separated list of <code>field=mdcKey</code>, may be null
+     * @param application value of the 'application' field, omitted if null
+     */
+    static FieldPlan compile(final String mdcProperties, final String application) {
+        List<Field> fields = new ArrayList<>();
+        if (application != null) {
+            fields.add(new ConstantField("application", application));
+        }
+        for (Entry<String, String> mapping : parse(mdcProperties).entrySet()) {
+            fields.add(new MdcField(mapping.getKey(), mapping.getValue()));
+        }
+        if (fields.isEmpty()) {
+            return EMPTY;
+        }
+        return new FieldPlan(fields.toArray(new Field[fields.size()]));
+    }
+
+    /**
+     * @return the fields for writing with Jackson
+     */
+    JacksonFields jackson() {
+        JacksonFields current = jackson;
+        if (current == null) {
+            // A race just means building it twice
+            current = new JacksonFields(fields);
+            jackson = current;
+        }
+        return current;
+    }
+
+    void writeTo(final JsonWriter json) {
+        writeTo(json, MDC_CONTEXT);
+    }
+
+    /**
+     * @param context where to find the values of the mapped fields, for loggers other than log4j 1.2
+     */
+    void writeTo(final JsonWriter json, final Context context) {
+        for (Field field : fields) {
+            json.encodedName(field.encodedName).value(field.value(context));
+        }
+    }
+
+    /**
+     * Copy the values of the MDC keys that are mapped to fields, for an event that will be built on another thread.
+     *
+     * @param into receives the keys with values, those without being left out
+     */
+    void copyTo(final Map<String, Object> into, final Context context) {
+        for (Field field : fields) {
+            if (field instanceof MdcField) {
+                String key = ((MdcField) field).key;
+                Object value = context.get(key);
+                if (value != null) {
+                    into.put(key, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of fields
+     */
+    int size() {
+        return fields.length;
+    }
+
+    private static Map<String, String> parse(final String mdcProperties) {
+        Map<String, String> map = new LinkedHashMap<>();
+        if (mdcProperties != null && mdcProperties.length() != 0) {
+            for (final String keyValue : mdcProperties.split(",")) {
+                String[] split = keyValue.split("=");
+                map.put(split[0], split[1]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Source of the values for the mapped fields of the current event.
+     */
+    interface Context {
+        /**
+         * @return the value for the key, or null
+         */
+        Object get(String key);
+    }
+
+    /**
+     * The same fields for the appender's Jackson based ways of building events, with the names pre-encoded as
+     * {@link SerializedString}s.
+     */
+    static final class JacksonFields {
+        private final Field[] fields;
+        private final SerializedString[] serializedNames;
+
+        private JacksonFields(final Field[] fields) {
+            this.fields = fields;
+            this.serializedNames = new SerializedString[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                serializedNames[i] = new SerializedString(fields[i].name);
+            }
+        }
+
+        void writeTo(final JsonGenerator gen) throws IOException {
+            writeTo(gen, MDC_CONTEXT);
+        }
+
+        void writeTo(final JsonGenerator gen, final Context context) throws IOException {
+            for (int i = 0; i < fields.length; i++) {
+                gen.writeFieldName(serializedNames[i]);
+                gen.writeString(fields[i].value(context));
+            }
+        }
+
+        void writeTo(final ObjectNode json) {
+            writeTo(json, MDC_CONTEXT);
+        }
+
+        void writeTo(final ObjectNode json, final Context context) {
+            for (Field field : fields) {
+                json.put(field.name, field.value(context));
+            }
+        }
+    }
+
+    /**
+     * A field with its name pre-encoded for the {@link JsonWriter}.
+     */
+    private abstract static class Field {
+        private final String name;
+        private final String encodedName;
+
+        Field(final String name) {
+            this.name = name;
+            this.encodedName = JsonWriter.encodeName(name);
+        }
+
+        /**
+         * @return the value for the current event
+         */
+        abstract String value(Context context);
+    }
+
+    private static final class ConstantField extends Field {
+        private final String value;
+
+        ConstantField(final String name, final String value) {
+            super(name);
+            this.value = value;
+        }
+
+        @Override
+        String value(final Context context) {
+            return value;
+        }
+    }
+
+    private static final class MdcField extends Field {
+        private final String key;
+
+        MdcField(final String name, final String key) {
+            super(name);
+            this.key = key;
+        }
+
+        @Override
+        String value(final Context context) {
+            return Objects.toString(context.get(key), null);
+        }
+    }
+}
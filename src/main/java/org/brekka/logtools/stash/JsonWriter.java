@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+/**
+ * Minimal JSON writer appending to a reusable {@link StringBuilder}. Handles separators, string escaping and number
+ * formatting without allocating, so that a single instance per thread can encode any number of events.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class JsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder out;
+
+    private final byte[] timestamp = new byte[TimestampEncoder.MAX_LENGTH];
+
+    /**
+     * True once a value has been written in the current object, so the next name needs a comma.
+     */
+    private boolean needsComma;
+
+    public JsonWriter(final int capacity) {
+        this.out = new StringBuilder(capacity);
+    }
+
+    /**
+     * Clear the buffer ready for the next document.
+     */
+    public JsonWriter reset() {
+        out.setLength(0);
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter beginObject() {
+        out.append('{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        out.append('}');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Write a field name, escaping it as necessary.
+     */
+    public JsonWriter name(final String name) {
+        separator();
+        string(name);
+        out.append(':');
+        return this;
+    }
+
+    /**
+     * Write a field name that has already been through {@link #encodeName(String)}.
+     */
+    public JsonWriter encodedName(final String encodedName) {
+        separator();
+        out.append(encodedName);
+        return this;
+    }
+
+    /**
+     * Write a string value, or null.
+     */
+    public JsonWriter value(final String value) {
+        if (value == null) {
+            out.append("null");
+        } else {
+            string(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Write a string value held in a buffer, or null, without first copying it to a String.
+     */
+    public JsonWriter value(final CharSequence value) {
+        if (value == null) {
+            out.append("null");
+        } else {
+            string(value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter value(final long value) {
+        out.append(value);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Write the time as an ISO-8601 UTC string, <code>yyyy-MM-dd'T'HH:mm:ss.SSS'Z'</code>.
+     */
+    public JsonWriter timestampValue(final long millis) {
+        out.append('"');
+        TimestampEncoder.ZULU.append(millis, out, timestamp);
+        out.append('"');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        out.append("null");
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Write a value that is already valid JSON.
+     */
+    public JsonWriter rawValue(final CharSequence json) {
+        out.append(json);
+        needsComma = true;
+        return this;
+    }
+
+    public JsonWriter field(final String name, final String value) {
+        return name(name).value(value);
+    }
+
+    public JsonWriter field(final String name, final long value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * @return the underlying buffer
+     */
+    public StringBuilder getBuilder() {
+        return out;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    /**
+     * Pre-encode a field name, including quotes and the colon, for use with {@link #encodedName(String)}.
+     */
+    public static String encodeName(final String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 3);
+        appendQuoted(sb, name);
+        sb.append(':');
+        return sb.toString();
+    }
+
+    /**
+     * Append the value as a quoted, escaped JSON string.
+     */
+    public static void appendQuoted(final StringBuilder sb, final CharSequence value) {
+        sb.append('"');
+        appendEscaped(sb, value);
+        sb.append('"');
+    }
+
+    /**
+     * Append the value escaped for inclusion in a JSON string, without quotes. Runs of characters that need no escaping
+     * are copied in one go.
+     */
+    public static void appendEscaped(final StringBuilder sb, final CharSequence value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            if (i > start) {
+                sb.append(value, start, i);
+            }
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        if (start < length) {
+            sb.append(value, start, length);
+        }
+    }
+
+    private void string(final CharSequence value) {
+        appendQuoted(out, value);
+    }
+
+    private void separator() {
+        if (needsComma) {
+            out.append(',');
+        }
+    }
+}
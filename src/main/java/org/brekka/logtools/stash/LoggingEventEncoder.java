@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes the same document as {@link Appender#toObjectNode(LoggingEvent)} but streams it with a {@link JsonGenerator}
+ * instead of building a tree. Each thread keeps its own generator, writing into a recycled buffer, and the field names
+ * are pre-encoded, so the only per-event garbage is the resulting string. Encoding into a {@link PooledBuffer} instead
+ * does away with that too: a second generator per thread writes UTF-8 straight into the buffer. Timestamps come from
+ * the shared {@link TimestampEncoder}, in the format Jackson's StdDateFormat gives the tree.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class LoggingEventEncoder {
+
+    private static final SerializedString TIMESTAMP = new SerializedString("@timestamp");
+    private static final SerializedString SOURCE_HOST = new SerializedString("@source_host");
+    private static final SerializedString SOURCE_PATH = new SerializedString("@source_path");
+    private static final SerializedString MESSAGE = new SerializedString("@message");
+    private static final SerializedString FIELDS = new SerializedString("@fields");
+    private static final SerializedString LOGGER_NAME = new SerializedString("logger_name");
+    private static final SerializedString THREAD = new SerializedString("thread");
+    private static final SerializedString PRIORITY = new SerializedString("priority");
+    private static final SerializedString STACK_TRACE = new SerializedString("stack_trace");
+    private static final SerializedString STACK_HASH = new SerializedString("stack_hash");
+    private static final SerializedString REPEAT_COUNT = new SerializedString("repeat_count");
+    private static final SerializedString FIRST_TIMESTAMP = new SerializedString("first_timestamp");
+    private static final SerializedString LAST_TIMESTAMP = new SerializedString("last_timestamp");
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final SerializedString sourceHost;
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            try {
+                return new State(jsonFactory);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create generator", e);
+            }
+        }
+    };
+
+    /**
+     * @param sourceHost the fqdn of the host events come from
+     */
+    public LoggingEventEncoder(final String sourceHost) {
+        this.sourceHost = new SerializedString(sourceHost);
+    }
+
+    /**
+     * @param event the event to encode
+     * @param stackTrace the formatted stack trace of the event, if it has one
+     * @param stackHash the fingerprint of the stack trace, if sending traces by reference
+     * @param fieldPlan the configured fields, such as the application and those from the MDC
+     * @return the json document
+     */
+    public String encode(final LoggingEvent event, final String stackTrace, final String stackHash,
+            final FieldPlan fieldPlan) throws IOException {
+        return encode(event, stackTrace, stackHash, fieldPlan, null);
+    }
+
+    /**
+     * @param event the event to encode
+     * @param stackTrace the formatted stack trace of the event, if it has one
+     * @param stackHash the fingerprint of the stack trace, if sending traces by reference
+     * @param fieldPlan the configured fields, such as the application and those from the MDC
+     * @param repeat if this is the follow-up to the event, the repeats of it that were suppressed. The event must
+     *            have been retained by {@link Appender}.
+     * @return the json document
+     */
+    public String encode(final LoggingEvent event, final String stackTrace, final String stackHash,
+            final FieldPlan fieldPlan, final DuplicateSuppressor.Repeat<?> repeat) throws IOException {
+        // A follow-up is built away from the logging thread, so its MDC comes from the copy retained with the event
+        return encode(event, stackTrace, stackHash, fieldPlan, repeat,
+                repeat != null ? FieldPlan.capturedContext(event.getProperties()) : FieldPlan.MDC_CONTEXT);
+    }
+
+    /**
+     * @param event the event to encode
+     * @param stackTrace the formatted stack trace of the event, if it has one
+     * @param stackHash the fingerprint of the stack trace, if sending traces by reference
+     * @param fieldPlan the configured fields, such as the application and those from the MDC
+     * @param repeat if this is the follow-up to the event, the repeats of it that were suppressed
+     * @param context where to look up the MDC fields
+     * @return the json document
+     */
+    public String encode(final LoggingEvent event, final String stackTrace, final String stackHash,
+            final FieldPlan fieldPlan, final DuplicateSuppressor.Repeat<?> repeat, final FieldPlan.Context context)
+            throws IOException {
+        State state = states.get();
+        try {
+            write(state, state.generator, event, stackTrace, stackHash, fieldPlan, repeat, context);
+            return state.writer.drain();
+        } catch (IOException | RuntimeException e) {
+            // The generator may be part way through a document, start again with a fresh one.
+            states.remove();
+            throw e;
+        }
+    }
+
+    /**
+     * Encode the event as UTF-8 into the buffer, allocating nothing once the thread's generator has been created and
+     * the buffer has grown to fit.
+     *
+     * @param into the buffer to append the json document to
+     * @see #encode(LoggingEvent, String, String, FieldPlan, DuplicateSuppressor.Repeat, FieldPlan.Context)
+     */
+    public void encode(final LoggingEvent event, final String stackTrace, final String stackHash,
+            final FieldPlan fieldPlan, final DuplicateSuppressor.Repeat<?> repeat, final FieldPlan.Context context,
+            final PooledBuffer into) throws IOException {
+        State state = states.get();
+        try {
+            state.sink.target = into;
+            write(state, state.utf8Generator(jsonFactory), event, stackTrace, stackHash, fieldPlan, repeat, context);
+        } catch (IOException | RuntimeException e) {
+            states.remove();
+            throw e;
+        } finally {
+            state.sink.target = null;
+        }
+    }
+
+    private void write(final State state, final JsonGenerator gen, final LoggingEvent event, final String stackTrace,
+            final String stackHash, final FieldPlan fieldPlan, final DuplicateSuppressor.Repeat<?> repeat,
+            final FieldPlan.Context context) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName(TIMESTAMP);
+        state.writeTimestamp(gen, event.getTimeStamp());
+        gen.writeFieldName(SOURCE_HOST);
+        gen.writeString(sourceHost);
+        gen.writeFieldName(SOURCE_PATH);
+        gen.writeString(event.getLoggerName());
+        gen.writeFieldName(MESSAGE);
+        gen.writeString(Objects.toString(event.getMessage(), null));
+        gen.writeFieldName(FIELDS);
+        gen.writeStartObject();
+        gen.writeFieldName(LOGGER_NAME);
+        gen.writeString(event.getLoggerName());
+        gen.writeFieldName(THREAD);
+        gen.writeString(event.getThreadName());
+        gen.writeFieldName(PRIORITY);
+        gen.writeString(Objects.toString(event.getLevel(), null));
+        fieldPlan.jackson().writeTo(gen, context);
+        if (stackHash != null) {
+            gen.writeFieldName(STACK_HASH);
+            gen.writeString(stackHash);
+        }
+        if (stackTrace != null) {
+            gen.writeFieldName(STACK_TRACE);
+            gen.writeString(stackTrace);
+        }
+        if (repeat != null) {
+            gen.writeFieldName(REPEAT_COUNT);
+            gen.writeNumber(repeat.getCount());
+            gen.writeFieldName(FIRST_TIMESTAMP);
+            state.writeTimestamp(gen, repeat.getFirstTimestamp());
+            gen.writeFieldName(LAST_TIMESTAMP);
+            state.writeTimestamp(gen, repeat.getLastTimestamp());
+        }
+        gen.writeEndObject();
+        gen.writeEndObject();
+        gen.flush();
+    }
+
+    private static final class State {
+        private final StringBuilderWriter writer = new StringBuilderWriter(1024);
+        private final JsonGenerator generator;
+        private final Sink sink = new Sink();
+        private JsonGenerator utf8Generator;
+
+        private final byte[] timestamp = new byte[TimestampEncoder.MAX_LENGTH];
+        private final char[] timestampChars = new char[TimestampEncoder.MAX_LENGTH];
+
+        private State(final JsonFactory jsonFactory) throws IOException {
+            generator = jsonFactory.createGenerator(writer);
+            // Each event is its own root value, no separator wanted between them
+            generator.setRootValueSeparator(null);
+        }
+
+        private JsonGenerator utf8Generator(final JsonFactory jsonFactory) throws IOException {
+            if (utf8Generator == null) {
+                utf8Generator = jsonFactory.createGenerator(sink, JsonEncoding.UTF8);
+                utf8Generator.setRootValueSeparator(null);
+            }
+            return utf8Generator;
+        }
+
+        /**
+         * Write the time as a string value. The bytes go to the UTF-8 generator as they are, being plain ASCII.
+         */
+        private void writeTimestamp(final JsonGenerator gen, final long millis) throws IOException {
+            int length = TimestampEncoder.OFFSET.encode(millis, timestamp, 0);
+            if (gen == utf8Generator) {
+                gen.writeRawUTF8String(timestamp, 0, length);
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                timestampChars[i] = (char) timestamp[i];
+            }
+            gen.writeString(timestampChars, 0, length);
+        }
+    }
+
+    /**
+     * Passes what the UTF-8 generator flushes on to the buffer being encoded into.
+     */
+    private static final class Sink extends OutputStream {
+        private PooledBuffer target;
+
+        @Override
+        public void write(final int b) {
+            target.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            target.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+/**
+ * A {@link Client} that leaves out of a batch any event too large for it to send whole, rather than failing the batch
+ * or sending part of the event. The {@link Dispatcher} collects the count after each successful write.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+interface LossyClient extends Client {
+
+    /**
+     * @return the number of events left out since the last call, resetting it to zero.
+     */
+    int takeOversized();
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client built on a non-blocking {@link SocketChannel}. Events are encoded straight into pooled direct buffers and
+ * pushed to the socket with gathering writes, so a whole batch normally goes out in a single system call.
+ *
+ * Connecting and partial writes are handled via a {@link Selector}; the calling thread only ever waits on the selector,
+ * bounded by the connection/socket timeouts, never in a blocking socket operation. Before each write the channel is
+ * polled for end-of-stream so that a server which has gone away is noticed without the double flush that
+ * {@link TCPClient} relies on.
+ *
+ * Events already encoded into {@link PooledBuffer}s are copied into the direct buffers as they are, so that the
+ * garbage-free mode of the appender stays free of garbage all the way to the socket.
+ *
+ * Not thread safe beyond the lock taken by the public methods, which is all the {@link Dispatcher} needs.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class NioClient implements BufferClient {
+
+    private static final byte NEWLINE = '\n';
+
+    private final SocketAddress socketAddress;
+    private int connectionTimeout = 5000;
+    private int socketTimeout = 10000;
+    private int bufferSize = 16384;
+    private int maxPooledBuffers = 64;
+
+    /**
+     * Held while writing or closing the channel.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final Deque<ByteBuffer> pool = new ArrayDeque<>();
+
+    private final ByteBuffer probe = ByteBuffer.allocateDirect(64);
+
+    private ByteBuffer[] pending = new ByteBuffer[16];
+
+    private int pendingCount;
+
+    private SocketChannel channel;
+
+    private Selector selector;
+
+    public NioClient(String address, int port) {
+        this.socketAddress = new InetSocketAddress(address, port);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvent(java.lang.String)
+     */
+    @Override
+    public void writeEvent(String line) throws IOException {
+        writeEvents(Collections.singletonList(line));
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvents(java.util.List)
+     */
+    @Override
+    public void writeEvents(List<String> lines) throws IOException {
+        lock.lock();
+        try {
+            if (lines.isEmpty()) {
+                return;
+            }
+            if (channel == null) {
+                close();
+                establish();
+            }
+            checkOpen();
+            try {
+                for (String line : lines) {
+                    encode(line);
+                }
+                flush();
+            } finally {
+                releasePending();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.BufferClient#writeBuffers(java.util.List)
+     */
+    @Override
+    public void writeBuffers(List<PooledBuffer> buffers) throws IOException {
+        lock.lock();
+        try {
+            if (buffers.isEmpty()) {
+                return;
+            }
+            if (channel == null) {
+                close();
+                establish();
+            }
+            checkOpen();
+            try {
+                for (int i = 0; i < buffers.size(); i++) {
+                    copy(buffers.get(i));
+                }
+                flush();
+            } finally {
+                releasePending();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#beginBatch()
+     */
+    @Override
+    public void beginBatch() {
+        // Every write starts from the beginning of the batch
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        // The connection is all there is to release
+        close();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                selector = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                channel = null;
+            }
+            releasePending();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param connectionTimeout the connectionTimeout to set
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @param socketTimeout the socketTimeout to set
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * @param bufferSize the size of each pooled direct buffer
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param maxPooledBuffers how many direct buffers to keep for reuse between writes
+     */
+    public void setMaxPooledBuffers(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    /**
+     * @return the socketAddress
+     */
+    public SocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getSocketAddress().toString();
+    }
+
+    private void establish() throws IOException {
+        selector = Selector.open();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, Boolean.TRUE);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+        if (!channel.connect(socketAddress)) {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+            long deadline = deadline(connectionTimeout);
+            while (!channel.finishConnect()) {
+                await(deadline, "Connect to " + socketAddress + " timed out");
+            }
+            key.interestOps(0);
+        }
+    }
+
+    /**
+     * The server never sends anything, so a readable channel that returns end-of-stream means the other side has
+     * closed the connection.
+     */
+    private void checkOpen() throws IOException {
+        probe.clear();
+        if (channel.read(probe) < 0) {
+            throw new EOFException("Connection to " + socketAddress + " closed by peer");
+        }
+    }
+
+    private void encode(String line) throws CharacterCodingException {
+        CharBuffer chars = CharBuffer.wrap(line);
+        ByteBuffer buffer = current();
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                buffer = next();
+                continue;
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            break;
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            buffer = next();
+        }
+        if (!buffer.hasRemaining()) {
+            buffer = next();
+        }
+        buffer.put(NEWLINE);
+    }
+
+    private void copy(PooledBuffer event) {
+        ByteBuffer buffer = current();
+        int copied = event.copyTo(0, buffer);
+        while (copied < event.length()) {
+            buffer = next();
+            copied = event.copyTo(copied, buffer);
+        }
+        if (!buffer.hasRemaining()) {
+            buffer = next();
+        }
+        buffer.put(NEWLINE);
+    }
+
+    /**
+     * Gathering write of all pending buffers, waiting on the selector whenever the socket send buffer is full.
+     */
+    private void flush() throws IOException {
+        for (int i = 0; i < pendingCount; i++) {
+            pending[i].flip();
+        }
+        SelectionKey key = null;
+        long deadline = deadline(socketTimeout);
+        int offset = 0;
+        while (offset < pendingCount) {
+            long written = channel.write(pending, offset, pendingCount - offset);
+            while (offset < pendingCount && !pending[offset].hasRemaining()) {
+                offset++;
+            }
+            if (written == 0 && offset < pendingCount) {
+                if (key == null) {
+                    key = channel.register(selector, SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                await(deadline, "Write to " + socketAddress + " timed out");
+            } else if (written > 0) {
+                deadline = deadline(socketTimeout);
+            }
+        }
+        if (key != null) {
+            key.interestOps(0);
+        }
+    }
+
+    private void await(long deadline, String timeoutMessage) throws IOException {
+        long remaining = (deadline - System.nanoTime()) / 1000000L;
+        if (remaining <= 0) {
+            throw new SocketTimeoutException(timeoutMessage);
+        }
+        selector.select(remaining);
+        selector.selectedKeys().clear();
+    }
+
+    private ByteBuffer current() {
+        if (pendingCount == 0) {
+            return next();
+        }
+        return pending[pendingCount - 1];
+    }
+
+    private ByteBuffer next() {
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        if (pendingCount == pending.length) {
+            ByteBuffer[] expanded = new ByteBuffer[pending.length * 2];
+            System.arraycopy(pending, 0, expanded, 0, pendingCount);
+            pending = expanded;
+        }
+        pending[pendingCount++] = buffer;
+        return buffer;
+    }
+
+    private void releasePending() {
+        for (int i = 0; i < pendingCount; i++) {
+            ByteBuffer buffer = pending[i];
+            pending[i] = null;
+            if (pool.size() < maxPooledBuffers) {
+                buffer.clear();
+                pool.addFirst(buffer);
+            }
+        }
+        pendingCount = 0;
+    }
+
+    private static long deadline(int timeoutMillis) {
+        // A zero timeout means wait indefinitely, as with java.net.Socket
+        long millis = timeoutMillis > 0 ? timeoutMillis : Integer.MAX_VALUE;
+        return System.nanoTime() + millis * 1000000L;
+    }
+}
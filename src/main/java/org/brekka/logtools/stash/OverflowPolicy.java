@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.Locale;
+
+/**
+ * What the {@link Dispatcher} does with an event when its queue is full (and there is no spill journal to take it).
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+enum OverflowPolicy {
+
+    /**
+     * Drop the event being dispatched. The default.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Make room by discarding the oldest queued event, so the most recent events are the ones delivered.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Wait up to the block timeout for space, then drop the event being dispatched. Slows logging threads down to the
+     * rate the server can take, within limits.
+     */
+    BLOCK,
+
+    /**
+     * Shed load by severity as the queue fills: from {@link #SHED_DEBUG_RATIO} full debug events are refused, from
+     * {@link #SHED_INFO_RATIO} info events are refused too and warnings lose their stack trace. Errors are always
+     * admitted, evicting queued events of lower severity if the queue is full.
+     */
+    LEVEL_AWARE {
+        @Override
+        Admission admit(final Severity severity, final int depth, final int capacity) {
+            if (severity == Severity.ERROR) {
+                return Admission.ADMIT;
+            }
+            if (depth >= capacity * SHED_INFO_RATIO) {
+                return severity == Severity.WARN ? Admission.STRIP_STACK_TRACE : Admission.DROP;
+            }
+            if (depth >= capacity * SHED_DEBUG_RATIO && severity == Severity.DEBUG) {
+                return Admission.DROP;
+            }
+            return Admission.ADMIT;
+        }
+
+        @Override
+        int evictBelow() {
+            return Severity.ERROR.ordinal();
+        }
+    };
+
+    static final double SHED_DEBUG_RATIO = 0.7;
+
+    static final double SHED_INFO_RATIO = 0.9;
+
+    /**
+     * Whether an event should be encoded and dispatched at all, decided before it is built.
+     */
+    enum Admission {
+        ADMIT,
+
+        /**
+         * Admit the event, but without its stack trace.
+         */
+        STRIP_STACK_TRACE,
+
+        DROP;
+    }
+
+    /**
+     * @param severity of the event about to be dispatched
+     * @param depth the current number of queued events
+     * @param capacity the size of the queue
+     */
+    Admission admit(final Severity severity, final int depth, final int capacity) {
+        return Admission.ADMIT;
+    }
+
+    /**
+     * @return the {@link Severity#ordinal() ordinal} below which queued events may be evicted to make room when the
+     * queue is full, zero if this policy never evicts.
+     */
+    int evictBelow() {
+        return this == DROP_OLDEST ? Integer.MAX_VALUE : 0;
+    }
+
+    /**
+     * Resolve a policy from its configuration name, case insensitive.
+     *
+     * @param name the policy name, null resolves to {@link #DROP_NEWEST}
+     */
+    static OverflowPolicy forName(final String name) {
+        if (name == null || name.isEmpty()) {
+            return DROP_NEWEST;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
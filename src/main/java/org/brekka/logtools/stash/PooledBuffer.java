@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An event encoded as UTF-8 into a reusable byte array, taken from a {@link BufferPool} by the logging thread and
+ * handed back to it by the dispatcher once the event has been written, spilled or dropped. Whoever is finished with
+ * the buffer last must call {@link #release()}, and must not touch it afterwards.
+ *
+ * As a {@link DeferredEvent} it can go through the dispatcher like any other, being decoded into a string for clients
+ * that cannot write the bytes directly (see {@link BufferClient}).
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class PooledBuffer extends OutputStream implements DeferredEvent {
+
+    private final BufferPool pool;
+
+    private byte[] bytes;
+
+    private int length;
+
+    /**
+     * Set while the buffer sits in the pool, so that releasing it twice does not put it there twice.
+     */
+    private boolean pooled;
+
+    PooledBuffer(final BufferPool pool, final int capacity) {
+        this.pool = pool;
+        this.bytes = new byte[capacity];
+    }
+
+    @Override
+    public void write(final int b) {
+        ensureCapacity(length + 1);
+        bytes[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(b, off, bytes, length, len);
+        length += len;
+    }
+
+    /**
+     * Append the characters encoded as UTF-8, an unpaired surrogate becoming '?' as with {@link String#getBytes}.
+     */
+    void writeUtf8(final CharSequence chars) {
+        int count = chars.length();
+        // At most three bytes per char, a surrogate pair taking four for the two
+        ensureCapacity(length + count * 3);
+        byte[] b = bytes;
+        int pos = length;
+        for (int i = 0; i < count; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                b[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                b[pos++] = (byte) (0xC0 | c >> 6);
+                b[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                b[pos++] = (byte) (0xE0 | c >> 12);
+                b[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                b[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                b[pos++] = (byte) (0xF0 | codePoint >> 18);
+                b[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                b[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                b[pos++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                b[pos++] = '?';
+            }
+        }
+        length = pos;
+    }
+
+    /**
+     * Copy the encoded event to the stream.
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Copy as much of the encoded event as fits into the byte buffer.
+     *
+     * @param from the offset into the event to start from
+     * @return the offset reached, the length once the whole event has been copied
+     */
+    int copyTo(final int from, final ByteBuffer into) {
+        int count = Math.min(length - from, into.remaining());
+        into.put(bytes, from, count);
+        return from + count;
+    }
+
+    /**
+     * @return the number of bytes encoded.
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the size of the backing array
+     */
+    int capacity() {
+        return bytes.length;
+    }
+
+    /**
+     * Decode the event, for clients that only take strings.
+     */
+    @Override
+    public String encode() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Empty the buffer and return it to its pool.
+     */
+    void release() {
+        if (pooled) {
+            return;
+        }
+        length = 0;
+        pooled = true;
+        pool.release(this);
+    }
+
+    /**
+     * Called by the pool as the buffer is taken from it.
+     */
+    void taken() {
+        pooled = false;
+    }
+
+    private void ensureCapacity(final int required) {
+        if (required > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(required, bytes.length << 1));
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
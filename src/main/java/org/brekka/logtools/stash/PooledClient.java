@@ -0,0 +1,455 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Client that spreads events over connections to several servers. Endpoints are given as a comma separated list of
+ * <code>host[:port]</code>, where each host name may resolve to several addresses; one connection is kept per address.
+ * Names are re-resolved periodically so that servers can be added or replaced without reconfiguring the application
+ * (note that the JVM's own DNS cache, <code>networkaddress.cache.ttl</code>, still applies).
+ *
+ * A connection that fails is taken out of rotation and the write moves on to the next live one. Failed connections
+ * are probed in the background and put back into rotation once they accept connections again. With the virtual
+ * {@link ThreadMode} the background tasks run on virtual threads and the failed connections are probed concurrently,
+ * one virtual thread each, so a long list of unreachable endpoints does not hold up the probing of the rest.
+ *
+ * Buffers written to the pool are passed on as they are to members that take them, and only decoded into strings for
+ * those that do not (beats and udp).
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class PooledClient implements BufferClient, LossyClient {
+
+    /**
+     * How the next connection is chosen.
+     */
+    enum Balancing {
+        ROUND_ROBIN,
+        LEAST_OUTSTANDING;
+
+        static Balancing forName(final String name) {
+            if (name == null || name.isEmpty()) {
+                return ROUND_ROBIN;
+            }
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+
+    private final ClientSettings settings;
+
+    private final Balancing balancing;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ThreadMode threadMode;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * The lanes of a dispatcher sharing the pool, each of which will call {@link #shutdown()} when done with it.
+     */
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    /**
+     * Replaced wholesale on re-resolution, so readers never need to lock. An array, so that going over it on the
+     * dispatcher thread allocates nothing.
+     */
+    private volatile Member[] members = new Member[0];
+
+    /**
+     * @param settings the endpoints to connect to and the settings for each connection
+     */
+    public PooledClient(final ClientSettings settings) {
+        this.settings = settings;
+        this.endpoints = parse(settings.getEndpoints(), settings.getPort());
+        this.balancing = Balancing.forName(settings.getLoadBalancing());
+        long resolveIntervalMillis = settings.getResolveIntervalMillis();
+        this.threadMode = ThreadMode.forName(settings.getThreadMode());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadMode.factory("LogStashPoolMonitor"));
+        resolve();
+        if (resolveIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    // An exception would cancel the task, leaving the pool with the addresses it has now for good
+                    try {
+                        resolve();
+                    } catch (RuntimeException e) {
+                        LogLog.error("Re-resolving the endpoints of " + PooledClient.this + " failed", e);
+                    }
+                }
+            }, resolveIntervalMillis, resolveIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probe();
+                } catch (RuntimeException e) {
+                    LogLog.error("Probing the failed members of " + PooledClient.this + " failed", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvent(java.lang.String)
+     */
+    @Override
+    public void writeEvent(final String line) throws IOException {
+        writeEvents(Collections.singletonList(line));
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvents(java.util.List)
+     */
+    @Override
+    public void writeEvents(final List<String> lines) throws IOException {
+        write(lines);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.BufferClient#writeBuffers(java.util.List)
+     */
+    @Override
+    public void writeBuffers(final List<PooledBuffer> buffers) throws IOException {
+        write(buffers);
+    }
+
+    /**
+     * @param events either all strings or all buffers
+     */
+    private void write(final List<?> events) throws IOException {
+        Member[] current = members;
+        IOException last = null;
+        for (int attempt = 0; attempt < current.length; attempt++) {
+            Member member = choose(current);
+            if (member == null) {
+                break;
+            }
+            member.outstanding.incrementAndGet();
+            try {
+                write(member.client, events);
+                return;
+            } catch (IOException e) {
+                last = e;
+                member.down = true;
+                member.client.close();
+            } finally {
+                member.outstanding.decrementAndGet();
+            }
+        }
+        if (last != null) {
+            throw last;
+        }
+        throw new IOException(String.format("No live connections to %s", endpoints));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(final Client client, final List<?> events) throws IOException {
+        List<?> lines = events;
+        if (!events.isEmpty() && events.get(0) instanceof PooledBuffer) {
+            if (client instanceof BufferClient) {
+                ((BufferClient) client).writeBuffers((List<PooledBuffer>) events);
+                return;
+            }
+            List<String> decoded = new ArrayList<>(events.size());
+            for (int i = 0; i < events.size(); i++) {
+                decoded.add(((PooledBuffer) events.get(i)).encode());
+            }
+            lines = decoded;
+        }
+        if (lines.size() == 1) {
+            client.writeEvent((String) lines.get(0));
+        } else {
+            client.writeEvents((List<String>) lines);
+        }
+    }
+
+    /**
+     * Pass on to every member, as a retry of the previous batch may have gone to any of them.
+     */
+    @Override
+    public void beginBatch() {
+        Member[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            current[i].client.beginBatch();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.LossyClient#takeOversized()
+     */
+    @Override
+    public int takeOversized() {
+        Member[] current = members;
+        int count = 0;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].client instanceof LossyClient) {
+                count += ((LossyClient) current[i].client).takeOversized();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        // Closing just drops the connections; the pool itself stays usable as the Dispatcher will retry.
+        Member[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            current[i].client.close();
+        }
+    }
+
+    /**
+     * Take on another user of the pool, such as another lane of the same dispatcher. Writes from several threads
+     * are fine, each member connection taking its own lock.
+     *
+     * @return this pool
+     */
+    PooledClient share() {
+        users.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Stop the background resolution and probing, and close all connections, once the last user is done.
+     */
+    @Override
+    public void shutdown() {
+        if (users.decrementAndGet() > 0) {
+            return;
+        }
+        scheduler.shutdownNow();
+        close();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return endpoints.toString();
+    }
+
+    /**
+     * @return the addresses currently in the pool, live or not.
+     */
+    List<InetSocketAddress> getAddresses() {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (Member member : members) {
+            addresses.add(member.address);
+        }
+        return addresses;
+    }
+
+    private Member select(final Member[] current) {
+        int size = current.length;
+        if (size == 0) {
+            return null;
+        }
+        if (balancing == Balancing.LEAST_OUTSTANDING) {
+            Member best = null;
+            int start = next.getAndIncrement() & Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                // Rotate the starting point so ties are shared out
+                Member member = current[(start + i) % size];
+                if (!member.down && (best == null || member.outstanding.get() < best.outstanding.get())) {
+                    best = member;
+                }
+            }
+            return best;
+        }
+        for (int i = 0; i < size; i++) {
+            Member member = current[(next.getAndIncrement() & Integer.MAX_VALUE) % size];
+            if (!member.down) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pick the next member to try. If every member is marked down, fall back to trying them in turn anyway rather
+     * than waiting for the probe.
+     */
+    private Member choose(final Member[] current) {
+        Member member = select(current);
+        if (member == null && current.length > 0) {
+            member = current[(next.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+        }
+        return member;
+    }
+
+    /**
+     * Look up all endpoint addresses, keeping existing connections to addresses that are still present.
+     */
+    private void resolve() {
+        Map<InetSocketAddress, Member> existing = new LinkedHashMap<>();
+        for (Member member : members) {
+            existing.put(member.address, member);
+        }
+        Map<InetSocketAddress, Member> resolved = new LinkedHashMap<>();
+        for (Endpoint endpoint : endpoints) {
+            InetAddress[] addresses;
+            try {
+                addresses = InetAddress.getAllByName(endpoint.host);
+            } catch (UnknownHostException e) {
+                // Keep whatever we had for this endpoint until it can be resolved again
+                for (Member member : existing.values()) {
+                    if (member.endpoint == endpoint) {
+                        resolved.put(member.address, member);
+                    }
+                }
+                continue;
+            }
+            for (InetAddress address : addresses) {
+                InetSocketAddress socketAddress = new InetSocketAddress(address, endpoint.port);
+                if (resolved.containsKey(socketAddress)) {
+                    continue;
+                }
+                Member member = existing.get(socketAddress);
+                if (member == null) {
+                    Client client = ClientFactory.createSingle(
+                            settings.forAddress(address.getHostAddress(), endpoint.port));
+                    member = new Member(endpoint, socketAddress, client);
+                }
+                resolved.put(socketAddress, member);
+            }
+        }
+        members = resolved.values().toArray(new Member[resolved.size()]);
+        for (Member previous : existing.values()) {
+            if (!resolved.containsKey(previous.address)) {
+                previous.client.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Attempt a plain connection to each failed member, returning it to rotation if that succeeds.
+     */
+    private void probe() {
+        boolean connectionless = ClientFactory.UDP.equalsIgnoreCase(String.valueOf(settings.getProtocol()).trim());
+        List<Thread> probes = new ArrayList<>();
+        for (final Member member : members) {
+            if (!member.down) {
+                continue;
+            }
+            if (connectionless) {
+                // Nothing to probe, just let it try again
+                member.down = false;
+            } else if (threadMode == ThreadMode.VIRTUAL) {
+                Thread probe = threadMode.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        probe(member);
+                    }
+                }, "LogStashPoolProbe", Thread.NORM_PRIORITY);
+                probe.start();
+                probes.add(probe);
+            } else {
+                probe(member);
+            }
+        }
+        try {
+            for (Thread probe : probes) {
+                probe.join();
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void probe(final Member member) {
+        try (Socket socket = new Socket()) {
+            socket.connect(member.address, settings.getConnectionTimeoutMillis());
+            member.down = false;
+        } catch (IOException | RuntimeException e) {
+            // Still down
+        }
+    }
+
+    private static List<Endpoint> parse(final String endpoints, final int defaultPort) {
+        List<Endpoint> list = new ArrayList<>();
+        for (String value : endpoints.split(",")) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int colon = value.lastIndexOf(':');
+            if (colon > 0 && value.indexOf(':') == colon) {
+                list.add(new Endpoint(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1))));
+            } else {
+                list.add(new Endpoint(value, defaultPort));
+            }
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No endpoints specified in '%s'", endpoints));
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static final class Endpoint {
+        private final String host;
+        private final int port;
+
+        private Endpoint(final String host, final int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private static final class Member {
+        private final Endpoint endpoint;
+        private final InetSocketAddress address;
+        private final Client client;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean down;
+
+        private Member(final Endpoint endpoint, final InetSocketAddress address, final Client client) {
+            this.endpoint = endpoint;
+            this.address = address;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer of preallocated event slots. Producers claim a slot by CAS on
+ * the tail sequence and publish it by advancing that slot's own sequence, so {@link #offer(Object)} never allocates
+ * and never takes a lock. The capacity is always rounded up to a power of two. Each slot can also carry a timestamp,
+ * used by the {@link Dispatcher} to measure how long events wait, and a small integer tag (the event's severity).
+ *
+ * Only one thread may call {@link #poll()} / {@link #drainTo(List, int)}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class RingBuffer<E> {
+
+    private final int mask;
+
+    private final Object[] slots;
+
+    private final long[] stamps;
+
+    private final int[] tags;
+
+    /**
+     * Per-slot sequence. A slot is free for the producer claiming position <code>p</code> when its sequence equals
+     * <code>p</code> and readable by the consumer at position <code>p</code> when it equals <code>p + 1</code>.
+     */
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Only ever written by the consumer thread, volatile so that {@link #size()} can be read from anywhere.
+     */
+    private volatile long head;
+
+    public RingBuffer(final int requestedCapacity) {
+        int capacity = 1;
+        while (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.slots = new Object[capacity];
+        this.stamps = new long[capacity];
+        this.tags = new int[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add the element if there is space.
+     *
+     * @return false if the buffer is full, in which case the element has not been added.
+     */
+    public boolean offer(final E element) {
+        return offer(element, 0L);
+    }
+
+    /**
+     * Add the element along with a timestamp, if there is space.
+     *
+     * @return false if the buffer is full, in which case the element has not been added.
+     */
+    public boolean offer(final E element, final long stamp) {
+        return offer(element, stamp, 0);
+    }
+
+    /**
+     * Add the element along with a timestamp and tag, if there is space.
+     *
+     * @return false if the buffer is full, in which case the element has not been added.
+     */
+    public boolean offer(final E element, final long stamp, final int tag) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            long diff = sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = element;
+                    stamps[index] = stamp;
+                    tags[index] = tag;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The consumer has not yet released this slot from the previous lap.
+                return false;
+            }
+            // Another producer claimed this position first, try again with the new tail.
+        }
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the next element or null if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = (E) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, position + mask + 1);
+        head = position + 1;
+        return element;
+    }
+
+    /**
+     * Consumer only. Move up to <code>max</code> elements into the target list.
+     *
+     * @return the number of elements moved.
+     */
+    public int drainTo(final List<? super E> target, final int max) {
+        int count = 0;
+        E element;
+        while (count < max && (element = poll()) != null) {
+            target.add(element);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Consumer only. Move up to <code>max</code> elements into the target list, along with their timestamps into the
+     * matching positions of <code>targetStamps</code>, which must be at least as long as the resulting list.
+     *
+     * @return the number of elements moved.
+     */
+    public int drainTo(final List<? super E> target, final int max, final long[] targetStamps) {
+        return drainTo(target, max, targetStamps, null);
+    }
+
+    /**
+     * Consumer only. As {@link #drainTo(List, int, long[])}, also copying the tags into <code>targetTags</code> if it
+     * is not null.
+     *
+     * @return the number of elements moved.
+     */
+    @SuppressWarnings("unchecked")
+    public int drainTo(final List<? super E> target, final int max, final long[] targetStamps,
+            final int[] targetTags) {
+        int count = 0;
+        while (count < max) {
+            long position = head;
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            targetStamps[target.size()] = stamps[index];
+            if (targetTags != null) {
+                targetTags[target.size()] = tags[index];
+            }
+            target.add((E) slots[index]);
+            slots[index] = null;
+            sequences.lazySet(index, position + mask + 1);
+            head = position + 1;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return an estimate of the number of elements currently held.
+     */
+    public int size() {
+        long size = tail.get() - head;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity());
+    }
+
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
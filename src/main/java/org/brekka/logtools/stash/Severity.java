@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+/**
+ * Severity of an event as far as the {@link Dispatcher} is concerned, in increasing order. Each logging framework's
+ * levels are mapped onto these by its appender; access log events are {@link #INFO}, or {@link #WARN} for server
+ * errors (5xx).
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+enum Severity {
+
+    /**
+     * Debug and trace.
+     */
+    DEBUG,
+
+    INFO,
+
+    WARN,
+
+    /**
+     * Error and fatal.
+     */
+    ERROR;
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Append-only journal of events held on local disk in fixed size, memory-mapped segments. Used by the
+ * {@link Dispatcher} to hold events that cannot be kept in memory while the server is unreachable.
+ *
+ * Each record is a four byte length followed by the UTF-8 encoded event. The length is written last so a record only
+ * becomes visible once complete. A length of zero marks the end of the written data, {@link #SEALED} marks a segment
+ * that has been rolled over.
+ *
+ * The read position is only committed by {@link #acknowledge()}, once the events returned by
+ * {@link #read(List, int)} have been written. It is persisted in a checksummed offset file so the journal can be
+ * resumed after a restart; if that file is found to be torn, replay starts from the oldest segment (duplicates
+ * rather than loss). Segments behind the committed position are deleted.
+ *
+ * A journal has its directory to itself: a lock file is held from opening until {@link #close()}, so a second journal
+ * on the same directory, in this process or another, fails to open rather than overwriting the first one's records.
+ *
+ * Appends are made by logging threads, so rolling over to a new segment does not wait for the old one to reach the
+ * disk. Sealed segments are instead forced by {@link #forceSealed()}, which the dispatcher calls from its own thread.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class SpillJournal {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final String OFFSET_FILE = "journal.offset";
+
+    private static final String LOCK_FILE = "journal.lock";
+
+    private static final int SEALED = -1;
+
+    private static final long OFFSET_MAGIC = 0x4c6f675374617368L;
+
+    private final File directory;
+
+    private final int segmentBytes;
+
+    private final long maxBytes;
+
+    private final TreeSet<Long> segmentIds = new TreeSet<>();
+
+    private final MappedByteBuffer offsetBuffer;
+
+    private final FileChannel lockChannel;
+
+    private final FileLock lock;
+
+    private long writeSegmentId = -1;
+
+    private MappedByteBuffer writeBuffer;
+
+    private long readSegmentId = -1;
+
+    private ByteBuffer readBuffer;
+
+    private int readPosition;
+
+    /**
+     * Segments sealed by {@link #roll()} that have yet to be forced to disk.
+     */
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+
+    /**
+     * Set whenever {@link #unforced} has something in it, so that checking does not need the lock.
+     */
+    private volatile boolean rolled;
+
+    /**
+     * @param directory where to keep the segment files, created if necessary
+     * @param segmentBytes the size of each segment, which also limits the size of a single event
+     * @param maxBytes upper bound on the total size of all segments
+     * @throws IOException if the directory cannot be created, or is in use by another journal
+     */
+    public SpillJournal(final File directory, final int segmentBytes, final long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, segmentBytes);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create spill directory '%s'", directory));
+        }
+        lockChannel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        FileLock acquired = null;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another journal in this JVM
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException(String.format("Spill directory '%s' is already in use by another journal",
+                    directory));
+        }
+        lock = acquired;
+        try {
+            findSegments();
+            offsetBuffer = map(new File(directory, OFFSET_FILE), 24);
+            recoverReader();
+            recoverWriter();
+        } catch (IOException | RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    private void findSegments() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segmentIds.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an event to the end of the journal.
+     *
+     * @return false if the journal is full or the event is too large for a segment.
+     */
+    public synchronized boolean append(final String event) throws IOException {
+        byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+        // Always leave room for the marker that follows the record
+        int required = 4 + bytes.length + 4;
+        if (required > segmentBytes) {
+            return false;
+        }
+        if (writeBuffer == null || segmentBytes - writeBuffer.position() < required) {
+            if (!roll()) {
+                return false;
+            }
+        }
+        int position = writeBuffer.position();
+        writeBuffer.position(position + 4);
+        writeBuffer.put(bytes);
+        writeBuffer.putInt(position, bytes.length);
+        return true;
+    }
+
+    /**
+     * Read up to <code>max</code> events following those previously read. The position is not committed until
+     * {@link #acknowledge()} is called.
+     *
+     * @return the number of events added to the target.
+     */
+    public synchronized int read(final List<String> target, final int max) throws IOException {
+        int count = 0;
+        while (count < max) {
+            if (readBuffer == null) {
+                if (segmentIds.isEmpty()) {
+                    break;
+                }
+                readSegmentId = segmentIds.first();
+                readBuffer = segmentBuffer(readSegmentId);
+                readPosition = 0;
+            }
+            int length = readPosition + 4 <= segmentBytes ? readBuffer.getInt(readPosition) : SEALED;
+            if (length == SEALED || (length == 0 && readSegmentId < writeSegmentId)) {
+                // Move on to the next segment. A segment that was not sealed must have been cut short by a crash.
+                Long next = segmentIds.higher(readSegmentId);
+                if (next == null) {
+                    break;
+                }
+                readSegmentId = next;
+                readBuffer = segmentBuffer(readSegmentId);
+                readPosition = 0;
+                continue;
+            }
+            if (length <= 0 || readPosition + 4 + length > segmentBytes) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer record = readBuffer.duplicate();
+            record.position(readPosition + 4);
+            record.get(bytes);
+            target.add(new String(bytes, StandardCharsets.UTF_8));
+            readPosition += 4 + length;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Commit the position of the last read, deleting any segments that have been completely consumed.
+     */
+    public synchronized void acknowledge() {
+        if (readSegmentId < 0) {
+            return;
+        }
+        offsetBuffer.putLong(0, readSegmentId);
+        offsetBuffer.putLong(8, readPosition);
+        offsetBuffer.putLong(16, checksum(readSegmentId, readPosition));
+        while (!segmentIds.isEmpty() && segmentIds.first() < readSegmentId) {
+            Long id = segmentIds.pollFirst();
+            File file = segmentFile(id);
+            if (!file.delete()) {
+                // Probably still mapped (Windows), it will be picked up again on restart and skipped by offset.
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Force the segments sealed since the last call to disk. The force itself happens outside the lock, so appends
+     * carry on meanwhile.
+     */
+    public void forceSealed() {
+        if (!rolled) {
+            return;
+        }
+        List<MappedByteBuffer> sealed;
+        synchronized (this) {
+            sealed = new ArrayList<>(unforced);
+            unforced.clear();
+            rolled = false;
+        }
+        for (MappedByteBuffer buffer : sealed) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * @return true if there are sealed segments waiting for {@link #forceSealed()}.
+     */
+    boolean hasUnforced() {
+        return rolled;
+    }
+
+    /**
+     * Flush outstanding changes to disk, and give up the directory.
+     */
+    public synchronized void close() {
+        forceSealed();
+        if (writeBuffer != null) {
+            writeBuffer.force();
+        }
+        offsetBuffer.force();
+        unlock();
+    }
+
+    /**
+     * @return the directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return directory.toString();
+    }
+
+    /**
+     * Let another journal have the directory.
+     */
+    private void unlock() {
+        try {
+            if (lock.isValid()) {
+                lock.release();
+            }
+            lockChannel.close();
+        } catch (IOException e) {
+            // Closing the channel releases the lock regardless
+        }
+    }
+
+    private boolean roll() throws IOException {
+        if ((segmentIds.size() + 1L) * segmentBytes > maxBytes) {
+            return false;
+        }
+        if (writeBuffer != null && writeBuffer.position() + 4 <= segmentBytes) {
+            writeBuffer.putInt(writeBuffer.position(), SEALED);
+        }
+        if (writeBuffer != null) {
+            // Forced later by the dispatcher, rather than here on the logging thread
+            unforced.add(writeBuffer);
+            rolled = true;
+        }
+        writeSegmentId = segmentIds.isEmpty() ? 0 : segmentIds.last() + 1;
+        writeBuffer = map(segmentFile(writeSegmentId), segmentBytes);
+        segmentIds.add(writeSegmentId);
+        return true;
+    }
+
+    private void recoverReader() throws IOException {
+        long segmentId = offsetBuffer.getLong(0);
+        long position = offsetBuffer.getLong(8);
+        boolean valid = offsetBuffer.getLong(16) == checksum(segmentId, position)
+                && segmentIds.contains(segmentId)
+                && position >= 0 && position < segmentBytes;
+        if (!valid) {
+            // Nothing committed yet, or a torn write. Start again from the beginning.
+            return;
+        }
+        while (segmentIds.first() < segmentId) {
+            segmentFile(segmentIds.pollFirst()).delete();
+        }
+        readSegmentId = segmentId;
+        readBuffer = segmentBuffer(segmentId);
+        readPosition = (int) position;
+    }
+
+    private void recoverWriter() throws IOException {
+        if (segmentIds.isEmpty()) {
+            return;
+        }
+        long lastId = segmentIds.last();
+        MappedByteBuffer buffer = map(segmentFile(lastId), segmentBytes);
+        int position = 0;
+        int length;
+        while (position + 4 <= segmentBytes && (length = buffer.getInt(position)) > 0
+                && position + 4 + length <= segmentBytes) {
+            position += 4 + length;
+        }
+        if (position + 4 <= segmentBytes && buffer.getInt(position) == SEALED) {
+            // Let the next append roll to a new segment
+            position = segmentBytes;
+        }
+        writeSegmentId = lastId;
+        writeBuffer = buffer;
+        writeBuffer.position(position);
+    }
+
+    private ByteBuffer segmentBuffer(final long segmentId) throws IOException {
+        if (segmentId == writeSegmentId) {
+            // Share the writer's mapping rather than mapping the same file twice
+            return writeBuffer.duplicate();
+        }
+        return map(segmentFile(segmentId), segmentBytes);
+    }
+
+    private File segmentFile(final long segmentId) {
+        return new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+    }
+
+    private static long checksum(final long segmentId, final long position) {
+        return (segmentId * 31) ^ position ^ OFFSET_MAGIC;
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel()) {
+            // The mapping outlives the channel. Extending the file zero fills it, which reads as end of data.
+            return channel.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of rendered stack traces, keyed by a fingerprint of the throwable's structure. The same exception
+ * logged over and over (typically during an outage) only has its trace printed and escaped once.
+ *
+ * A hit is a lookup in a concurrent map and no lock, so an exception storm does not line the logging threads up
+ * behind each other. Only inserting a new trace takes the lock, to evict in approximate LRU order: traces leave in the
+ * order they were added, except that one used since it was last considered gets a second chance (the clock
+ * algorithm).
+ *
+ * The fingerprint covers the class, message and frames of the throwable, its causes and suppressed exceptions. It is
+ * a 64-bit hash so two different traces could in theory collide, in which case the first one rendered is reused.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class StackTraceCache {
+
+    /**
+     * Guards against cause chains that loop back on themselves.
+     */
+    private static final int MAX_DEPTH = 32;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int maxSize;
+
+    private final ConcurrentMap<Long, CachedTrace> entries = new ConcurrentHashMap<>();
+
+    /**
+     * The entries in the order they are due to be evicted, guarded by itself.
+     */
+    private final ArrayDeque<CachedTrace> order = new ArrayDeque<>();
+
+    /**
+     * @param maxSize the number of distinct traces to keep, zero to render every time
+     */
+    public StackTraceCache(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Find the rendered trace of the throwable, rendering it if it has not been seen recently.
+     */
+    public CachedTrace lookup(final Throwable throwable) {
+        long fingerprint = fingerprint(throwable);
+        Long key = Long.valueOf(fingerprint);
+        CachedTrace entry = entries.get(key);
+        if (entry != null) {
+            if (!entry.referenced) {
+                // Only written when it changes, so that a hot entry's cache line is not bounced between threads
+                entry.referenced = true;
+            }
+            return entry;
+        }
+        // Render outside the lock, a race just means rendering the same trace twice
+        entry = new CachedTrace(fingerprint, render(throwable));
+        if (maxSize <= 0) {
+            return entry;
+        }
+        synchronized (order) {
+            CachedTrace existing = entries.putIfAbsent(key, entry);
+            if (existing != null) {
+                return existing;
+            }
+            order.addLast(entry);
+            while (order.size() > maxSize) {
+                evict();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return the number of traces held.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove the first entry in line that has not been used since it was last considered, clearing the mark of those
+     * that have on the way. Called with the lock held.
+     */
+    private void evict() {
+        while (true) {
+            CachedTrace eldest = order.pollFirst();
+            if (eldest.referenced) {
+                eldest.referenced = false;
+                order.addLast(eldest);
+            } else {
+                entries.remove(Long.valueOf(eldest.fingerprint), eldest);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Print the stack trace of the throwable with line breaks and tabs turned into their escape sequences.
+     */
+    static String render(final Throwable throwable) {
+        StringBuilderWriter writer = new StringBuilderWriter(1024);
+        try (PrintWriter out = new PrintWriter(writer)) {
+            throwable.printStackTrace(out);
+        }
+        StringBuilder printed = writer.getBuilder();
+        StringBuilder sb = new StringBuilder(printed.length() + 64);
+        escapeWhitespace(sb, printed);
+        return sb.toString();
+    }
+
+    /**
+     * Single pass replacement of newlines and tabs with <code>\n</code> and <code>\t</code>.
+     */
+    static void escapeWhitespace(final StringBuilder sb, final CharSequence value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c != '\n' && c != '\t') {
+                continue;
+            }
+            sb.append(value, start, i).append('\\').append(c == '\n' ? 'n' : 't');
+            start = i + 1;
+        }
+        sb.append(value, start, length);
+    }
+
+    /**
+     * Hash the structure of the throwable, without rendering it.
+     */
+    static long fingerprint(final Throwable throwable) {
+        return fingerprint(FNV_OFFSET, throwable, 0);
+    }
+
+    private static long fingerprint(long hash, final Throwable throwable, final int depth) {
+        Throwable current = throwable;
+        for (int i = depth; current != null && i < MAX_DEPTH; i++) {
+            hash = mix(hash, current.getClass().getName().hashCode());
+            hash = mix(hash, Objects.hashCode(current.getMessage()));
+            StackTraceElement[] frames = current.getStackTrace();
+            hash = mix(hash, frames.length);
+            for (StackTraceElement frame : frames) {
+                hash = mix(hash, frame.hashCode());
+            }
+            for (Throwable suppressed : current.getSuppressed()) {
+                hash = fingerprint(hash, suppressed, i + 1);
+            }
+            Throwable cause = current.getCause();
+            current = cause == current ? null : cause;
+        }
+        return hash;
+    }
+
+    private static long mix(final long hash, final int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    /**
+     * A rendered trace, along with when it was last sent in full.
+     */
+    static final class CachedTrace {
+        private final long fingerprint;
+        private final String hash;
+        private final String trace;
+        private final AtomicLong lastFullTrace = new AtomicLong();
+
+        /**
+         * Set when the entry is found in the cache, cleared when eviction passes over it.
+         */
+        private volatile boolean referenced;
+
+        private CachedTrace(final long fingerprint, final String trace) {
+            this.fingerprint = fingerprint;
+            this.hash = String.format("%016x", fingerprint);
+            this.trace = trace;
+        }
+
+        /**
+         * @return the fingerprint as hex, sent as the stack_hash.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the rendered trace
+         */
+        public String getTrace() {
+            return trace;
+        }
+
+        /**
+         * Decide whether the full trace should go with this occurrence, which is the case for the first one in each
+         * interval. Only one caller will be told yes per interval.
+         */
+        public boolean claimFullTrace(final long now, final long intervalMillis) {
+            long last = lastFullTrace.get();
+            if (last != 0 && now - last < intervalMillis) {
+                return false;
+            }
+            return lastFullTrace.compareAndSet(last, now);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.Writer;
+
+/**
+ * Unsynchronized writer over a reusable {@link StringBuilder}, used to recycle encoding buffers between events.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class StringBuilderWriter extends Writer {
+
+    private final StringBuilder builder;
+
+    public StringBuilderWriter(final int capacity) {
+        this.builder = new StringBuilder(capacity);
+    }
+
+    @Override
+    public void write(final int c) {
+        builder.append((char) c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        builder.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        builder.append(str, off, off + len);
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) {
+        builder.append(csq);
+        return this;
+    }
+
+    @Override
+    public void flush() {
+        // Nothing to do
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do
+    }
+
+    /**
+     * @return the underlying builder
+     */
+    public StringBuilder getBuilder() {
+        return builder;
+    }
+
+    /**
+     * Take the current contents and reset the builder for reuse.
+     */
+    public String drain() {
+        String value = builder.toString();
+        builder.setLength(0);
+        return value;
+    }
+}
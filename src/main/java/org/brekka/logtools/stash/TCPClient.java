@@ -16,34 +16,51 @@
 
 package org.brekka.logtools.stash;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * TCPClient.
  * 
  * This implementation does a lot of flushing to ensure that an exception is thrown when a message could not be
- * written. As such it is not going to work particularly well in high throughput scenarios.
- * 
- * The goal is to replace this with an alternative solution in the near future. At this time we just want to ensure 
- * messages get written in our low-throughput environment.
+ * written. As such single event writes are not going to work particularly well in high throughput scenarios. Use
+ * {@link #writeEvents(List)} to amortise the flushing over a batch of events.
+ *
+ * Events already encoded into {@link PooledBuffer}s are copied straight into the output buffer, bypassing the
+ * character encoder.
  *
  * @author Andrew Taylor (andrew@brekka.org)
  */
-class TCPClient implements Client {
+class TCPClient implements BufferClient {
 
     private final SocketAddress socketAddress;
     private int connectionTimeout = 5000;
     private int socketTimeout = 10000;
+    private int bufferSize = 65536;
+
+    /**
+     * Guards the connection. A lock rather than synchronized, so that a virtual thread blocked on the socket can
+     * unmount from its carrier, see {@link ThreadMode}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
     
     private Socket socket;
     
     private Writer out;
+
+    /**
+     * Under {@link #out}, which is always flushed by the end of each write so the two can be used in turn.
+     */
+    private OutputStream stream;
     
     /**
      * 
@@ -56,35 +73,120 @@ class TCPClient implements Client {
      * @see org.brekka.logtools.stash.Client#writeEvent(java.lang.String)
      */
     @Override
-    public synchronized void writeEvent(String line) throws IOException {
-        if (out == null) {
-            close();
-            establish();
+    public void writeEvent(String line) throws IOException {
+        lock.lock();
+        try {
+            if (out == null) {
+                close();
+                establish();
+            }
+            out.write(line);
+            out.flush();
+            out.write("\n");
+            // Might seem inefficient but this ensures we always get an exception if the message could not be written.
+            out.flush();
+        } finally {
+            lock.unlock();
         }
-        out.write(line);
-        out.flush();
-        out.write("\n");
-        // Might seem inefficient but this ensures we always get an exception if the message could not be written.
-        out.flush();
     }
 
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvents(java.util.List)
+     */
     @Override
-    public void close() {
-        if (out != null) {
-            try {
-                out.close();
-            } catch (IOException e) {
-                // Ignore
+    public void writeEvents(List<String> lines) throws IOException {
+        lock.lock();
+        try {
+            if (lines.isEmpty()) {
+                return;
+            }
+            if (out == null) {
+                close();
+                establish();
+            }
+            int last = lines.size() - 1;
+            for (int i = 0; i < last; i++) {
+                out.write(lines.get(i));
+                out.write("\n");
+            }
+            out.write(lines.get(last));
+            out.flush();
+            out.write("\n");
+            // As with writeEvent, the second flush is what surfaces a broken connection, but now only once per batch.
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.BufferClient#writeBuffers(java.util.List)
+     */
+    @Override
+    public void writeBuffers(List<PooledBuffer> buffers) throws IOException {
+        lock.lock();
+        try {
+            if (buffers.isEmpty()) {
+                return;
             }
-            out = null;
+            if (out == null) {
+                close();
+                establish();
+            }
+            int last = buffers.size() - 1;
+            for (int i = 0; i < last; i++) {
+                buffers.get(i).writeTo(stream);
+                stream.write('\n');
+            }
+            buffers.get(last).writeTo(stream);
+            stream.flush();
+            stream.write('\n');
+            stream.flush();
+        } finally {
+            lock.unlock();
         }
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException e) {
-                // Ignore
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#beginBatch()
+     */
+    @Override
+    public void beginBatch() {
+        // Every write starts from the beginning of the batch
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        // The connection is all there is to release
+        close();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                out = null;
+                stream = null;
             }
-            socket = null;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                socket = null;
+            }
+        } finally {
+            lock.unlock();
         }
     }
     
@@ -102,6 +204,13 @@ class TCPClient implements Client {
         this.socketTimeout = socketTimeout;
     }
     
+    /**
+     * @param bufferSize the size of the output buffer used to coalesce a batch into as few segments as possible
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+    
     /**
      * @return the socketAddress
      */
@@ -124,6 +233,7 @@ class TCPClient implements Client {
         socket.setTcpNoDelay(true);
         socket.connect(socketAddress, connectionTimeout);
         socket.shutdownInput();
-        out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        stream = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+        out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * What kind of threads the dispatcher and the connection pool's background tasks run on.
+ *
+ * Virtual threads (Java 21 onwards) are looked up reflectively, so the library still runs on older JVMs, where
+ * {@link #VIRTUAL} falls back to platform threads. A virtual thread blocked in socket I/O unmounts from its carrier,
+ * so a stalled connect or write no longer holds a whole OS thread, and idle dispatchers and probes cost next to
+ * nothing. For that to happen the I/O must not be done while holding a monitor, which is why the clients guard their
+ * connections with locks rather than <code>synchronized</code>.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+enum ThreadMode {
+
+    /**
+     * Daemon platform threads, at the priority requested.
+     */
+    PLATFORM,
+
+    /**
+     * Virtual threads where the JVM supports them, platform threads otherwise. Priority does not apply.
+     */
+    VIRTUAL;
+
+    /**
+     * <code>Thread.ofVirtual()</code>, or null if this JVM does not have virtual threads.
+     */
+    private static final Method OF_VIRTUAL;
+
+    private static final Method BUILDER_NAME;
+
+    private static final Method BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (NoSuchMethodException | ClassNotFoundException | RuntimeException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    /**
+     * @return true if this JVM can create virtual threads.
+     */
+    static boolean isVirtualAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param name the mode name, case insensitive. Null or empty for the default, {@link #PLATFORM}.
+     */
+    static ThreadMode forName(final String name) {
+        if (name == null || name.isEmpty()) {
+            return PLATFORM;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Create, but do not start, a thread of this mode.
+     *
+     * @param runnable what the thread runs
+     * @param name the thread name
+     * @param priority the priority of a platform thread
+     * @return the thread, a daemon either way.
+     */
+    Thread newThread(final Runnable runnable, final String name, final int priority) {
+        if (this == VIRTUAL && OF_VIRTUAL != null) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // Should not happen for public JDK methods, fall back to a platform thread
+            }
+        }
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+    }
+
+    /**
+     * @param name the name of each thread
+     * @return a factory creating threads of this mode at normal priority, for executors.
+     */
+    ThreadFactory factory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return ThreadMode.this.newThread(r, name, Thread.NORM_PRIORITY);
+            }
+        };
+    }
+}
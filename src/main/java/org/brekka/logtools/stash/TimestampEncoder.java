@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Renders ISO-8601 UTC timestamps, <code>yyyy-MM-dd'T'HH:mm:ss.SSS</code> followed by a zone suffix, as ASCII bytes.
+ * The date and time up to the second are kept from the previous call, so most calls only fill in the milliseconds.
+ * That cache is an immutable object swapped in with a volatile write, so any number of threads can share an encoder
+ * without locking; threads logging in different seconds just replace each other's entry.
+ *
+ * Years before the Gregorian calendar or beyond 9999 are left to {@link SimpleDateFormat}, to match what
+ * {@link Date} based formatting would give.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+final class TimestampEncoder {
+
+    /**
+     * Ends in <code>+0000</code>, as Jackson's StdDateFormat renders a {@link Date}.
+     */
+    static final TimestampEncoder OFFSET = new TimestampEncoder("+0000", "Z");
+
+    /**
+     * Ends in <code>Z</code>.
+     */
+    static final TimestampEncoder ZULU = new TimestampEncoder("Z", "'Z'");
+
+    /**
+     * Room enough for any timestamp, including those of the date format.
+     */
+    static final int MAX_LENGTH = 40;
+
+    /**
+     * Length of <code>yyyy-MM-ddTHH:mm:ss.</code>
+     */
+    private static final int PREFIX_LENGTH = 20;
+
+    private final byte[] suffix;
+
+    private final String pattern;
+
+    private volatile Second cached = new Second(Long.MIN_VALUE, new byte[PREFIX_LENGTH]);
+
+    private TimestampEncoder(final String suffix, final String zonePattern) {
+        this.suffix = suffix.getBytes(StandardCharsets.US_ASCII);
+        this.pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS" + zonePattern;
+    }
+
+    /**
+     * Write the timestamp as bytes.
+     *
+     * @param into must have {@link #MAX_LENGTH} bytes free from the offset
+     * @return the offset just after the timestamp
+     */
+    int encode(final long millis, final byte[] into, final int offset) {
+        long second = millis / 1000;
+        int milli = (int) (millis % 1000);
+        if (milli < 0) {
+            second--;
+            milli += 1000;
+        }
+        Second entry = cached;
+        if (entry.second != second) {
+            byte[] prefix = render(second);
+            if (prefix == null) {
+                byte[] formatted = dateFormat(millis).getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(formatted, 0, into, offset, formatted.length);
+                return offset + formatted.length;
+            }
+            entry = new Second(second, prefix);
+            cached = entry;
+        }
+        int pos = offset;
+        System.arraycopy(entry.prefix, 0, into, pos, PREFIX_LENGTH);
+        pos += PREFIX_LENGTH;
+        into[pos++] = (byte) ('0' + milli / 100);
+        into[pos++] = (byte) ('0' + milli / 10 % 10);
+        into[pos++] = (byte) ('0' + milli % 10);
+        System.arraycopy(suffix, 0, into, pos, suffix.length);
+        return pos + suffix.length;
+    }
+
+    /**
+     * Append the timestamp, going through a scratch array the caller keeps for the purpose.
+     *
+     * @param scratch at least {@link #MAX_LENGTH} long
+     */
+    void append(final long millis, final StringBuilder sb, final byte[] scratch) {
+        int length = encode(millis, scratch, 0);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) scratch[i]);
+        }
+    }
+
+    /**
+     * @return the timestamp as a string, for building trees.
+     */
+    String format(final long millis) {
+        byte[] scratch = new byte[MAX_LENGTH];
+        return new String(scratch, 0, encode(millis, scratch, 0), StandardCharsets.US_ASCII);
+    }
+
+    private String dateFormat(final long millis) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    /**
+     * Render the date and time up to the second, using Howard Hinnant's days to civil date algorithm (see
+     * http://howardhinnant.github.io/date_algorithms.html).
+     *
+     * @return null for a year the date format is to render.
+     */
+    private static byte[] render(final long second) {
+        long days = second / 86400;
+        int secondOfDay = (int) (second % 86400);
+        if (secondOfDay < 0) {
+            days--;
+            secondOfDay += 86400;
+        }
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year <= 1582 || year > 9999) {
+            return null;
+        }
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        digits(prefix, 0, (int) year, 4);
+        prefix[4] = '-';
+        digits(prefix, 5, month, 2);
+        prefix[7] = '-';
+        digits(prefix, 8, day, 2);
+        prefix[10] = 'T';
+        digits(prefix, 11, secondOfDay / 3600, 2);
+        prefix[13] = ':';
+        digits(prefix, 14, secondOfDay / 60 % 60, 2);
+        prefix[16] = ':';
+        digits(prefix, 17, secondOfDay % 60, 2);
+        prefix[19] = '.';
+        return prefix;
+    }
+
+    private static void digits(final byte[] into, final int offset, int value, final int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            into[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * The rendering of one second, never changed once published.
+     */
+    private static final class Second {
+        private final long second;
+        private final byte[] prefix;
+
+        private Second(final long second, final byte[] prefix) {
+            this.second = second;
+            this.prefix = prefix;
+        }
+    }
+}
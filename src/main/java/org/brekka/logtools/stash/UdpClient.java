@@ -0,0 +1,258 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fire-and-forget client sending events as datagrams, for the logstash udp input with the json_lines codec. As many
+ * events as fit within {@link #setMaxPacketBytes(int) maxPacketBytes} are packed into each datagram, separated by
+ * newlines. An event larger than that on its own is left out, counted by the {@link Dispatcher} as oversized, so that
+ * a datagram never carries part of a document.
+ *
+ * Writes never block and never fail because of the server: a datagram the socket cannot take immediately, or that is
+ * rejected because nothing is listening, is dropped. Delivery is not guaranteed, so the {@link Dispatcher} retry and
+ * spill mechanisms never come into play.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class UdpClient implements LossyClient {
+
+    /**
+     * Fits within a typical ethernet MTU once the IP and UDP headers have been added.
+     */
+    static final int DEFAULT_MAX_PACKET_BYTES = 1400;
+
+    /**
+     * The most that can be carried by a single datagram over IPv4.
+     */
+    static final int MAX_DATAGRAM_BYTES = 65507;
+
+    private static final byte NEWLINE = '\n';
+
+    private final SocketAddress socketAddress;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+    private int maxPacketBytes = DEFAULT_MAX_PACKET_BYTES;
+
+    /**
+     * Held while packing and sending datagrams.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private DatagramChannel channel;
+
+    private long dropped;
+
+    private int oversized;
+
+    public UdpClient(String address, int port) {
+        this.socketAddress = new InetSocketAddress(address, port);
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvent(java.lang.String)
+     */
+    @Override
+    public void writeEvent(String line) throws IOException {
+        writeEvents(Collections.singletonList(line));
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#writeEvents(java.util.List)
+     */
+    @Override
+    public void writeEvents(List<String> lines) throws IOException {
+        lock.lock();
+        try {
+            if (lines.isEmpty()) {
+                return;
+            }
+            if (channel == null) {
+                establish();
+            }
+            packet.clear();
+            for (String line : lines) {
+                encode(line);
+                int length = scratch.remaining() + 1;
+                if (length > maxPacketBytes) {
+                    // Part of a document would not parse at the other end, so leave it out altogether
+                    oversized++;
+                    continue;
+                }
+                if (packet.position() > 0 && packet.position() + length > maxPacketBytes) {
+                    send();
+                }
+                packet.put(scratch);
+                packet.put(NEWLINE);
+            }
+            if (packet.position() > 0) {
+                send();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.LossyClient#takeOversized()
+     */
+    @Override
+    public int takeOversized() {
+        lock.lock();
+        try {
+            int count = oversized;
+            oversized = 0;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#beginBatch()
+     */
+    @Override
+    public void beginBatch() {
+        // Every write starts from the beginning of the batch
+    }
+
+    /* (non-Javadoc)
+     * @see org.brekka.logtools.stash.Client#shutdown()
+     */
+    @Override
+    public void shutdown() {
+        // The connection is all there is to release
+        close();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+                channel = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param maxPacketBytes the largest datagram to send, events are packed into datagrams up to this size
+     */
+    public void setMaxPacketBytes(int maxPacketBytes) {
+        lock.lock();
+        try {
+            this.maxPacketBytes = Math.max(1, Math.min(maxPacketBytes, MAX_DATAGRAM_BYTES));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of datagrams that could not be sent.
+     */
+    public long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the socketAddress
+     */
+    public SocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "udp:" + getSocketAddress();
+    }
+
+    private void establish() throws IOException {
+        DatagramChannel newChannel = DatagramChannel.open();
+        try {
+            newChannel.configureBlocking(false);
+            newChannel.connect(socketAddress);
+        } catch (IOException e) {
+            newChannel.close();
+            throw e;
+        }
+        channel = newChannel;
+    }
+
+    /**
+     * Encode the event into the scratch buffer, leaving it ready to be read. An event beyond the datagram limit fills
+     * the buffer, so is still seen to be too large.
+     */
+    private void encode(String line) {
+        scratch.clear();
+        encoder.reset();
+        CharBuffer chars = CharBuffer.wrap(line);
+        CoderResult result = encoder.encode(chars, scratch, true);
+        if (!result.isOverflow()) {
+            encoder.flush(scratch);
+        }
+        scratch.flip();
+    }
+
+    private void send() throws IOException {
+        packet.flip();
+        try {
+            if (channel.write(packet) == 0) {
+                dropped++;
+            }
+        } catch (PortUnreachableException e) {
+            // Nothing listening right now, an ICMP error from an earlier datagram. Drop and carry on.
+            dropped++;
+        }
+        packet.clear();
+    }
+}
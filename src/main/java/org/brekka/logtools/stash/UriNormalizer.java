@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reduces request URIs to a bounded set of keys for {@link AccessLogRollup}. Path segments that look like identifiers
+ * (numbers, UUIDs, long hex or mixed letter/digit tokens) are replaced by <code>{id}</code>. Once the table of
+ * distinct results is full, any new one is reported as {@link #OTHER}, so memory stays bounded however the URIs vary.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+class UriNormalizer {
+
+    static final String ID = "{id}";
+
+    static final String OTHER = "{other}";
+
+    private final int maxUris;
+
+    private final ConcurrentMap<String, String> known = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param maxUris the number of distinct normalized URIs to track
+     */
+    public UriNormalizer(final int maxUris) {
+        this.maxUris = maxUris;
+    }
+
+    public String normalize(final String uri) {
+        if (uri == null || uri.isEmpty()) {
+            return "/";
+        }
+        String normalized = replaceIds(uri);
+        String existing = known.get(normalized);
+        if (existing != null) {
+            return existing;
+        }
+        if (size.incrementAndGet() > maxUris) {
+            size.decrementAndGet();
+            return OTHER;
+        }
+        existing = known.putIfAbsent(normalized, normalized);
+        if (existing != null) {
+            size.decrementAndGet();
+            return existing;
+        }
+        return normalized;
+    }
+
+    /**
+     * Stop tracking any URI not in the set, making room for new ones.
+     *
+     * @param uris the normalized URIs still in use
+     */
+    public void retain(final Set<String> uris) {
+        for (Iterator<String> iterator = known.keySet().iterator(); iterator.hasNext();) {
+            if (!uris.contains(iterator.next())) {
+                iterator.remove();
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct URIs being tracked
+     */
+    public int size() {
+        return known.size();
+    }
+
+    static String replaceIds(final String uri) {
+        int query = uri.indexOf('?');
+        int length = query >= 0 ? query : uri.length();
+        StringBuilder sb = null;
+        int start = 0;
+        while (start < length) {
+            int end = uri.indexOf('/', start);
+            if (end < 0 || end > length) {
+                end = length;
+            }
+            if (isId(uri, start, end)) {
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                    sb.append(uri, 0, start);
+                }
+                sb.append(ID);
+            } else if (sb != null) {
+                sb.append(uri, start, end);
+            }
+            if (end < length && sb != null) {
+                sb.append('/');
+            }
+            start = end + 1;
+        }
+        if (sb != null) {
+            return sb.toString();
+        }
+        return query >= 0 ? uri.substring(0, query) : uri;
+    }
+
+    private static boolean isId(final String uri, final int start, final int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        }
+        int digits = 0;
+        int hex = 0;
+        int other = 0;
+        for (int i = start; i < end; i++) {
+            char c = uri.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if ((c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')) {
+                hex++;
+            } else if (c == '-' || c == '_' || (c >= 'g' && c <= 'z') || (c >= 'G' && c <= 'Z')) {
+                other++;
+            } else {
+                // Dots etc, most likely a file name
+                return false;
+            }
+        }
+        if (digits == length) {
+            return true;
+        }
+        if (digits == 0) {
+            return false;
+        }
+        // UUIDs and hashes, or long tokens mixing letters and digits
+        return (other == 0 && length >= 8) || length >= 16;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the dispatcher thread waits when it finds the ring buffer empty. Producers never signal the consumer, so each
+ * strategy trades idle CPU for the latency with which a new event is noticed.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+enum WaitStrategy {
+
+    /**
+     * Spin on the buffer. Lowest latency, but burns a whole core.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle() {
+            // Just go round again
+        }
+    },
+
+    /**
+     * Give up the time slice between checks.
+     */
+    YIELD {
+        @Override
+        void idle() {
+            Thread.yield();
+        }
+    },
+
+    /**
+     * Sleep briefly between checks. Suitable for most applications.
+     */
+    PARK {
+        @Override
+        void idle() {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    };
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Called by the consumer each time it finds nothing to do.
+     */
+    abstract void idle();
+
+    /**
+     * Resolve a strategy from its configuration name, case insensitive.
+     *
+     * @param name the strategy name, null resolves to {@link #PARK}
+     */
+    static WaitStrategy forName(final String name) {
+        if (name == null || name.isEmpty()) {
+            return PARK;
+        }
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AccessLogRollup}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class AccessLogRollupTest {
+
+    @Test
+    public void testDrain() throws Exception {
+        AccessLogRollup rollup = new AccessLogRollup(100);
+        for (int i = 1; i <= 100; i++) {
+            rollup.record("GET", "/users/" + i, 200, 100, i * 1000);
+        }
+        rollup.record("GET", "/users/1", 404, 0, 500);
+        rollup.record("BREW", "/pot", 418, 0, 500);
+
+        Map<String, AccessLogRollup.Summary> summaries = new HashMap<>();
+        for (AccessLogRollup.Summary summary : rollup.drain()) {
+            summaries.put(summary.toString(), summary);
+        }
+        assertEquals(3, summaries.size());
+        AccessLogRollup.Summary ok = summaries.get("GET /users/{id} 2xx");
+        assertEquals(100, ok.getCount());
+        assertEquals(10000, ok.getBytes());
+        assertEquals(100000, ok.getMax());
+        assertTrue(Math.abs(ok.getP50() - 50000) <= 50000 / 16);
+        assertTrue(Math.abs(ok.getP99() - 99000) <= 99000 / 16);
+        assertEquals(1, summaries.get("GET /users/{id} 4xx").getCount());
+        assertEquals(1, summaries.get("OTHER /pot 4xx").getCount());
+
+        // A new interval
+        List<AccessLogRollup.Summary> next = rollup.drain();
+        assertTrue(next.isEmpty());
+    }
+
+    @Test
+    public void testMaxKeys() throws Exception {
+        AccessLogRollup rollup = new AccessLogRollup(100, 3);
+        for (String method : new String[] { "GET", "POST", "PUT", "DELETE", "PATCH" }) {
+            rollup.record(method, "/orders", 200, 0, 1000);
+            rollup.record(method, "/orders", 500, 0, 1000);
+        }
+        Map<String, AccessLogRollup.Summary> summaries = new HashMap<>();
+        for (AccessLogRollup.Summary summary : rollup.drain()) {
+            summaries.put(summary.toString(), summary);
+        }
+        assertEquals(5, summaries.size());
+        assertEquals(1, summaries.get("GET /orders 2xx").getCount());
+        assertEquals(1, summaries.get("GET /orders 5xx").getCount());
+        assertEquals(1, summaries.get("POST /orders 2xx").getCount());
+        assertEquals(3, summaries.get("OTHER {other} 2xx").getCount());
+        assertEquals(4, summaries.get("OTHER {other} 5xx").getCount());
+    }
+
+    @Test
+    public void testQuietKeysDropped() throws Exception {
+        // Room for one URI and one key
+        AccessLogRollup rollup = new AccessLogRollup(1, 1);
+        rollup.record("GET", "/old", 200, 0, 1000);
+        assertEquals("GET /old 2xx", rollup.drain().get(0).toString());
+        rollup.record("GET", "/new", 200, 0, 1000);
+        assertEquals("OTHER {other} 2xx", rollup.drain().get(0).toString());
+
+        // With the old one quiet for the interval just gone, the new one is kept separate
+        rollup.record("GET", "/new", 200, 0, 1000);
+        List<AccessLogRollup.Summary> summaries = rollup.drain();
+        assertEquals(1, summaries.size());
+        assertEquals("GET /new 2xx", summaries.get(0).toString());
+    }
+}
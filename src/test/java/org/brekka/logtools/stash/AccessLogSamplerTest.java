@@ -0,0 +1,87 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AccessLogSampler}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class AccessLogSamplerTest {
+
+    @Test
+    public void testRules() throws Exception {
+        AccessLogSampler sampler = new AccessLogSampler("5xx=1, GET /health 2xx=0.01, /static=0", 0);
+        assertEquals(1d, sampler.sample("GET", "/health", 503, "a"), 0d);
+        assertEquals(0d, sampler.sample("GET", "/static/app.js", 200, "a"), 0d);
+        // No rule matches
+        assertEquals(1d, sampler.sample("POST", "/health", 200, "a"), 0d);
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            double rate = sampler.sample("GET", "/health", 200, "trace-" + i);
+            if (rate > 0) {
+                assertEquals(0.01d, rate, 0d);
+                kept++;
+            }
+        }
+        assertTrue("Kept " + kept, kept > 50 && kept < 150);
+    }
+
+    @Test
+    public void testConsistentPerKey() throws Exception {
+        AccessLogSampler sampler = new AccessLogSampler("*=0.5", 0);
+        for (int i = 0; i < 100; i++) {
+            String key = "trace-" + i;
+            double first = sampler.sample("GET", "/a", 200, key);
+            for (int j = 0; j < 5; j++) {
+                assertEquals(first, sampler.sample("PUT", "/b", 201, key), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptive() throws Exception {
+        AccessLogSampler sampler = new AccessLogSampler("5xx=1", 100);
+        long end = System.currentTimeMillis() + 2500;
+        int errors = 0;
+        while (System.currentTimeMillis() < end) {
+            sampler.sample("GET", "/", 200, null);
+            if (sampler.sample("GET", "/", 500, null) > 0) {
+                errors++;
+            }
+        }
+        assertTrue(sampler.getAdaptiveFactor() < 0.5d);
+        // Explicitly kept, so never scaled down
+        assertTrue(errors > 1000);
+    }
+
+    @Test
+    public void testPosition() throws Exception {
+        double sum = 0;
+        for (int i = 0; i < 10000; i++) {
+            double position = AccessLogSampler.position(Integer.toString(i));
+            assertTrue(position >= 0d && position < 1d);
+            sum += position;
+        }
+        assertEquals(0.5d, sum / 10000, 0.02d);
+    }
+}
@@ -16,17 +16,21 @@
 package org.brekka.logtools.stash;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Date;
 import java.util.LinkedList;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 import org.apache.log4j.spi.LoggingEvent;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -77,4 +81,268 @@ public class AppenderTest extends Appender {
         assertEquals(json.get("@message").asText(), "Message");
         assertEquals(json.get("@fields").get("priority").asText(), Level.INFO.toString());
     }
+
+    /**
+     * The streaming encoder must produce the same document as the object tree.
+     */
+    @Test
+    public void streamingMatchesObjectTree() throws Exception {
+        Appender streaming = new Appender();
+        streaming.setHost("localhost");
+        streaming.setPort(9033);
+        streaming.setApplication("test");
+        streaming.setMdcProperties("request_id=requestId,user=user");
+        Appender tree = new Appender();
+        tree.setHost("localhost");
+        tree.setPort(9033);
+        tree.setApplication("test");
+        tree.setMdcProperties("request_id=requestId,user=user");
+        tree.setObjectTree(true);
+        MDC.put("requestId", "abc-123");
+        try {
+            Logger logger = Logger.getRootLogger();
+            LoggingEvent event = new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                    Level.WARN, "Message with \"quotes\"\n", new IllegalStateException("Bad"));
+            streaming.append(event);
+            Thread.sleep(500);
+            tree.append(event);
+        } finally {
+            MDC.remove("requestId");
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(2, messages.size());
+        ObjectMapper om = new ObjectMapper();
+        assertEquals(om.readTree(messages.get(1)), om.readTree(messages.get(0)));
+    }
+
+    /**
+     * Encoding on the dispatcher thread must produce the same document, with the MDC as it was when logged.
+     */
+    @Test
+    public void deferredMatchesImmediate() throws Exception {
+        Appender immediate = new Appender();
+        immediate.setHost("localhost");
+        immediate.setPort(9033);
+        immediate.setApplication("test");
+        immediate.setMdcProperties("request_id=requestId,user=user");
+        Appender deferred = new Appender();
+        deferred.setHost("localhost");
+        deferred.setPort(9033);
+        deferred.setApplication("test");
+        deferred.setMdcProperties("request_id=requestId,user=user");
+        deferred.setDeferredEncoding(true);
+        Logger logger = Logger.getRootLogger();
+        LoggingEvent event = new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                Level.ERROR, "Message with \"quotes\"\n", new IllegalStateException("Bad"));
+        MDC.put("requestId", "abc-123");
+        try {
+            immediate.append(event);
+            Thread.sleep(500);
+            deferred.append(event);
+        } finally {
+            MDC.remove("requestId");
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(2, messages.size());
+        ObjectMapper om = new ObjectMapper();
+        assertEquals(om.readTree(messages.get(0)), om.readTree(messages.get(1)));
+        assertEquals("abc-123", om.readTree(messages.get(1)).get("@fields").get("request_id").asText());
+    }
+
+    /**
+     * A key missing from the MDC when logged must stay missing, not be taken from the MDC the dispatcher thread
+     * inherited from the thread that created it.
+     */
+    @Test
+    public void deferredIgnoresDispatcherMdc() throws Exception {
+        Appender deferred = new Appender();
+        deferred.setHost("localhost");
+        deferred.setPort(9033);
+        deferred.setMdcProperties("user=user");
+        deferred.setDeferredEncoding(true);
+        Logger logger = Logger.getRootLogger();
+        MDC.put("user", "creator");
+        try {
+            // Creates the dispatcher, whose thread inherits this MDC
+            deferred.append(new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                    Level.INFO, "First", null));
+        } finally {
+            MDC.remove("user");
+        }
+        deferred.append(new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                Level.INFO, "Second", null));
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(2, messages.size());
+        ObjectMapper om = new ObjectMapper();
+        assertEquals("creator", om.readTree(messages.get(0)).get("@fields").get("user").asText());
+        JsonNode second = om.readTree(messages.get(1));
+        assertEquals("Second", second.get("@message").asText());
+        assertFalse(second.get("@fields").path("user").isTextual());
+    }
+
+    /**
+     * A subclass overriding toJsonString must still have its own output sent when encoding is deferred.
+     */
+    @Test
+    public void deferredKeepsOverriddenJsonString() throws Exception {
+        MessageAppender appender = new MessageAppender();
+        appender.setHost("localhost");
+        appender.setPort(9033);
+        appender.setDeferredEncoding(true);
+        LoggingEvent event = new LoggingEvent(AppenderTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.INFO, "{\"already\":\"json\"}", null);
+        appender.append(event);
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(1, messages.size());
+        assertEquals(String.valueOf(event.getMessage()), messages.get(0));
+    }
+
+    /**
+     * A subclass overriding toJsonString could not send the follow-up for suppressed duplicates, so nothing is
+     * suppressed.
+     */
+    @Test
+    public void overriddenJsonStringNotSuppressed() throws Exception {
+        MessageAppender appender = new MessageAppender();
+        appender.setHost("localhost");
+        appender.setPort(9033);
+        appender.setDuplicateWindowMillis(200);
+        LoggingEvent event = new LoggingEvent(AppenderTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.ERROR, "{\"already\":\"json\"}", null);
+        for (int i = 0; i < 5; i++) {
+            appender.append(event);
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(5, messages.size());
+        for (String message : messages) {
+            assertEquals(String.valueOf(event.getMessage()), message);
+        }
+    }
+
+    /**
+     * Closing the appender must stop the background threads of the endpoint pool of every lane.
+     */
+    @Test
+    public void closeStopsPoolMonitor() throws Exception {
+        Appender appender = new Appender();
+        appender.setEndpoints("127.0.0.1:9033");
+        appender.setLanes(2);
+        appender.append(new LoggingEvent(AppenderTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.INFO, "Message", null));
+        assertTrue(poolMonitorRunning());
+        appender.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (poolMonitorRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(poolMonitorRunning());
+    }
+
+    private static boolean poolMonitorRunning() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("LogStashPoolMonitor") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * With a repeat interval set, only the first occurrence of a trace is sent in full.
+     */
+    @Test
+    public void stackTraceByReference() throws Exception {
+        Appender appender = new Appender();
+        appender.setHost("localhost");
+        appender.setPort(9033);
+        appender.setStackTraceRepeatIntervalMillis(60000);
+        Logger logger = Logger.getRootLogger();
+        for (int i = 0; i < 3; i++) {
+            LoggingEvent event = new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                    Level.ERROR, "Failed", new IllegalStateException("Bad"));
+            appender.append(event);
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(3, messages.size());
+        ObjectMapper om = new ObjectMapper();
+        JsonNode first = om.readTree(messages.get(0)).get("@fields");
+        String hash = first.get("stack_hash").asText();
+        assertTrue(first.has("stack_trace"));
+        for (int i = 1; i < 3; i++) {
+            JsonNode fields = om.readTree(messages.get(i)).get("@fields");
+            assertEquals(hash, fields.get("stack_hash").asText());
+            assertFalse(fields.has("stack_trace"));
+        }
+    }
+
+    /**
+     * Repeats within the window are collapsed into one follow-up event carrying their count.
+     */
+    @Test
+    public void suppressDuplicates() throws Exception {
+        Appender appender = new Appender();
+        appender.setHost("localhost");
+        appender.setPort(9033);
+        appender.setDuplicateWindowMillis(200);
+        Logger logger = Logger.getRootLogger();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            LoggingEvent event = new LoggingEvent(AppenderTest.class.getName(), logger, now + i, Level.ERROR,
+                    "Downstream failed", new IllegalStateException("Bad"));
+            appender.append(event);
+        }
+        appender.append(new LoggingEvent(AppenderTest.class.getName(), logger, now + 50, Level.ERROR,
+                "Something else", null));
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(3, messages.size());
+        ObjectMapper om = new ObjectMapper();
+        assertFalse(om.readTree(messages.get(0)).get("@fields").has("repeat_count"));
+        assertEquals("Something else", om.readTree(messages.get(1)).get("@message").asText());
+        JsonNode followUp = om.readTree(messages.get(2));
+        assertEquals("Downstream failed", followUp.get("@message").asText());
+        JsonNode fields = followUp.get("@fields");
+        assertEquals(49, fields.get("repeat_count").asLong());
+        assertEquals(new Date(now + 1), om.readValue("\"" + fields.get("first_timestamp").asText() + "\"", Date.class));
+        assertEquals(new Date(now + 49), om.readValue("\"" + fields.get("last_timestamp").asText() + "\"", Date.class));
+    }
+
+    /**
+     * The follow-up must carry the MDC fields of the event it summarises and no others, not those the scheduler
+     * thread inherited from the thread that started it.
+     */
+    @Test
+    public void followUpIgnoresSchedulerMdc() throws Exception {
+        Appender appender = new Appender();
+        appender.setHost("localhost");
+        appender.setPort(9033);
+        appender.setMdcProperties("user=user");
+        appender.setDuplicateWindowMillis(200);
+        Logger logger = Logger.getRootLogger();
+        MDC.put("user", "creator");
+        try {
+            // Starts the scheduler, whose thread inherits this MDC
+            appender.append(new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                    Level.INFO, "Starting", null));
+        } finally {
+            MDC.remove("user");
+        }
+        for (int i = 0; i < 5; i++) {
+            appender.append(new LoggingEvent(AppenderTest.class.getName(), logger, System.currentTimeMillis(),
+                    Level.ERROR, "Downstream failed", null));
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(3, messages.size());
+        ObjectMapper om = new ObjectMapper();
+        JsonNode fields = om.readTree(messages.get(2)).get("@fields");
+        assertEquals(4, fields.get("repeat_count").asLong());
+        assertFalse(fields.path("user").isTextual());
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link BeatsClient} against {@link MockBeatsServer}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class BeatsClientTest {
+
+    private MockBeatsServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockBeatsServer(9035);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testCompressedWindows() throws Exception {
+        BeatsClient client = new BeatsClient("localhost", 9035);
+        for (int i = 0; i < 10; i++) {
+            client.writeEvents(batch(i, 100));
+        }
+        // Acknowledged before returning, so no need to wait
+        assertEquals(1000, server.getMessages().size());
+        assertEquals(10, server.getWindows());
+        client.close();
+    }
+
+    @Test
+    public void testUncompressed() throws Exception {
+        BeatsClient client = new BeatsClient("localhost", 9035);
+        client.setCompressionLevel(Deflater.NO_COMPRESSION);
+        client.writeEvent("{ \"single\": true }");
+        client.writeEvents(batch(0, 10));
+        assertEquals(11, server.getMessages().size());
+        client.close();
+    }
+
+    @Test
+    public void testOnlyUnacknowledgedRetransmitted() throws Exception {
+        BeatsClient client = new BeatsClient("localhost", 9035);
+        List<String> batch = batch(0, 10);
+        server.setFailAfter(4);
+        try {
+            client.writeEvents(batch);
+            fail("Connection should have been dropped");
+        } catch (IOException e) {
+            client.close();
+        }
+        // Retrying the same batch should only send the six that were not acknowledged
+        client.writeEvents(batch);
+        List<String> messages = server.getMessages();
+        assertEquals(10, messages.size());
+        assertEquals(batch.get(4), messages.get(4));
+        assertEquals(batch.get(9), messages.get(9));
+        client.close();
+    }
+
+    @Test
+    public void testGivenUpBatchNotResumed() throws Exception {
+        BeatsClient client = new BeatsClient("localhost", 9035);
+        // The dispatcher reuses one list for all of its batches
+        List<String> lines = new ArrayList<>();
+        lines.addAll(batch(0, 10));
+        server.setFailAfter(4);
+        client.beginBatch();
+        try {
+            client.writeEvents(lines);
+            fail("Connection should have been dropped");
+        } catch (IOException e) {
+            client.close();
+        }
+        // Given up on, then the next batch arrives in the same list
+        lines.clear();
+        lines.addAll(batch(1, 10));
+        client.beginBatch();
+        client.writeEvents(lines);
+        List<String> messages = server.getMessages();
+        assertEquals(14, messages.size());
+        assertEquals(lines, messages.subList(4, 14));
+        client.close();
+    }
+
+    private static List<String> batch(final int id, final int size) {
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            batch.add(String.format("{ \"batch\": %d, \"event\": %d }", id, i));
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BufferPool} and {@link PooledBuffer}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBufferReused() throws Exception {
+        BufferPool pool = new BufferPool(4, 16, 1024);
+        PooledBuffer buffer = pool.take();
+        buffer.write("{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("{\"a\":1}", buffer.encode());
+        buffer.release();
+        assertEquals(1, pool.size());
+        PooledBuffer again = pool.take();
+        assertSame(buffer, again);
+        assertEquals(0, again.length());
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testReleasedTwiceHeldOnce() {
+        BufferPool pool = new BufferPool(4, 16, 1024);
+        PooledBuffer buffer = pool.take();
+        buffer.release();
+        buffer.release();
+        assertEquals(1, pool.size());
+        assertSame(buffer, pool.take());
+        assertNotSame(buffer, pool.take());
+    }
+
+    @Test
+    public void testWriteUtf8() {
+        BufferPool pool = new BufferPool(4, 4, 1024);
+        String[] values = { "", "plain", "caf\u00e9 \u20ac", "\ud83d\ude00 pair", "lone \ud83d high", "lone \ude00 low",
+                "ends high \ud83d" };
+        for (String value : values) {
+            PooledBuffer buffer = pool.take();
+            buffer.writeUtf8(new StringBuilder(value));
+            assertEquals(value, new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                    buffer.encode());
+            assertEquals(value.getBytes(StandardCharsets.UTF_8).length, buffer.length());
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testFullPoolDiscards() {
+        BufferPool pool = new BufferPool(2, 16, 1024);
+        List<PooledBuffer> taken = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            taken.add(pool.take());
+        }
+        for (PooledBuffer buffer : taken) {
+            buffer.release();
+        }
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void testGrownBufferNotRetained() throws Exception {
+        BufferPool pool = new BufferPool(4, 16, 64);
+        PooledBuffer buffer = pool.take();
+        byte[] large = new byte[100];
+        buffer.write(large);
+        assertEquals(100, buffer.length());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertEquals(100, out.size());
+        buffer.release();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testConcurrentTakeRelease() throws Exception {
+        final BufferPool pool = new BufferPool(64, 16, 1024);
+        final int threads = 4;
+        final int rounds = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger corrupted = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final byte marker = (byte) t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < rounds; i++) {
+                        PooledBuffer buffer = pool.take();
+                        if (buffer.length() != 0) {
+                            corrupted.incrementAndGet();
+                        }
+                        buffer.write(marker);
+                        ByteArrayOutputStream out = new ByteArrayOutputStream(1);
+                        try {
+                            buffer.writeTo(out);
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        // Another thread holding the same buffer would show up as a different or extra byte
+                        if (out.size() != 1 || out.toByteArray()[0] != marker) {
+                            corrupted.incrementAndGet();
+                        }
+                        buffer.release();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, corrupted.get());
+        // A take that races a release still being published allocates a spare, so only the capacity bounds the pool
+        assertTrue(pool.size() >= 1 && pool.size() <= 64);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void testBackoffBounds() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(CircuitBreaker.backoff(1, 100, 30000) <= 100);
+            assertTrue(CircuitBreaker.backoff(3, 100, 30000) <= 400);
+            assertTrue(CircuitBreaker.backoff(10, 100, 30000) <= 30000);
+            assertTrue(CircuitBreaker.backoff(Integer.MAX_VALUE, 100, 30000) <= 30000);
+            assertTrue(CircuitBreaker.backoff(1, 100, 30000) >= 0);
+        }
+    }
+
+    @Test
+    public void testBackoffFloor() throws Exception {
+        for (int attempt = 1; attempt <= 40; attempt++) {
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(CircuitBreaker.backoff(attempt, 100, 30000) >= 50);
+                assertTrue(CircuitBreaker.backoff(attempt, 1, 10) >= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testBackoffIsJittered() throws Exception {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = CircuitBreaker.backoff(10, 100, 30000);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        // Spread over the whole range, not bunched at the cap
+        assertTrue(min < 10000);
+        assertTrue(max > 20000);
+    }
+
+    @Test
+    public void testOpensAtThreshold() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10, 3);
+        assertTrue(breaker.allowsDispatch());
+        breaker.beforeAttempt();
+        breaker.onFailure();
+        breaker.beforeAttempt();
+        breaker.onFailure();
+        assertTrue(breaker.allowsDispatch());
+        breaker.beforeAttempt();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowsDispatch());
+
+        breaker.beforeAttempt();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowsDispatch());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        breaker.beforeAttempt();
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowsDispatch());
+    }
+
+    @Test
+    public void testNeverOpensWithoutThreshold() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10, 0);
+        for (int i = 0; i < 100; i++) {
+            breaker.beforeAttempt();
+            breaker.onFailure();
+        }
+        assertTrue(breaker.allowsDispatch());
+    }
+
+    @Test
+    public void testDispatcherRefusesWhileOpen() throws Exception {
+        Dispatcher dispatcher = new Dispatcher(new FailingClient(), 16, 4);
+        dispatcher.setCircuitBreaker(new CircuitBreaker(1, 5, 2));
+        DispatcherMetrics metrics = dispatcher.getMetrics();
+        dispatcher.dispatchMessage("first");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"OPEN".equals(metrics.getCircuitState()) && !"HALF_OPEN".equals(metrics.getCircuitState())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        dispatcher.dispatchMessage("second");
+        assertEquals(OverflowPolicy.Admission.DROP, dispatcher.admit(Severity.ERROR));
+        assertEquals(2, metrics.getDroppedCircuitOpen());
+        assertTrue(metrics.getRetries() >= 2);
+        dispatcher.close();
+    }
+
+    @Test
+    public void testDispatcherGivesUp() throws Exception {
+        Dispatcher dispatcher = new Dispatcher(new FailingClient(), 16, 4);
+        dispatcher.setCircuitBreaker(new CircuitBreaker(1, 5, 0));
+        dispatcher.setMaxRetries(2);
+        DispatcherMetrics metrics = dispatcher.getMetrics();
+        dispatcher.dispatchMessage("first");
+        dispatcher.dispatchMessage("second");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getDroppedRetriesExhausted() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, metrics.getDroppedRetriesExhausted());
+        // One attempt and two retries each
+        assertEquals(6, metrics.getRetries());
+        dispatcher.close();
+    }
+
+    private static final class FailingClient implements Client {
+        @Override
+        public void writeEvent(final String line) throws IOException {
+            throw new IOException("Connection refused");
+        }
+
+        @Override
+        public void writeEvents(final List<String> lines) throws IOException {
+            throw new IOException("Connection refused");
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void beginBatch() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
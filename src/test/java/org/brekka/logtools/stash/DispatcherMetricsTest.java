@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DispatcherMetrics}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class DispatcherMetricsTest {
+
+    private MockLogStashServer mockLogStashServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mockLogStashServer = new MockLogStashServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mockLogStashServer.close();
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        Dispatcher dispatcher = new Dispatcher(new TCPClient("localhost", 9033), 16, 4);
+        DispatcherMetrics metrics = dispatcher.getMetrics();
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatchMessage("{ \"event\": " + i + " }");
+        }
+        Thread.sleep(1000);
+        assertEquals(10, metrics.getEnqueued());
+        assertEquals(10, metrics.getWritten());
+        assertEquals(10 * 15, metrics.getBytesWritten());
+        assertEquals(0, metrics.getDropped());
+        assertEquals(0, metrics.getQueueDepth());
+        assertTrue(metrics.getQueueHighWaterMark() >= 1);
+        assertTrue(metrics.getLatencyMaxMicros() > 0);
+        assertTrue(metrics.getLatencyP50Micros() <= metrics.getLatencyMaxMicros());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = server.queryNames(new ObjectName("org.brekka.logtools.stash:type=Dispatcher,*"), null);
+        boolean found = false;
+        for (ObjectName name : names) {
+            if (Long.valueOf(10).equals(server.getAttribute(name, "Written"))) {
+                found = true;
+            }
+        }
+        assertTrue(found);
+
+        dispatcher.close();
+        dispatcher.dispatchMessage("{ \"event\": \"late\" }");
+        assertEquals(1, metrics.getDroppedClosed());
+        assertEquals(1, metrics.getDropped());
+    }
+
+    @Test
+    public void testOversized() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            UdpClient client = new UdpClient("127.0.0.1", server.getLocalPort());
+            client.setMaxPacketBytes(32);
+            Dispatcher dispatcher = new Dispatcher(client, 16, 4);
+            DispatcherMetrics metrics = dispatcher.getMetrics();
+            dispatcher.dispatchMessage("{ \"event\": 1 }");
+            dispatcher.dispatchMessage("{ \"event\": \"" + new String(new char[100]).replace('\0', 'x') + "\" }");
+            dispatcher.dispatchMessage("{ \"event\": 3 }");
+            Thread.sleep(1000);
+            dispatcher.close();
+            assertEquals(2, metrics.getWritten());
+            assertEquals(1, metrics.getDroppedOversized());
+            assertEquals(1, metrics.getDropped());
+        }
+    }
+
+    @Test
+    public void testEncodedLength() throws Exception {
+        assertEquals(4, DispatcherMetrics.encodedLength("abc"));
+        assertEquals(3, DispatcherMetrics.encodedLength("\u00e9"));
+        assertEquals(4, DispatcherMetrics.encodedLength("\u20ac"));
+        assertEquals(5, DispatcherMetrics.encodedLength("\ud83d\ude00"));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link OverflowPolicy overflow policies} of {@link Dispatcher}. The client holds on to the first
+ * event until released, so the queue can be filled up behind it.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class DispatcherOverflowTest {
+
+    private final GatedClient client = new GatedClient();
+
+    private Dispatcher dispatcher;
+
+    @After
+    public void tearDown() throws Exception {
+        client.release();
+        dispatcher.close();
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        start(4, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 6; i++) {
+            dispatcher.dispatchMessage("e" + i);
+        }
+        client.release();
+        assertEquals(Arrays.asList("first", "e0", "e1", "e2", "e3"), client.awaitWritten(5));
+        assertEquals(2, dispatcher.getMetrics().getDroppedQueueFull());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        start(4, OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 6; i++) {
+            dispatcher.dispatchMessage("e" + i);
+        }
+        client.release();
+        // The overflow may overtake what was queued, only which events made it matters
+        assertEquals(Arrays.asList("e2", "e3", "e4", "e5", "first"), sorted(client.awaitWritten(5)));
+        assertEquals(2, dispatcher.getMetrics().getDroppedEvicted());
+        assertEquals(0, dispatcher.getMetrics().getDroppedQueueFull());
+    }
+
+    @Test
+    public void testLevelAware() throws Exception {
+        start(8, OverflowPolicy.LEVEL_AWARE);
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatchMessage("info" + i, Severity.INFO);
+        }
+        // 5 of 8, below 70%
+        dispatcher.dispatchMessage("debug0", Severity.DEBUG);
+        // 6 of 8, debug is shed
+        assertEquals(OverflowPolicy.Admission.DROP, dispatcher.admit(Severity.DEBUG));
+        dispatcher.dispatchMessage("debug1", Severity.DEBUG);
+        dispatcher.dispatchMessage("info5", Severity.INFO);
+        dispatcher.dispatchMessage("info6", Severity.INFO);
+        // Full, info is shed and warnings lose their stack trace
+        assertEquals(OverflowPolicy.Admission.DROP, dispatcher.admit(Severity.INFO));
+        assertEquals(OverflowPolicy.Admission.STRIP_STACK_TRACE, dispatcher.admit(Severity.WARN));
+        dispatcher.dispatchMessage("warn0", Severity.WARN);
+        // Errors still get in, at the expense of the oldest info
+        dispatcher.dispatchMessage("error0", Severity.ERROR);
+        client.release();
+        assertEquals(Arrays.asList("debug0", "error0", "first", "info1", "info2", "info3", "info4", "info5", "info6"),
+                sorted(client.awaitWritten(9)));
+        DispatcherMetrics metrics = dispatcher.getMetrics();
+        assertEquals(3, metrics.getDroppedShed());
+        assertEquals(1, metrics.getDroppedQueueFull());
+        assertEquals(1, metrics.getDroppedEvicted());
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        start(2, OverflowPolicy.BLOCK);
+        dispatcher.setBlockTimeoutMillis(5000);
+        dispatcher.dispatchMessage("e0");
+        dispatcher.dispatchMessage("e1");
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Release anyway
+                }
+                client.release();
+            }
+        }.start();
+        dispatcher.dispatchMessage("e2");
+        assertEquals(Arrays.asList("first", "e0", "e1", "e2"), client.awaitWritten(4));
+        assertEquals(0, dispatcher.getMetrics().getDropped());
+    }
+
+    @Test
+    public void testBlockTimeout() throws Exception {
+        start(2, OverflowPolicy.BLOCK);
+        dispatcher.setBlockTimeoutMillis(50);
+        dispatcher.dispatchMessage("e0");
+        dispatcher.dispatchMessage("e1");
+        long start = System.nanoTime();
+        dispatcher.dispatchMessage("e2");
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, dispatcher.getMetrics().getDroppedQueueFull());
+    }
+
+    private static List<String> sorted(final List<String> events) {
+        Collections.sort(events);
+        return events;
+    }
+
+    /**
+     * Create the dispatcher and wait for it to be stuck writing the first event.
+     */
+    private void start(final int capacity, final OverflowPolicy policy) throws Exception {
+        dispatcher = new Dispatcher(client, capacity, 4);
+        dispatcher.setOverflowPolicy(policy);
+        dispatcher.setWaitStrategy(WaitStrategy.YIELD);
+        dispatcher.dispatchMessage("first");
+        assertTrue(client.writing.await(5, TimeUnit.SECONDS));
+    }
+
+    private static final class GatedClient implements Client {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final List<String> written = new ArrayList<>();
+
+        @Override
+        public void writeEvent(final String line) throws IOException {
+            writeEvents(Arrays.asList(line));
+        }
+
+        @Override
+        public void writeEvents(final List<String> lines) throws IOException {
+            writing.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (written) {
+                written.addAll(lines);
+                written.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void beginBatch() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        void release() {
+            gate.countDown();
+        }
+
+        List<String> awaitWritten(final int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            synchronized (written) {
+                while (written.size() < count && System.currentTimeMillis() < deadline) {
+                    written.wait(100);
+                }
+                // Give anything unexpected a moment to turn up too
+                written.wait(100);
+                return new ArrayList<>(written);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DispatcherRegistry} and the producers of a {@link Dispatcher}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class DispatcherRegistryTest {
+
+    @Test
+    public void testSharedBySettings() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        Dispatcher.Producer first = DispatcherRegistry.acquire(settings(19001), "first", factory);
+        Dispatcher.Producer second = DispatcherRegistry.acquire(settings(19001), "second", factory);
+        Dispatcher.Producer other = DispatcherRegistry.acquire(settings(19002), "other", factory);
+        try {
+            assertEquals(2, factory.created.size());
+            assertSame(first.getDispatcher(), second.getDispatcher());
+            assertNotSame(first.getDispatcher(), other.getDispatcher());
+        } finally {
+            first.close();
+            second.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testClosedWithLastProducer() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        Dispatcher.Producer first = DispatcherRegistry.acquire(settings(19003), "first", factory);
+        Dispatcher.Producer second = DispatcherRegistry.acquire(settings(19003), "second", factory);
+        Dispatcher dispatcher = first.getDispatcher();
+        first.close();
+        // Closing twice must not count twice
+        first.close();
+        assertFalse(dispatcher.isClosed());
+        second.close();
+        assertTrue(dispatcher.isClosed());
+        // Not kept reachable once closed
+        assertEquals(0, DispatcherRegistry.size());
+
+        // A new one replaces it
+        Dispatcher.Producer third = DispatcherRegistry.acquire(settings(19003), "third", factory);
+        try {
+            assertEquals(2, factory.created.size());
+            assertNotSame(dispatcher, third.getDispatcher());
+            assertFalse(third.getDispatcher().isClosed());
+        } finally {
+            third.close();
+        }
+    }
+
+    @Test
+    public void testProducerCounts() throws Exception {
+        CountingFactory factory = new CountingFactory();
+        Dispatcher.Producer first = DispatcherRegistry.acquire(settings(19004), "first", factory);
+        Dispatcher.Producer second = DispatcherRegistry.acquire(settings(19004), "second", factory);
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertTrue(first.dispatchMessage("first " + i, Severity.INFO));
+            }
+            assertTrue(second.dispatchMessage("second", Severity.INFO));
+            second.close();
+            assertFalse(second.dispatchMessage("second after close", Severity.INFO));
+            assertEquals(OverflowPolicy.Admission.DROP, second.admit(Severity.INFO));
+            // The dispatcher carries on for the other producer
+            assertTrue(first.dispatchMessage("first 3", Severity.INFO));
+
+            DispatcherMetrics metrics = first.getDispatcher().getMetrics();
+            Map<String, Long> enqueued = metrics.getProducerEnqueued();
+            Map<String, Long> dropped = metrics.getProducerDropped();
+            assertEquals(Long.valueOf(4), enqueued.get("first"));
+            assertEquals(Long.valueOf(1), enqueued.get("second"));
+            assertEquals(Long.valueOf(0), dropped.get("first"));
+            assertEquals(Long.valueOf(2), dropped.get("second"));
+            assertEquals(5, metrics.getEnqueued());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    private static ClientSettings settings(final int port) {
+        ClientSettings settings = new ClientSettings();
+        settings.setHost("localhost");
+        settings.setPort(port);
+        return settings;
+    }
+
+    private static final class CountingFactory implements DispatcherRegistry.Factory {
+        private final List<Dispatcher> created = new ArrayList<>();
+
+        @Override
+        public Dispatcher create() {
+            Dispatcher dispatcher = new Dispatcher(new NullClient(), 100, Thread.NORM_PRIORITY);
+            created.add(dispatcher);
+            return dispatcher;
+        }
+    }
+
+    private static final class NullClient implements Client {
+        @Override
+        public void writeEvent(final String line) {
+        }
+
+        @Override
+        public void writeEvents(final List<String> lines) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void beginBatch() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
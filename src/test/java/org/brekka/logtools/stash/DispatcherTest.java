@@ -19,9 +19,23 @@ package org.brekka.logtools.stash;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
 import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
@@ -60,7 +74,8 @@ public class DispatcherTest {
     @Test
     public void testNormal() throws Exception {
         dispatcher.dispatchMessage("{ }");
-        verify(client).writeEvent("{ }");
+        // Written by the dispatcher thread, after it has started the batch
+        verify(client, timeout(1000)).writeEvent("{ }");
     }
     
     @Test
@@ -79,9 +94,273 @@ public class DispatcherTest {
             public Void answer(InvocationOnMock invocation) throws Throwable {
                 while (true){}
             }
-        }).when(client).close();
+        }).when(client).shutdown();
         dispatcher.dispatchMessage("{ }");
         dispatcher.close();
     }
 
+    @Test
+    public void testBatched() throws Exception {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        Dispatcher batching = new Dispatcher(new Client() {
+            @Override
+            public void writeEvent(final String line) throws IOException {
+                written.add(line);
+                batchSizes.add(1);
+            }
+            @Override
+            public void writeEvents(final List<String> lines) throws IOException {
+                written.addAll(lines);
+                batchSizes.add(lines.size());
+            }
+            @Override
+            public void close() {
+            }
+            @Override
+            public void beginBatch() {
+            }
+            @Override
+            public void shutdown() {
+            }
+        }, 100, 4);
+        batching.setBatchSize(10);
+        batching.setLingerMillis(200);
+        for (int i = 0; i < 25; i++) {
+            batching.dispatchMessage("{ \"i\": " + i + " }");
+        }
+        Thread.sleep(1000);
+        batching.close();
+        assertEquals(25, written.size());
+        assertEquals("{ \"i\": 0 }", written.get(0));
+        assertEquals("{ \"i\": 24 }", written.get(24));
+        for (Integer size : batchSizes) {
+            assertTrue(size <= 10);
+        }
+    }
+    @Test
+    public void testSpillsWhileFailing() throws Exception {
+        File directory = Files.createTempDirectory("spill").toFile();
+        final long failUntil = System.currentTimeMillis() + 1500;
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        Dispatcher spilling = new Dispatcher(new Client() {
+            @Override
+            public void writeEvent(final String line) throws IOException {
+                writeEvents(Collections.singletonList(line));
+            }
+            @Override
+            public void writeEvents(final List<String> lines) throws IOException {
+                if (System.currentTimeMillis() < failUntil) {
+                    throw new SocketException();
+                }
+                written.addAll(lines);
+            }
+            @Override
+            public void close() {
+            }
+            @Override
+            public void beginBatch() {
+            }
+            @Override
+            public void shutdown() {
+            }
+        }, 4, 4);
+        spilling.setBatchSize(10);
+        // Keep the backoff short, or the random delays can run past the end of the test
+        spilling.setCircuitBreaker(new CircuitBreaker(50, 200, 0));
+        spilling.setSpillJournal(new SpillJournal(directory, 4096, 65536));
+        for (int i = 0; i < 100; i++) {
+            spilling.dispatchMessage("{ \"i\": " + i + " }");
+        }
+        Thread.sleep(4000);
+        spilling.close();
+        assertEquals(100, new HashSet<>(written).size());
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Once closed, a lane must stop retrying a client that never recovers so that its thread can finish.
+     */
+    @Test
+    public void testClosedWhileFailingFinishes() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        Dispatcher failing = new Dispatcher(new Client() {
+            @Override
+            public void writeEvent(final String line) throws IOException {
+                throw new SocketException();
+            }
+            @Override
+            public void writeEvents(final List<String> lines) throws IOException {
+                throw new SocketException();
+            }
+            @Override
+            public void close() {
+            }
+            @Override
+            public void beginBatch() {
+            }
+            @Override
+            public void shutdown() {
+                finished.countDown();
+            }
+        }, 10, 4);
+        failing.setShutdownDelaySeconds(1);
+        Dispatcher.Producer producer = failing.producer("test");
+        for (int i = 0; i < 5; i++) {
+            producer.dispatchMessage("{ \"i\": " + i + " }", Severity.INFO);
+        }
+        Thread.sleep(200);
+        producer.close();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(5, failing.getMetrics().getDroppedRetriesExhausted());
+    }
+
+    @Test
+    public void testLanesKeepKeyOrder() throws Exception {
+        final List<RecordingClient> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(new RecordingClient());
+        }
+        final Dispatcher striped = new Dispatcher(clients, 1024, 4, ThreadMode.PLATFORM);
+        assertEquals(4, striped.getLaneCount());
+        // Split between the lanes
+        assertEquals(1024, striped.getMetrics().getQueueCapacity());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 48; i++) {
+                        // Each key is used by every thread, in turn
+                        striped.dispatchMessage(String.format("k%d:%d:%d", i % 8, i, thread), Severity.INFO,
+                                "k" + (i % 8));
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            // One after the other, so that the order each key should arrive in is known
+            thread.start();
+            thread.join();
+        }
+        Thread.sleep(500);
+        striped.close();
+
+        int total = 0;
+        int used = 0;
+        Set<String> keysSeen = new HashSet<>();
+        for (RecordingClient recording : clients) {
+            total += recording.written.size();
+            used += recording.written.isEmpty() ? 0 : 1;
+            Set<String> keys = new HashSet<>();
+            for (String event : recording.written) {
+                keys.add(event.substring(0, event.indexOf(':')));
+            }
+            for (String key : keys) {
+                // Each key in just one lane, in the order dispatched
+                assertTrue(keysSeen.add(key));
+                List<String> ofKey = new ArrayList<>();
+                for (String event : recording.written) {
+                    if (event.startsWith(key + ":")) {
+                        ofKey.add(event);
+                    }
+                }
+                assertEquals(24, ofKey.size());
+                for (int i = 1; i < ofKey.size(); i++) {
+                    assertTrue(sequence(ofKey.get(i - 1)) <= sequence(ofKey.get(i)));
+                }
+            }
+        }
+        assertEquals(192, total);
+        assertEquals(8, keysSeen.size());
+        assertTrue(used > 1);
+    }
+
+    @Test
+    public void testLanesByThread() throws Exception {
+        final List<RecordingClient> clients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            clients.add(new RecordingClient());
+        }
+        Dispatcher striped = new Dispatcher(clients, 300, 4, ThreadMode.PLATFORM);
+        for (int i = 0; i < 20; i++) {
+            striped.dispatchMessage("{ \"i\": " + i + " }");
+        }
+        Thread.sleep(500);
+        striped.close();
+        int lanesUsed = 0;
+        for (RecordingClient recording : clients) {
+            if (!recording.written.isEmpty()) {
+                lanesUsed++;
+                assertEquals(20, recording.written.size());
+                assertEquals("{ \"i\": 0 }", recording.written.get(0));
+                assertEquals("{ \"i\": 19 }", recording.written.get(19));
+            }
+        }
+        assertEquals(1, lanesUsed);
+    }
+
+    @Test
+    public void testDeferredEncodedByDispatcher() throws Exception {
+        RecordingClient recording = new RecordingClient();
+        Dispatcher deferring = new Dispatcher(recording, 10, 4);
+        deferring.dispatchEvent(new DeferredEvent() {
+            @Override
+            public String encode() {
+                return "{ \"thread\": \"" + Thread.currentThread().getName() + "\" }";
+            }
+        }, Severity.INFO, null);
+        deferring.dispatchEvent(new DeferredEvent() {
+            @Override
+            public String encode() {
+                throw new IllegalStateException("Unable to encode");
+            }
+        }, Severity.INFO, null);
+        deferring.dispatchMessage("{ }");
+        Thread.sleep(500);
+        deferring.close();
+        assertEquals(2, recording.written.size());
+        assertEquals("{ \"thread\": \"LogStashDispatcher\" }", recording.written.get(0));
+        assertEquals("{ }", recording.written.get(1));
+        assertEquals(1, deferring.getMetrics().getDroppedEncoding());
+        assertEquals(3, deferring.getMetrics().getEnqueued());
+    }
+
+    /**
+     * @return the position of the event in its thread's sequence, which for one key follows the threads in turn.
+     */
+    private static int sequence(final String event) {
+        String[] parts = event.split(":");
+        return Integer.parseInt(parts[2]) * 100 + Integer.parseInt(parts[1]);
+    }
+
+    private static final class RecordingClient implements Client {
+        private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void writeEvent(final String line) {
+            written.add(line);
+        }
+
+        @Override
+        public void writeEvents(final List<String> lines) {
+            written.addAll(lines);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void beginBatch() {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
 }
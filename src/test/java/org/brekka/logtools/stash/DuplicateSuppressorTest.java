@@ -0,0 +1,192 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DuplicateSuppressor}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class DuplicateSuppressorTest {
+
+    @Test
+    public void testFirstThroughRepeatsCounted() throws Exception {
+        DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(1000, 64);
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", null, 100, "first"));
+        for (int i = 1; i <= 10; i++) {
+            assertFalse(suppressor.offer("a.b", 40000, "Failed", null, 100 + i, "repeat" + i));
+        }
+        assertTrue(suppressor.drain(500).isEmpty());
+        List<DuplicateSuppressor.Repeat<String>> repeats = suppressor.drain(1100);
+        assertEquals(1, repeats.size());
+        DuplicateSuppressor.Repeat<String> repeat = repeats.get(0);
+        assertEquals("repeat1", repeat.getEvent());
+        assertEquals(10, repeat.getCount());
+        assertEquals(101, repeat.getFirstTimestamp());
+        assertEquals(110, repeat.getLastTimestamp());
+        // The window is over, so the next occurrence goes through again
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", null, 1200, "next"));
+    }
+
+    @Test
+    public void testKeyParts() throws Exception {
+        DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(1000, 64);
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", null, 100, null));
+        assertTrue(suppressor.offer("a.c", 40000, "Failed", null, 100, null));
+        assertTrue(suppressor.offer("a.b", 30000, "Failed", null, 100, null));
+        assertTrue(suppressor.offer("a.b", 40000, "Failed again", null, 100, null));
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", new IllegalStateException("Bad"), 100, null));
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", new IllegalStateException("Other"), 100, null));
+    }
+
+    @Test
+    public void testSameExceptionStructure() throws Exception {
+        DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(1000, 64);
+        int sent = 0;
+        for (int i = 0; i < 5; i++) {
+            // Same line each time round the loop
+            if (suppressor.offer("a.b", 40000, "Failed", new IllegalStateException("Bad"), 100, null)) {
+                sent++;
+            }
+        }
+        assertEquals(1, sent);
+    }
+
+    @Test
+    public void testFirstRepeatRetained() throws Exception {
+        DuplicateSuppressor<StringBuilder> suppressor = new DuplicateSuppressor<StringBuilder>(1000, 64) {
+            @Override
+            protected StringBuilder retain(final StringBuilder event) {
+                return event.append(" retained");
+            }
+        };
+        StringBuilder first = new StringBuilder("first");
+        StringBuilder second = new StringBuilder("second");
+        StringBuilder third = new StringBuilder("third");
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", null, 100, first));
+        assertFalse(suppressor.offer("a.b", 40000, "Failed", null, 101, second));
+        assertFalse(suppressor.offer("a.b", 40000, "Failed", null, 102, third));
+        assertEquals("first", first.toString());
+        assertEquals("third", third.toString());
+        List<DuplicateSuppressor.Repeat<StringBuilder>> repeats = suppressor.drainAll();
+        assertEquals(1, repeats.size());
+        assertEquals("second retained", repeats.get(0).getEvent().toString());
+    }
+
+    @Test
+    public void testNoRepeatsNothingDrained() throws Exception {
+        DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(1000, 64);
+        assertTrue(suppressor.offer("a.b", 40000, "Failed", null, 100, null));
+        assertTrue(suppressor.drainAll().isEmpty());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(1000, 1);
+        assertTrue(suppressor.offer("a.b", 40000, "One", null, 100, "one"));
+        assertFalse(suppressor.offer("a.b", 40000, "One", null, 101, "one"));
+        // Only one slot, so this pushes out the window for the first message
+        assertTrue(suppressor.offer("a.b", 40000, "Two", null, 102, "two"));
+        assertTrue(suppressor.offer("a.b", 40000, "One", null, 103, "one"));
+        List<DuplicateSuppressor.Repeat<String>> repeats = suppressor.drain(104);
+        assertEquals(1, repeats.size());
+        assertEquals("one", repeats.get(0).getEvent());
+        assertEquals(1, repeats.get(0).getCount());
+    }
+
+    @Test
+    public void testConcurrentRepeatsAllCounted() throws Exception {
+        final DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(60000, 64);
+        final int perThread = 10000;
+        final AtomicLong sent = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < perThread; j++) {
+                        if (suppressor.offer("a.b", 40000, "Failed", null, 100 + j, null)) {
+                            sent.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long suppressed = 0;
+        for (DuplicateSuppressor.Repeat<String> repeat : suppressor.drainAll()) {
+            suppressed += repeat.getCount();
+        }
+        assertEquals(threads.length * perThread, sent.get() + suppressed);
+    }
+
+    /**
+     * Windows drained while repeats are still arriving must not lose any of them.
+     */
+    @Test
+    public void testRepeatsDuringDrainAllCounted() throws Exception {
+        final DuplicateSuppressor<String> suppressor = new DuplicateSuppressor<>(60000, 64);
+        final int perThread = 100000;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong suppressed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(2);
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        if (suppressor.offer("a.b", 40000, "Failed", null, 100, null)) {
+                            sent.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            };
+            threads[i].start();
+        }
+        while (done.getCount() > 0) {
+            for (DuplicateSuppressor.Repeat<String> repeat : suppressor.drainAll()) {
+                suppressed.addAndGet(repeat.getCount());
+            }
+        }
+        for (DuplicateSuppressor.Repeat<String> repeat : suppressor.drainAll()) {
+            suppressed.addAndGet(repeat.getCount());
+        }
+        assertEquals(threads.length * perThread, sent.get() + suppressed.get());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.MDC;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Tests for {@link FieldPlan}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class FieldPlanTest {
+
+    private static final String EXPECTED = "{\"application\":\"test\",\"request_id\":\"abc-123\",\"user\":null}";
+
+    private FieldPlan plan;
+
+    @Before
+    public void setUp() throws Exception {
+        plan = FieldPlan.compile("request_id=requestId,user=user", "test");
+        MDC.put("requestId", "abc-123");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MDC.remove("requestId");
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertSame(FieldPlan.EMPTY, FieldPlan.compile(null, null));
+        assertSame(FieldPlan.EMPTY, FieldPlan.compile("", null));
+        assertEquals(3, plan.size());
+    }
+
+    @Test
+    public void testJsonWriter() throws Exception {
+        JsonWriter json = new JsonWriter(128);
+        json.beginObject();
+        plan.writeTo(json);
+        json.endObject();
+        assertEquals(EXPECTED, json.toString());
+    }
+
+    @Test
+    public void testContext() throws Exception {
+        final Map<String, Object> contextData = new HashMap<>();
+        contextData.put("requestId", "def-456");
+        contextData.put("user", "jbloggs");
+        JsonWriter json = new JsonWriter(128);
+        json.beginObject();
+        plan.writeTo(json, new FieldPlan.Context() {
+            @Override
+            public Object get(final String key) {
+                return contextData.get(key);
+            }
+        });
+        json.endObject();
+        assertEquals("{\"application\":\"test\",\"request_id\":\"def-456\",\"user\":\"jbloggs\"}", json.toString());
+    }
+
+    @Test
+    public void testJsonGenerator() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        StringWriter out = new StringWriter();
+        try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out)) {
+            gen.writeStartObject();
+            plan.jackson().writeTo(gen);
+            gen.writeEndObject();
+        }
+        assertEquals(EXPECTED, out.toString());
+    }
+
+    @Test
+    public void testObjectNode() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectNode json = objectMapper.createObjectNode();
+        plan.jackson().writeTo(json);
+        assertEquals(EXPECTED, objectMapper.writeValueAsString(json));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Checks that the garbage-free mode keeps to its word, counting the bytes allocated by the logging and dispatcher
+ * threads once everything has warmed up.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class GarbageFreeTest {
+
+    private static final int WARM_UP = 20000;
+
+    private static final int MEASURED = 10000;
+
+    /**
+     * Per event, allowing for the odd allocation the JIT or a resized batch makes along the way.
+     */
+    private static final long MAX_BYTES_PER_EVENT = 8;
+
+    private MockLogStashServer mockLogStashServer;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        mockLogStashServer = new MockLogStashServer(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mockLogStashServer != null) {
+            mockLogStashServer.close();
+        }
+    }
+
+    @Test
+    public void testPlainMessage() throws Exception {
+        assertGarbageFree(appender());
+    }
+
+    @Test
+    public void testNio() throws Exception {
+        Appender appender = appender();
+        appender.setProtocol("nio");
+        assertGarbageFree(appender);
+    }
+
+    /**
+     * A pool of one, which passes the buffers on to its tcp member.
+     */
+    @Test
+    public void testPooled() throws Exception {
+        Appender appender = appender();
+        appender.setEndpoints("127.0.0.1:" + mockLogStashServer.getPort());
+        assertGarbageFree(appender);
+    }
+
+    /**
+     * Garbage-free takes precedence, so asking for deferred encoding as well must not bring back the snapshots.
+     */
+    @Test
+    public void testDeferredEncodingIgnored() throws Exception {
+        Appender appender = appender();
+        appender.setDeferredEncoding(true);
+        assertGarbageFree(appender);
+    }
+
+    @Test
+    public void testMdcFields() throws Exception {
+        Appender appender = appender();
+        appender.setMdcProperties("request_id=requestId,user=user");
+        MDC.put("requestId", "abc-123");
+        MDC.put("user", "someone");
+        try {
+            assertGarbageFree(appender);
+        } finally {
+            MDC.remove("requestId");
+            MDC.remove("user");
+        }
+    }
+
+    /**
+     * The bytes on the wire must be those of the string encoding.
+     */
+    @Test
+    public void testSameAsStringEncoding() throws Exception {
+        Appender garbageFree = appender();
+        Appender plain = appender();
+        plain.setGarbageFree(false);
+        LoggingEvent event = new LoggingEvent(GarbageFreeTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.WARN, "Message with \"quotes\", \u00e9 and \u20ac\n", null);
+        garbageFree.append(event);
+        Thread.sleep(500);
+        plain.append(event);
+        Thread.sleep(1000);
+        garbageFree.close();
+        plain.close();
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(2, messages.size());
+        assertEquals(messages.get(1), messages.get(0));
+        assertTrue(new ObjectMapper().readTree(messages.get(0)).isObject());
+    }
+
+    /**
+     * Rendering a stack trace allocates, so there is no allowance to hold events with a throwable to. They must still
+     * come out of the pooled buffers the same as from the string encoding.
+     */
+    @Test
+    public void testThrowableSameAsStringEncoding() throws Exception {
+        Appender garbageFree = appender();
+        Appender plain = appender();
+        plain.setGarbageFree(false);
+        LoggingEvent event = new LoggingEvent(GarbageFreeTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.ERROR, "Failed", new IllegalStateException("Broken \"state\""));
+        garbageFree.append(event);
+        Thread.sleep(500);
+        plain.append(event);
+        Thread.sleep(1000);
+        garbageFree.close();
+        plain.close();
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(2, messages.size());
+        assertEquals(messages.get(1), messages.get(0));
+        assertTrue(messages.get(0).contains("IllegalStateException"));
+    }
+
+    /**
+     * A subclass overriding toJsonString keeps its own output, the pooled buffers being bypassed.
+     */
+    @Test
+    public void testOverriddenJsonString() throws Exception {
+        MessageAppender appender = new MessageAppender();
+        appender.setHost("localhost");
+        appender.setPort(mockLogStashServer.getPort());
+        appender.setGarbageFree(true);
+        LoggingEvent event = new LoggingEvent(GarbageFreeTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.INFO, "{\"already\":\"json\"}", null);
+        appender.append(event);
+        Thread.sleep(1000);
+        appender.close();
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(1, messages.size());
+        assertEquals(String.valueOf(event.getMessage()), messages.get(0));
+    }
+
+    private Appender appender() {
+        Appender appender = new Appender();
+        appender.setHost("localhost");
+        appender.setPort(mockLogStashServer.getPort());
+        appender.setApplication("test");
+        appender.setEventBufferSize(65536);
+        appender.setGarbageFree(true);
+        return appender;
+    }
+
+    private void assertGarbageFree(final Appender appender) throws Exception {
+        LoggingEvent event = new LoggingEvent(GarbageFreeTest.class.getName(), Logger.getRootLogger(),
+                System.currentTimeMillis(), Level.INFO, "Message", null);
+        try {
+            for (int i = 0; i < WARM_UP; i++) {
+                appender.append(event);
+            }
+            awaitDelivered(WARM_UP);
+            Thread dispatcher = findThread("LogStashDispatcher");
+            long threadId = Thread.currentThread().getId();
+            long loggingBefore = threads.getThreadAllocatedBytes(threadId);
+            long dispatcherBefore = threads.getThreadAllocatedBytes(dispatcher.getId());
+            for (int i = 0; i < MEASURED; i++) {
+                appender.append(event);
+            }
+            long logging = threads.getThreadAllocatedBytes(threadId) - loggingBefore;
+            awaitDelivered(WARM_UP + MEASURED);
+            long dispatching = threads.getThreadAllocatedBytes(dispatcher.getId()) - dispatcherBefore;
+            assertTrue("Logging thread allocated " + logging + " bytes", logging / MEASURED <= MAX_BYTES_PER_EVENT);
+            assertTrue("Dispatcher thread allocated " + dispatching + " bytes",
+                    dispatching / MEASURED <= MAX_BYTES_PER_EVENT);
+        } finally {
+            appender.close();
+        }
+    }
+
+    private void awaitDelivered(final int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mockLogStashServer.getMessages().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mockLogStashServer.getMessages().size());
+    }
+
+    private static Thread findThread(final String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name)) {
+                return thread;
+            }
+        }
+        throw new IllegalStateException("No thread named " + name);
+    }
+}
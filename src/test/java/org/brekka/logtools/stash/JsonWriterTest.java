@@ -0,0 +1,68 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests for {@link JsonWriter}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class JsonWriterTest {
+
+    @Test
+    public void testDocument() throws Exception {
+        JsonWriter json = new JsonWriter(16);
+        json.beginObject();
+        json.field("query", "a=\"b\"&c=\\d\n\u0001");
+        json.name("nested").beginObject().field("length", -42L).endObject();
+        json.encodedName(JsonWriter.encodeName("missing")).value((String) null);
+        json.endObject();
+        assertEquals("{\"query\":\"a=\\\"b\\\"&c=\\\\d\\n\\u0001\",\"nested\":{\"length\":-42},\"missing\":null}",
+                json.toString());
+
+        JsonNode node = new ObjectMapper().readTree(json.toString());
+        assertEquals("a=\"b\"&c=\\d\n\u0001", node.get("query").asText());
+
+        json.reset().beginObject().field("a", 1).endObject();
+        assertEquals("{\"a\":1}", json.toString());
+    }
+
+    @Test
+    public void testTimestamp() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Anywhere between 1970 and ~2100
+            long millis = (long) (random.nextDouble() * 4102444800000L);
+            JsonWriter json = new JsonWriter(32).timestampValue(millis);
+            assertEquals("\"" + format.format(new Date(millis)) + "\"", json.toString());
+        }
+    }
+}
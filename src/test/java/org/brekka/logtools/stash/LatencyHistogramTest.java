@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsAreContiguous() throws Exception {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(value <= LatencyHistogram.upperBound(index));
+            previous = index;
+        }
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotThenReset();
+        assertEquals(10000, snapshot.getTotal());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000, snapshot.percentile(50), 5000 / 16);
+        assertEquals(9900, snapshot.percentile(99), 9900 / 16);
+        assertEquals(10000, snapshot.percentile(100));
+
+        LatencyHistogram.Snapshot empty = histogram.snapshotThenReset();
+        assertEquals(0, empty.getTotal());
+        assertEquals(0, empty.percentile(50));
+    }
+
+    @Test
+    public void testClamped() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotThenReset();
+        assertEquals(0, snapshot.percentile(50));
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMax());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Server side of the Lumberjack v2 protocol, enough to test {@link BeatsClient}. Acknowledges each window once all of
+ * its events have been received. Can be told to drop the connection part way through a window after acknowledging
+ * only some of it.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class MockBeatsServer implements Runnable {
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+    private final List<String> messages = Collections.synchronizedList(new LinkedList<String>());
+
+    private volatile Socket currentSocket;
+
+    /**
+     * If positive, acknowledge this many events of the next window then drop the connection.
+     */
+    private volatile int failAfter;
+
+    private volatile int windows;
+
+    public MockBeatsServer(final int port) throws Exception {
+        serverSocket = new ServerSocket(port);
+        executorService.submit(this);
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        try {
+            final Socket socket = serverSocket.accept();
+            currentSocket = socket;
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    handleSocket(socket);
+                }
+            });
+            executorService.submit(this);
+        } catch (IOException e) {
+            // Socket closed
+        }
+    }
+
+    protected void handleSocket(final Socket socket) {
+        try {
+            try (DataInputStream in = new DataInputStream(socket.getInputStream());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+                while (true) {
+                    int version = in.read();
+                    if (version < 0) {
+                        return;
+                    }
+                    expect(BeatsClient.WINDOW_SIZE, in.readByte());
+                    int count = in.readInt();
+                    windows++;
+                    int received = 0;
+                    while (received < count) {
+                        received += readFrames(in, count - received, out);
+                        if (received < 0) {
+                            return;
+                        }
+                    }
+                    ack(out, count);
+                }
+            } finally {
+                // Also covers failing to open the streams
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Connection dropped
+        }
+    }
+
+    /**
+     * @return the number of events read, or -1 if the connection should be dropped.
+     */
+    private int readFrames(final DataInputStream in, final int max, final DataOutputStream out) throws IOException {
+        expect(BeatsClient.VERSION, in.readByte());
+        byte type = in.readByte();
+        if (type == BeatsClient.COMPRESSED) {
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            InputStream inflated = new InflaterInputStream(new ByteArrayInputStream(compressed));
+            DataInputStream frames = new DataInputStream(inflated);
+            int count = 0;
+            while (count < max) {
+                expect(BeatsClient.VERSION, frames.readByte());
+                expect(BeatsClient.JSON, frames.readByte());
+                if (!readJson(frames, out)) {
+                    return -1;
+                }
+                count++;
+            }
+            return count;
+        }
+        expect(BeatsClient.JSON, type);
+        return readJson(in, out) ? 1 : -1;
+    }
+
+    private boolean readJson(final DataInputStream in, final DataOutputStream out) throws IOException {
+        int sequence = in.readInt();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        messages.add(new String(payload, StandardCharsets.UTF_8));
+        if (failAfter > 0 && sequence == failAfter) {
+            failAfter = 0;
+            ack(out, sequence);
+            return false;
+        }
+        return true;
+    }
+
+    private static void ack(final DataOutputStream out, final int sequence) throws IOException {
+        out.writeByte(BeatsClient.VERSION);
+        out.writeByte(BeatsClient.ACK);
+        out.writeInt(sequence);
+        out.flush();
+    }
+
+    private static void expect(final byte expected, final byte actual) throws IOException {
+        if (expected != actual) {
+            throw new IOException(String.format("Expected '%c' but got '%c'", (char) expected, (char) actual));
+        }
+    }
+
+    /**
+     * @return the messages
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the number of windows started
+     */
+    public int getWindows() {
+        return windows;
+    }
+
+    /**
+     * @param failAfter acknowledge this many events of the next window, then drop the connection
+     */
+    public void setFailAfter(final int failAfter) {
+        this.failAfter = failAfter;
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+            Socket socket = currentSocket;
+            if (socket != null) {
+                socket.close();
+            }
+            // The port is only released once the accepting thread has noticed the close
+            executorService.shutdown();
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (IOException e) {
+            throw new RuntimeException("IO", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -45,7 +45,11 @@ public class MockLogStashServer implements Runnable {
      *
      */
     public MockLogStashServer() throws Exception {
-        serverSocket = new ServerSocket(9033);
+        this(9033);
+    }
+
+    public MockLogStashServer(final int port) throws Exception {
+        serverSocket = new ServerSocket(port);
         executorService.submit(this);
     }
 
@@ -81,6 +85,13 @@ public class MockLogStashServer implements Runnable {
         }
     }
 
+    /**
+     * @return the port listened on, which is picked by the system when constructed with zero
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
     /**
      * @return the messages
      */
@@ -99,8 +110,7 @@ public class MockLogStashServer implements Runnable {
         }
         if (currentSocket != null) {
             try {
-                currentSocket.shutdownInput();
-                currentSocket.shutdownOutput();
+                // The handler may already have closed it, which close() tolerates but the shutdown methods do not
                 currentSocket.close();
             } catch (IOException e) {
                 throw new RuntimeException("IO", e);
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link NioClient}
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class NioClientTest {
+
+    private MockLogStashServer mockLogStashServer;
+    
+    /**
+     * @throws java.lang.Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        mockLogStashServer = new MockLogStashServer();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        mockLogStashServer.close();
+    }
+
+    /**
+     * Test method for {@link org.brekka.logtools.stash.NioClient#writeEvent(java.lang.String)}.
+     */
+    @Test
+    public void testWriteEvent() throws Exception {
+        Client client = new NioClient("localhost", 9033);
+        for (int i = 0; i < 10000; i++) {
+            client.writeEvent(String.format("{ \"uuid\": \"%s\"}", UUID.randomUUID().toString()));
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(10000, messages.size());
+    }
+
+    /**
+     * Test method for {@link org.brekka.logtools.stash.NioClient#writeEvents(java.util.List)}.
+     */
+    @Test
+    public void testWriteEvents() throws Exception {
+        Client client = new NioClient("localhost", 9033);
+        for (int i = 0; i < 100; i++) {
+            List<String> batch = new ArrayList<>();
+            for (int j = 0; j < 100; j++) {
+                batch.add(String.format("{ \"uuid\": \"%s\"}", UUID.randomUUID().toString()));
+            }
+            client.writeEvents(batch);
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(10000, messages.size());
+    }
+
+    /**
+     * Test method for {@link org.brekka.logtools.stash.NioClient#writeBuffers(java.util.List)}, with events that
+     * span several of the (deliberately small) direct buffers.
+     */
+    @Test
+    public void testWriteBuffers() throws Exception {
+        NioClient client = new NioClient("localhost", 9033);
+        client.setBufferSize(64);
+        BufferPool pool = new BufferPool(16, 32, 1024);
+        List<String> expected = new ArrayList<>();
+        List<PooledBuffer> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            String line = String.format("{ \"uuid\": \"%s\", \"i\": %d}", UUID.randomUUID().toString(), i);
+            PooledBuffer buffer = pool.take();
+            buffer.write(line.getBytes("UTF-8"));
+            batch.add(buffer);
+            expected.add(line);
+        }
+        client.writeBuffers(batch);
+        Thread.sleep(500);
+        assertEquals(expected, mockLogStashServer.getMessages());
+        client.close();
+    }
+
+    @Test
+    public void testReconnectAfterServerRestart() throws Exception {
+        Client client = new NioClient("localhost", 9033);
+        client.writeEvent("{ \"first\": true }");
+        Thread.sleep(500);
+        mockLogStashServer.close();
+        Thread.sleep(500);
+        try {
+            client.writeEvent("{ \"lost\": true }");
+            fail("Write to a closed server should fail");
+        } catch (IOException e) {
+            client.close();
+        }
+        mockLogStashServer = new MockLogStashServer();
+        client.writeEvent("{ \"second\": true }");
+        Thread.sleep(500);
+        assertEquals(Arrays.asList("{ \"second\": true }"), mockLogStashServer.getMessages());
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+
+import org.brekka.logtools.stash.OverflowPolicy.Admission;
+import org.junit.Test;
+
+/**
+ * Tests for {@link OverflowPolicy}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class OverflowPolicyTest {
+
+    @Test
+    public void testForName() throws Exception {
+        assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.forName(null));
+        assertEquals(OverflowPolicy.DROP_NEWEST, OverflowPolicy.forName(""));
+        assertEquals(OverflowPolicy.DROP_OLDEST, OverflowPolicy.forName("drop-oldest"));
+        assertEquals(OverflowPolicy.BLOCK, OverflowPolicy.forName(" Block "));
+        assertEquals(OverflowPolicy.LEVEL_AWARE, OverflowPolicy.forName("LEVEL_AWARE"));
+    }
+
+    @Test
+    public void testLevelAware() throws Exception {
+        OverflowPolicy policy = OverflowPolicy.LEVEL_AWARE;
+        assertEquals(Admission.ADMIT, policy.admit(Severity.DEBUG, 69, 100));
+        assertEquals(Admission.DROP, policy.admit(Severity.DEBUG, 70, 100));
+        assertEquals(Admission.ADMIT, policy.admit(Severity.INFO, 89, 100));
+        assertEquals(Admission.DROP, policy.admit(Severity.INFO, 90, 100));
+        assertEquals(Admission.ADMIT, policy.admit(Severity.WARN, 89, 100));
+        assertEquals(Admission.STRIP_STACK_TRACE, policy.admit(Severity.WARN, 90, 100));
+        assertEquals(Admission.ADMIT, policy.admit(Severity.ERROR, 100, 100));
+    }
+
+    @Test
+    public void testOthersAlwaysAdmit() throws Exception {
+        for (OverflowPolicy policy : new OverflowPolicy[] { OverflowPolicy.DROP_NEWEST, OverflowPolicy.DROP_OLDEST,
+                OverflowPolicy.BLOCK }) {
+            assertEquals(Admission.ADMIT, policy.admit(Severity.DEBUG, 100, 100));
+        }
+    }
+
+    @Test
+    public void testEvictBelow() throws Exception {
+        assertEquals(0, OverflowPolicy.DROP_NEWEST.evictBelow());
+        assertEquals(0, OverflowPolicy.BLOCK.evictBelow());
+        assertEquals(Integer.MAX_VALUE, OverflowPolicy.DROP_OLDEST.evictBelow());
+        assertEquals(Severity.ERROR.ordinal(), OverflowPolicy.LEVEL_AWARE.evictBelow());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PooledClient}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class PooledClientTest {
+
+    private MockLogStashServer first;
+
+    private MockLogStashServer second;
+
+    private PooledClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        first = new MockLogStashServer(9033);
+        second = new MockLogStashServer(9034);
+        ClientSettings settings = new ClientSettings();
+        settings.setProtocol(ClientFactory.NIO);
+        settings.setEndpoints("127.0.0.1:9033, 127.0.0.1:9034");
+        settings.setResolveIntervalMillis(0);
+        settings.setConnectionTimeoutMillis(1000);
+        settings.setSocketTimeoutMillis(1000);
+        client = new PooledClient(settings);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.shutdown();
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testWriteBuffers() throws Exception {
+        BufferPool pool = new BufferPool(4, 64, 1024);
+        for (int i = 0; i < 10; i++) {
+            PooledBuffer buffer = pool.take();
+            buffer.write(("{ \"buffer\": " + i + " }").getBytes("UTF-8"));
+            client.writeBuffers(Collections.singletonList(buffer));
+            buffer.release();
+        }
+        Thread.sleep(500);
+        assertEquals(5, first.getMessages().size());
+        assertEquals(5, second.getMessages().size());
+        assertEquals("{ \"buffer\": 0 }", first.getMessages().get(0));
+    }
+
+    @Test
+    public void testSpreadsAndFailsOver() throws Exception {
+        assertEquals(2, client.getAddresses().size());
+        for (int i = 0; i < 100; i++) {
+            client.writeEvent("{ \"before\": " + i + " }");
+        }
+        Thread.sleep(500);
+        assertEquals(50, first.getMessages().size());
+        assertEquals(50, second.getMessages().size());
+
+        first.close();
+        Thread.sleep(500);
+        for (int i = 0; i < 100; i++) {
+            client.writeEvent("{ \"after\": " + i + " }");
+        }
+        Thread.sleep(500);
+        assertEquals(50, first.getMessages().size());
+        assertEquals(150, second.getMessages().size());
+        assertTrue(client.toString().contains("127.0.0.1:9034"));
+    }
+
+    /**
+     * The lanes of a dispatcher share the one pool, which only stops once every lane has shut it down.
+     */
+    @Test
+    public void testSharedAcrossLanes() throws Exception {
+        ClientSettings settings = new ClientSettings();
+        settings.setProtocol(ClientFactory.NIO);
+        settings.setEndpoints("127.0.0.1:9033, 127.0.0.1:9034");
+        settings.setResolveIntervalMillis(0);
+        int before = poolMonitors();
+        List<Client> lanes = ClientFactory.create(settings, 3);
+        assertEquals(3, lanes.size());
+        assertSame(lanes.get(0), lanes.get(1));
+        assertSame(lanes.get(0), lanes.get(2));
+        assertEquals(before + 1, poolMonitors());
+
+        lanes.get(0).shutdown();
+        lanes.get(1).shutdown();
+        for (int i = 0; i < 10; i++) {
+            lanes.get(2).writeEvent("{ \"shared\": " + i + " }");
+        }
+        Thread.sleep(500);
+        assertEquals(10, first.getMessages().size() + second.getMessages().size());
+        assertEquals(before + 1, poolMonitors());
+
+        lanes.get(2).shutdown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (poolMonitors() > before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(before, poolMonitors());
+    }
+
+    private static int poolMonitors() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("LogStashPoolMonitor") && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RingBuffer}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class RingBufferTest {
+
+    @Test
+    public void testCapacityRoundedUp() {
+        assertEquals(1024, new RingBuffer<String>(1000).capacity());
+        assertEquals(16, new RingBuffer<String>(16).capacity());
+    }
+
+    @Test
+    public void testRejectsWhenFull() {
+        RingBuffer<String> ring = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer("e" + i));
+        }
+        assertFalse(ring.offer("overflow"));
+        assertEquals(4, ring.size());
+        assertEquals("e0", ring.poll());
+        assertTrue(ring.offer("e4"));
+        List<String> drained = new ArrayList<>();
+        assertEquals(4, ring.drainTo(drained, 10));
+        assertEquals("e4", drained.get(3));
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        final RingBuffer<String> ring = new RingBuffer<>(256);
+        final int producers = 4;
+        final int perProducer = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        String value = id + ":" + i;
+                        while (!ring.offer(value)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        Set<String> seen = new HashSet<>();
+        int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+        while (seen.size() < producers * perProducer) {
+            String value = ring.poll();
+            if (value == null) {
+                continue;
+            }
+            assertTrue(seen.add(value));
+            String[] parts = value.split(":");
+            int id = Integer.parseInt(parts[0]);
+            int seq = Integer.parseInt(parts[1]);
+            // Each producer's events must come out in the order they went in
+            assertEquals(lastSeen[id] + 1, seq);
+            lastSeen[id] = seq;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
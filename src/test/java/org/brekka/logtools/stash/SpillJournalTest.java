@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link SpillJournal}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class SpillJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 1024, 4096);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(journal.append("{ \"event\": " + i + " }"));
+        }
+        List<String> events = new ArrayList<>();
+        while (journal.read(events, 7) > 0) {
+            journal.acknowledge();
+        }
+        assertEquals(100, events.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("{ \"event\": " + i + " }", events.get(i));
+        }
+        // Consumed segments are removed
+        assertTrue(segmentCount() <= 1);
+        journal.close();
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 256, 1024);
+        int accepted = 0;
+        while (journal.append("{ \"event\": \"fills the journal up\" }")) {
+            accepted++;
+        }
+        assertTrue(accepted > 0);
+        assertEquals(4, segmentCount());
+        assertFalse(journal.append(new String(new char[300])));
+        journal.close();
+    }
+
+    @Test
+    public void testRollLeavesForceToDispatcher() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 256, 4096);
+        journal.append("{ \"event\": \"first\" }");
+        assertFalse(journal.hasUnforced());
+        while (segmentCount() < 3) {
+            assertTrue(journal.append("{ \"event\": \"rolls the journal over\" }"));
+        }
+        assertTrue(journal.hasUnforced());
+        journal.forceSealed();
+        assertFalse(journal.hasUnforced());
+        journal.close();
+    }
+
+    @Test
+    public void testDirectoryHeldUntilClosed() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 512, 8192);
+        journal.append("event-0");
+        try {
+            new SpillJournal(directory, 512, 8192);
+            fail("Second journal on the same directory");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("already in use"));
+        }
+        journal.close();
+        SpillJournal reopened = new SpillJournal(directory, 512, 8192);
+        List<String> events = new ArrayList<>();
+        reopened.read(events, 10);
+        assertEquals(1, events.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testResumesFromAcknowledgedOffset() throws Exception {
+        SpillJournal journal = new SpillJournal(directory, 512, 8192);
+        for (int i = 0; i < 50; i++) {
+            journal.append("event-" + i);
+        }
+        List<String> events = new ArrayList<>();
+        journal.read(events, 20);
+        journal.acknowledge();
+        // Read but not acknowledged, so should be seen again after a restart
+        journal.read(events, 5);
+        journal.close();
+
+        SpillJournal reopened = new SpillJournal(directory, 512, 8192);
+        reopened.append("event-50");
+        events.clear();
+        while (reopened.read(events, 100) > 0) {
+            reopened.acknowledge();
+        }
+        assertEquals(31, events.size());
+        assertEquals("event-20", events.get(0));
+        assertEquals("event-50", events.get(30));
+        reopened.close();
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
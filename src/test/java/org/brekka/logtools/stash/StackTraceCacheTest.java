@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link StackTraceCache}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class StackTraceCacheTest {
+
+    @Test
+    public void testRenderMatchesRegexEscaping() throws Exception {
+        Exception ex = new IllegalStateException("Bad\tthing", new RuntimeException("cause"));
+        StringWriter sw = new StringWriter();
+        try (PrintWriter out = new PrintWriter(sw)) {
+            ex.printStackTrace(out);
+        }
+        String expected = sw.toString().replaceAll("\n", "\\\\n").replaceAll("\t", "\\\\t");
+        assertEquals(expected, StackTraceCache.render(ex));
+    }
+
+    @Test
+    public void testSameStructureShared() throws Exception {
+        StackTraceCache cache = new StackTraceCache(16);
+        StackTraceCache.CachedTrace first = null;
+        for (int i = 0; i < 3; i++) {
+            // Same line each time round the loop
+            StackTraceCache.CachedTrace entry = cache.lookup(new IllegalStateException("Bad"));
+            if (first == null) {
+                first = entry;
+            }
+            assertSame(first, entry);
+        }
+        StackTraceCache.CachedTrace other = cache.lookup(new IllegalStateException("Other"));
+        assertFalse(first.getHash().equals(other.getHash()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testCauseIsPartOfFingerprint() throws Exception {
+        long without = StackTraceCache.fingerprint(exception(null));
+        long with = StackTraceCache.fingerprint(exception(new RuntimeException()));
+        assertFalse(without == with);
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        StackTraceCache cache = new StackTraceCache(4);
+        for (int i = 0; i < 10; i++) {
+            cache.lookup(new IllegalStateException("Error " + i));
+        }
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testUsedEntryKept() throws Exception {
+        StackTraceCache cache = new StackTraceCache(2);
+        String[] messages = { "Hot", "Cold", "Hot", "New", "Hot", "Cold" };
+        StackTraceCache.CachedTrace[] entries = new StackTraceCache.CachedTrace[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            // Same line each time round the loop, so only the message tells them apart
+            entries[i] = cache.lookup(error(messages[i]));
+        }
+        assertSame(entries[0], entries[2]);
+        // The oldest was used again, so the one added after it went instead when "New" came in
+        assertSame(entries[0], entries[4]);
+        assertFalse(entries[1] == entries[5]);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final StackTraceCache cache = new StackTraceCache(8);
+        final AtomicInteger mismatched = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        Exception ex = error("Error " + (i % 12));
+                        StackTraceCache.CachedTrace entry = cache.lookup(ex);
+                        if (!entry.getTrace().equals(StackTraceCache.render(ex))) {
+                            mismatched.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, mismatched.get());
+        assertTrue(cache.size() <= 8);
+    }
+
+    @Test
+    public void testClaimFullTraceOncePerInterval() throws Exception {
+        StackTraceCache.CachedTrace entry = new StackTraceCache(1).lookup(new IllegalStateException());
+        assertTrue(entry.claimFullTrace(1000, 500));
+        assertFalse(entry.claimFullTrace(1200, 500));
+        assertFalse(entry.claimFullTrace(1499, 500));
+        assertTrue(entry.claimFullTrace(1500, 500));
+        assertFalse(entry.claimFullTrace(1501, 500));
+    }
+
+    private static Exception exception(final Throwable cause) {
+        return new IllegalStateException("Bad", cause);
+    }
+
+    private static Exception error(final String message) {
+        return new IllegalStateException(message);
+    }
+}
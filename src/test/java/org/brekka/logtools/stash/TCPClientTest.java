@@ -18,7 +18,9 @@ package org.brekka.logtools.stash;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
 
 import org.junit.After;
@@ -61,4 +63,22 @@ public class TCPClientTest {
         assertEquals(10000, messages.size());
     }
 
+    /**
+     * Test method for {@link org.brekka.logtools.stash.TCPClient#writeEvents(java.util.List)}.
+     */
+    @Test
+    public void testWriteEvents() throws Exception {
+        Client client = new TCPClient("localhost", 9033);
+        for (int i = 0; i < 100; i++) {
+            List<String> batch = new ArrayList<>();
+            for (int j = 0; j < 100; j++) {
+                batch.add(String.format("{ \"uuid\": \"%s\"}", UUID.randomUUID().toString()));
+            }
+            client.writeEvents(batch);
+        }
+        Thread.sleep(1000);
+        LinkedList<String> messages = mockLogStashServer.getMessages();
+        assertEquals(10000, messages.size());
+    }
+
 }
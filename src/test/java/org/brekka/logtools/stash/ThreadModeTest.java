@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ThreadMode}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class ThreadModeTest {
+
+    @Test
+    public void testForName() throws Exception {
+        assertEquals(ThreadMode.PLATFORM, ThreadMode.forName(null));
+        assertEquals(ThreadMode.PLATFORM, ThreadMode.forName(""));
+        assertEquals(ThreadMode.VIRTUAL, ThreadMode.forName("virtual"));
+        assertEquals(ThreadMode.PLATFORM, ThreadMode.forName(" Platform "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForNameUnknown() throws Exception {
+        ThreadMode.forName("green");
+    }
+
+    @Test
+    public void testPlatform() throws Exception {
+        Thread thread = ThreadMode.PLATFORM.newThread(new NoOp(), "Test", Thread.MIN_PRIORITY);
+        assertEquals("Test", thread.getName());
+        assertTrue(thread.isDaemon());
+        assertEquals(Thread.MIN_PRIORITY, thread.getPriority());
+        assertEquals(Boolean.FALSE, isVirtual(thread));
+    }
+
+    @Test
+    public void testVirtual() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        Thread thread = ThreadMode.VIRTUAL.newThread(new Runnable() {
+            @Override
+            public void run() {
+                ran.countDown();
+            }
+        }, "Test", Thread.NORM_PRIORITY);
+        assertEquals("Test", thread.getName());
+        assertTrue(thread.isDaemon());
+        if (ThreadMode.isVirtualAvailable()) {
+            assertEquals(Boolean.TRUE, isVirtual(thread));
+        }
+        thread.start();
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDispatcherOnVirtualThread() throws Exception {
+        final List<String> written = new CopyOnWriteArrayList<>();
+        final CountDownLatch delivered = new CountDownLatch(3);
+        Client client = new Client() {
+            @Override
+            public void writeEvent(final String line) {
+                written.add(line);
+                delivered.countDown();
+            }
+
+            @Override
+            public void writeEvents(final List<String> lines) {
+                for (String line : lines) {
+                    writeEvent(line);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void beginBatch() {
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        };
+        Dispatcher dispatcher = new Dispatcher(client, 10, Thread.NORM_PRIORITY, ThreadMode.VIRTUAL);
+        try {
+            dispatcher.dispatchMessage("one");
+            dispatcher.dispatchMessage("two");
+            dispatcher.dispatchMessage("three");
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+            assertEquals(3, written.size());
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    /**
+     * @return false as well if the JVM has no notion of virtual threads.
+     */
+    private static Boolean isVirtual(final Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return Boolean.FALSE;
+        }
+    }
+
+    private static final class NoOp implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
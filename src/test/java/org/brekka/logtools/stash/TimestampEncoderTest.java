@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimestampEncoder}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class TimestampEncoderTest {
+
+    @Test
+    public void testMatchesDateFormat() {
+        SimpleDateFormat offset = format("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        SimpleDateFormat zulu = format("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        Random random = new Random(42);
+        long[] edges = { 0L, -1L, -999L, -1000L, 951782400000L, 951868799999L, 253402300799999L, 253402300800000L,
+                -12219292800000L, -12219292800001L, -62135596800000L };
+        for (long millis : edges) {
+            assertEncodes(offset, TimestampEncoder.OFFSET, millis);
+            assertEncodes(zulu, TimestampEncoder.ZULU, millis);
+        }
+        for (int i = 0; i < 100000; i++) {
+            // Roughly 7000 BC to 14000 AD
+            long millis = random.nextLong() % 380000000000000L;
+            assertEncodes(offset, TimestampEncoder.OFFSET, millis);
+            assertEncodes(zulu, TimestampEncoder.ZULU, millis);
+        }
+    }
+
+    @Test
+    public void testMillisecondsWithinCachedSecond() {
+        SimpleDateFormat offset = format("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        long base = 1381000000000L;
+        for (long millis = base; millis < base + 3000; millis++) {
+            assertEncodes(offset, TimestampEncoder.OFFSET, millis);
+        }
+    }
+
+    @Test
+    public void testAppendAtOffset() {
+        byte[] bytes = new byte[4 + TimestampEncoder.MAX_LENGTH];
+        int end = TimestampEncoder.ZULU.encode(1381000000123L, bytes, 4);
+        assertEquals(28, end);
+        assertEquals("2013-10-05T19:06:40.123Z", new String(bytes, 4, end - 4, StandardCharsets.US_ASCII));
+        StringBuilder sb = new StringBuilder("t=");
+        TimestampEncoder.OFFSET.append(1381000000123L, sb, new byte[TimestampEncoder.MAX_LENGTH]);
+        assertEquals("t=2013-10-05T19:06:40.123+0000", sb.toString());
+    }
+
+    /**
+     * Threads in different seconds keep replacing the cached second, each must still get its own time.
+     */
+    @Test
+    public void testConcurrentSeconds() throws Exception {
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger wrong = new AtomicInteger();
+        for (int t = 0; t < threads; t++) {
+            final long base = 1381000000000L + t * 86400000L;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SimpleDateFormat format = format("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+                    byte[] bytes = new byte[TimestampEncoder.MAX_LENGTH];
+                    for (int i = 0; i < 20000; i++) {
+                        long millis = base + i * 7L;
+                        int length = TimestampEncoder.OFFSET.encode(millis, bytes, 0);
+                        String actual = new String(bytes, 0, length, StandardCharsets.US_ASCII);
+                        if (!actual.equals(format.format(new Date(millis)))) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, wrong.get());
+    }
+
+    private static void assertEncodes(final SimpleDateFormat expected, final TimestampEncoder encoder,
+            final long millis) {
+        assertEquals(String.valueOf(millis), expected.format(new Date(millis)), encoder.format(millis));
+    }
+
+    private static SimpleDateFormat format(final String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+}
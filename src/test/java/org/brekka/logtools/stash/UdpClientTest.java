@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link UdpClient}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class UdpClientTest {
+
+    private DatagramSocket server;
+
+    private UdpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        client = new UdpClient("127.0.0.1", server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testPacksEvents() throws Exception {
+        client.setMaxPacketBytes(64);
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add("{ \"event\": " + i + " }");
+        }
+        client.writeEvents(events);
+
+        List<String> received = new ArrayList<>();
+        int packets = 0;
+        while (received.size() < events.size()) {
+            String payload = receive();
+            assertTrue(payload.length() <= 64);
+            assertTrue(payload.endsWith("\n"));
+            received.addAll(Arrays.asList(payload.split("\n")));
+            packets++;
+        }
+        assertEquals(events, received);
+        // Sixteen bytes each, so four to a packet
+        assertEquals(3, packets);
+    }
+
+    @Test
+    public void testOversizedEvent() throws Exception {
+        client.setMaxPacketBytes(32);
+        String large = new String(new char[100]).replace('\0', 'x');
+        client.writeEvents(Arrays.asList("small", large, "after"));
+        // Left out rather than cut short, the others still packed together
+        assertEquals("small\nafter\n", receive());
+        assertEquals(1, client.takeOversized());
+        assertEquals(0, client.takeOversized());
+    }
+
+    @Test
+    public void testBeyondDatagramLimit() throws Exception {
+        client.setMaxPacketBytes(UdpClient.MAX_DATAGRAM_BYTES);
+        String large = new String(new char[UdpClient.MAX_DATAGRAM_BYTES + 10]).replace('\0', 'x');
+        client.writeEvents(Arrays.asList(large, "after"));
+        assertEquals("after\n", receive());
+        assertEquals(1, client.takeOversized());
+    }
+
+    @Test
+    public void testNoListener() throws Exception {
+        server.close();
+        // Neither blocks nor fails, whether or not the port unreachable error has come back yet
+        for (int i = 0; i < 10; i++) {
+            client.writeEvent("{ \"event\": " + i + " }");
+            Thread.sleep(10);
+        }
+    }
+
+    private String receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.brekka.logtools.stash;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link UriNormalizer}.
+ *
+ * @author Andrew Taylor (andrew@brekka.org)
+ */
+public class UriNormalizerTest {
+
+    @Test
+    public void testReplaceIds() throws Exception {
+        assertEquals("/users/{id}", UriNormalizer.replaceIds("/users/42"));
+        assertEquals("/users/{id}/orders/", UriNormalizer.replaceIds("/users/42/orders/"));
+        assertEquals("/orders/{id}", UriNormalizer.replaceIds("/orders/3f2504e0-4f89-11d3-9a0c-0305e82c3301"));
+        assertEquals("/static/app.js", UriNormalizer.replaceIds("/static/app.js"));
+        assertEquals("/health", UriNormalizer.replaceIds("/health?full=true"));
+        assertEquals("/v2/items", UriNormalizer.replaceIds("/v2/items"));
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        UriNormalizer normalizer = new UriNormalizer(3);
+        assertEquals("/a", normalizer.normalize("/a"));
+        assertEquals("/b", normalizer.normalize("/b"));
+        assertEquals("/c/{id}", normalizer.normalize("/c/1"));
+        assertEquals("/c/{id}", normalizer.normalize("/c/2"));
+        assertEquals(UriNormalizer.OTHER, normalizer.normalize("/d"));
+        assertEquals("/a", normalizer.normalize("/a"));
+        assertEquals(3, normalizer.size());
+    }
+}